@@ -0,0 +1,467 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the catalog documents every provider needs before it can launch anything (locations and the image, storage,
+ * address, and VLAN offerings) in a file on local disk so that a newly started JVM can answer its first catalog
+ * requests without going to the cloud. The store is used only when the <code>catalogCacheDirectory</code> custom
+ * property names a writable directory. A JVM reads each document from the store at most once, for its first request;
+ * every later request, including the reloads that follow an invalidation or expiry in the caches above, goes to the
+ * cloud and saves what it fetches. The file is memory-mapped read-only; documents served from it are refetched
+ * in the background through a provider still connected to the store's endpoint and account, and the file is updated by writing a complete replacement alongside it and renaming it into
+ * place, so that any number of JVMs on a host can share it without ever reading a partial file. Each replacement
+ * carries a generation number in its header so that a replacement is noticed even when the file system cannot tell
+ * it apart by size and modification time. Documents older than the <code>catalogCacheMaxAge</code> custom property
+ * (in seconds, one day by default) are not served, and a stored document is refetched in the background at most once
+ * in that period.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class CatalogStore {
+    static private final Logger logger = SCE.getLogger(CatalogStore.class, "std");
+
+    static private final int  MAGIC          = 0x53434543; // SCEC
+    static private final int  VERSION        = 2;
+    static private final int  HEADER         = 20;
+    static private final long DEFAULT_MAX_AGE = 86400L;
+    // the coarsest modification time resolution of the file systems the store is expected to live on
+    static private final long MTIME_RESOLUTION = 2000L;
+
+    static private final Set<String> catalogs = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("locations", "offerings/image", "offerings/storage", "offerings/address", "offerings/vlan")));
+
+    static private final ConcurrentHashMap<String,CatalogStore> stores = new ConcurrentHashMap<String, CatalogStore>();
+
+    /**
+     * Identifies whether the specified resource is one of the catalog documents kept by the store.
+     * @param resource the resource relative to the endpoint
+     * @return true if the resource is a catalog document
+     */
+    static public boolean isCatalog(@Nonnull String resource) {
+        return catalogs.contains(resource);
+    }
+
+    /**
+     * Provides the store for the endpoint and account of the provider's context.
+     * @param provider the provider whose settings determine where the store lives
+     * @return the store, or <code>null</code> if no store is configured
+     */
+    static public @Nullable CatalogStore getInstance(@Nonnull SCE provider) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null || ctx.getCustomProperties() == null ) {
+            return null;
+        }
+        String directory = ctx.getCustomProperties().getProperty("catalogCacheDirectory");
+
+        if( directory == null || directory.trim().length() < 1 ) {
+            return null;
+        }
+        String contextKey = ctx.getEndpoint() + "|" + ctx.getAccountNumber();
+        String name;
+
+        try {
+            name = digest(contextKey);
+        }
+        catch( InternalException e ) {
+            logger.warn("Unable to name the catalog cache: " + e.getMessage());
+            return null;
+        }
+        File file = new File(directory.trim(), "sce-catalog-" + name + ".bin");
+        String key = file.getAbsolutePath();
+        CatalogStore store = stores.get(key);
+
+        if( store == null ) {
+            store = new CatalogStore(file, contextKey);
+
+            CatalogStore existing = stores.putIfAbsent(key, store);
+
+            if( existing != null ) {
+                store = existing;
+            }
+        }
+        return store;
+    }
+
+    static private @Nonnull String digest(@Nonnull String value) throws InternalException {
+        try {
+            StringBuilder str = new StringBuilder();
+
+            for( byte b : MessageDigest.getInstance("SHA-1").digest(value.getBytes("utf-8")) ) {
+                str.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return str.toString();
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new InternalException(e);
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    static private class Record {
+        public long       timestamp;
+        public ByteBuffer body;
+    }
+
+    private final File              file;
+    private final String            contextKey;
+    private final Set<String>       opened = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String>       revalidating = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentHashMap<String,Long> revalidated = new ConcurrentHashMap<String, Long>();
+    private long                    mappedModified = -1L;
+    private long                    mappedLength = -1L;
+    private long                    mappedGeneration = 0L;
+    private boolean                 settled;
+    private Map<String,Record>      records = Collections.emptyMap();
+
+    private CatalogStore(@Nonnull File file, @Nonnull String contextKey) {
+        this.file = file;
+        this.contextKey = contextKey;
+    }
+
+    /**
+     * Opens the stored copy of a catalog document for this JVM's first request for it. Later requests are reloads of
+     * something already read and must see the cloud's current document, so they get no stored copy.
+     * @param provider the provider requesting the document
+     * @param resource the catalog resource relative to the endpoint
+     * @return a stream over the stored document or <code>null</code> if there is no usable stored copy
+     */
+    public @Nullable InputStream open(@Nonnull SCE provider, @Nonnull String resource) {
+        Record record;
+
+        if( !opened.add(resource) ) {
+            return null;
+        }
+        synchronized( this ) {
+            remapIfChanged();
+            record = records.get(resource);
+        }
+        if( record == null ) {
+            return null;
+        }
+        long maxAge = provider.getCustomLong("catalogCacheMaxAge", DEFAULT_MAX_AGE) * 1000L;
+
+        if( System.currentTimeMillis() - record.timestamp > maxAge ) {
+            return null;
+        }
+        return new BufferInputStream(record.body.duplicate());
+    }
+
+    /**
+     * Indicates whether a provider is open and connected to the endpoint and account whose documents this store
+     * holds, so that what it fetches may be saved here.
+     */
+    private boolean isBound(@Nonnull SCE provider) {
+        ProviderContext ctx = provider.getContext();
+
+        return (!provider.isClosed() && ctx != null && contextKey.equals(ctx.getEndpoint() + "|" + ctx.getAccountNumber()));
+    }
+
+    /**
+     * Refetches a catalog document in the background and saves it to the store, unless this JVM has already done so
+     * within the <code>catalogCacheMaxAge</code> period or the provider is no longer connected to the store's endpoint
+     * and account.
+     * @param provider the provider through which the document is fetched
+     * @param resource the catalog resource relative to the endpoint
+     */
+    public void revalidate(@Nonnull final SCE provider, @Nonnull final String resource) {
+        long maxAge = provider.getCustomLong("catalogCacheMaxAge", DEFAULT_MAX_AGE) * 1000L;
+        Long last = revalidated.get(resource);
+        long now = System.currentTimeMillis();
+
+        if( last != null && now - last < maxAge ) {
+            return;
+        }
+        if( !revalidating.add(resource) ) {
+            return;
+        }
+        revalidated.put(resource, now);
+        SCE.getBackgroundExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if( !isBound(provider) ) {
+                        revalidated.remove(resource);
+                        return;
+                    }
+                    byte[] body = new SCEMethod(provider).getAsBytes(resource);
+
+                    // the provider may have been connected elsewhere while fetching, leaving another account's document
+                    if( body != null && isBound(provider) ) {
+                        save(resource, body);
+                    }
+                }
+                catch( Throwable t ) {
+                    logger.warn("Unable to revalidate " + resource + " in " + file + ": " + t.getMessage());
+                }
+                finally {
+                    revalidating.remove(resource);
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves a freshly fetched catalog document, replacing the store file atomically.
+     * @param resource the catalog resource relative to the endpoint
+     * @param body the document as returned by the cloud
+     */
+    public void save(@Nonnull String resource, @Nonnull byte[] body) {
+        File directory = file.getParentFile();
+        File lockFile = new File(directory, file.getName() + ".lock");
+        RandomAccessFile lockRaf = null;
+        FileLock lock = null;
+
+        try {
+            if( !directory.exists() && !directory.mkdirs() ) {
+                logger.warn("Unable to create catalog cache directory " + directory);
+                return;
+            }
+            lockRaf = new RandomAccessFile(lockFile, "rw");
+            lock = lockRaf.getChannel().lock();
+
+            LinkedHashMap<String,byte[]> bodies = new LinkedHashMap<String, byte[]>();
+            LinkedHashMap<String,Long> timestamps = new LinkedHashMap<String, Long>();
+            long generation;
+
+            synchronized( this ) {
+                remapIfChanged();
+                generation = mappedGeneration + 1;
+                for( Map.Entry<String,Record> entry : records.entrySet() ) {
+                    ByteBuffer b = entry.getValue().body.duplicate();
+                    byte[] bytes = new byte[b.remaining()];
+
+                    b.get(bytes);
+                    bodies.put(entry.getKey(), bytes);
+                    timestamps.put(entry.getKey(), entry.getValue().timestamp);
+                }
+            }
+            bodies.put(resource, body);
+            timestamps.put(resource, System.currentTimeMillis());
+
+            File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+
+            try {
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+
+                try {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeLong(generation);
+                    out.writeInt(bodies.size());
+                    for( Map.Entry<String,byte[]> entry : bodies.entrySet() ) {
+                        out.writeUTF(entry.getKey());
+                        out.writeLong(timestamps.get(entry.getKey()));
+                        out.writeInt(entry.getValue().length);
+                        out.write(entry.getValue());
+                    }
+                }
+                finally {
+                    out.close();
+                }
+                if( !tmp.renameTo(file) ) {
+                    // some platforms will not rename over an existing file
+                    if( !file.delete() || !tmp.renameTo(file) ) {
+                        logger.warn("Unable to move new catalog cache into place at " + file);
+                    }
+                }
+            }
+            finally {
+                if( tmp.exists() ) {
+                    //noinspection ResultOfMethodCallIgnored
+                    tmp.delete();
+                }
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to save " + resource + " to " + file + ": " + e.getMessage());
+        }
+        finally {
+            if( lock != null ) {
+                try { lock.release(); }
+                catch( IOException ignore ) { }
+            }
+            if( lockRaf != null ) {
+                try { lockRaf.close(); }
+                catch( IOException ignore ) { }
+            }
+        }
+    }
+
+    /**
+     * Maps the store file again if it has been replaced since it was last mapped. A replacement normally shows up as a
+     * new size or modification time; while the modification time is too recent for that to be conclusive, the
+     * generation number in the file header is checked as well.
+     */
+    private void remapIfChanged() {
+        long modified = file.lastModified();
+        long size = file.length();
+
+        if( modified == mappedModified && size == mappedLength ) {
+            if( settled || modified == 0L ) {
+                return;
+            }
+            if( readGeneration() == mappedGeneration ) {
+                settled = (System.currentTimeMillis() - modified >= MTIME_RESOLUTION);
+                return;
+            }
+        }
+        mappedModified = modified;
+        mappedLength = size;
+        mappedGeneration = -1L;
+        settled = false;
+        records = Collections.emptyMap();
+        if( modified == 0L ) {
+            return;
+        }
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(file, "r");
+
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if( buffer.remaining() < HEADER || buffer.getInt() != MAGIC || buffer.getInt() != VERSION ) {
+                logger.warn("Ignoring unrecognized catalog cache " + file);
+                return;
+            }
+            long generation = buffer.getLong();
+            int count = buffer.getInt();
+            LinkedHashMap<String,Record> map = new LinkedHashMap<String, Record>();
+
+            for( int i=0; i<count; i++ ) {
+                byte[] name = new byte[buffer.getShort() & 0xFFFF];
+
+                buffer.get(name);
+
+                Record record = new Record();
+                int length;
+
+                record.timestamp = buffer.getLong();
+                length = buffer.getInt();
+
+                ByteBuffer body = buffer.slice();
+
+                body.limit(length);
+                record.body = body.asReadOnlyBuffer();
+                buffer.position(buffer.position() + length);
+                map.put(new String(name, "utf-8"), record);
+            }
+            records = map;
+            mappedGeneration = generation;
+        }
+        catch( UnsupportedEncodingException e ) {
+            logger.warn("Unable to read catalog cache " + file + ": " + e.getMessage());
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to read catalog cache " + file + ": " + e.getMessage());
+        }
+        catch( RuntimeException e ) {
+            logger.warn("Ignoring corrupt catalog cache " + file + ": " + e.getMessage());
+        }
+        finally {
+            if( raf != null ) {
+                // the mapping stays valid after the file is closed
+                try { raf.close(); }
+                catch( IOException ignore ) { }
+            }
+        }
+    }
+
+    private long readGeneration() {
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(file, "r");
+            if( raf.length() < HEADER || raf.readInt() != MAGIC || raf.readInt() != VERSION ) {
+                return -1L;
+            }
+            return raf.readLong();
+        }
+        catch( IOException e ) {
+            return -1L;
+        }
+        finally {
+            if( raf != null ) {
+                try { raf.close(); }
+                catch( IOException ignore ) { }
+            }
+        }
+    }
+
+    static private class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        public BufferInputStream(@Nonnull ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public int read() {
+            return (buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1);
+        }
+
+        @Override
+        public int read(@Nonnull byte[] b, int off, int len) {
+            if( !buffer.hasRemaining() ) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+}
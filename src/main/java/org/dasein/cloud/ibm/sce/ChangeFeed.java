@@ -0,0 +1,404 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.Volume;
+import org.dasein.cloud.network.IpAddress;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the instances, volumes, and public addresses of an endpoint, region, and account on a schedule and publishes
+ * the differences between successive polls to any number of listeners, so that consumers interested in changes share
+ * a single poll instead of each listing and comparing everything themselves. Polling starts with the first listener
+ * and stops when the last one goes away; the interval is set in seconds by the <code>changeFeedInterval</code> custom
+ * property (one minute by default). The first poll only records a baseline, so listeners hear about changes from that
+ * point on. Polls go through the provider of any subscriber that is still open and connected to the feed's context; a
+ * poll during which that provider is connected elsewhere is discarded, and once no subscriber's provider qualifies the
+ * poll stops and the feed is discarded. The feed keeps its own copies of the resources it compares
+ * and gives each listener its own copies of the resources in the events it publishes.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ChangeFeed {
+    static private final Logger logger = SCE.getLogger(ChangeFeed.class, "std");
+
+    static private final long DEFAULT_INTERVAL = 60L;
+
+    static private final ConcurrentHashMap<String,ChangeFeed> feeds = new ConcurrentHashMap<String, ChangeFeed>();
+
+    /**
+     * The kinds of resources watched by the feed.
+     */
+    static public enum Family { VIRTUAL_MACHINE, VOLUME, IP_ADDRESS }
+
+    /**
+     * The kinds of change reported for a resource.
+     */
+    static public enum ChangeType { CREATED, CHANGED, DELETED }
+
+    /**
+     * The fields compared between polls, each belonging to a single resource family.
+     */
+    static public enum Field {
+        VM_STATE(Family.VIRTUAL_MACHINE), VM_NAME(Family.VIRTUAL_MACHINE), VM_PRODUCT(Family.VIRTUAL_MACHINE),
+        VM_PUBLIC_ADDRESSES(Family.VIRTUAL_MACHINE), VM_PRIVATE_ADDRESSES(Family.VIRTUAL_MACHINE), VM_TAGS(Family.VIRTUAL_MACHINE),
+        VOLUME_STATE(Family.VOLUME), VOLUME_NAME(Family.VOLUME), VOLUME_SIZE(Family.VOLUME), VOLUME_ATTACHMENT(Family.VOLUME),
+        ADDRESS_SERVER(Family.IP_ADDRESS), ADDRESS_LOAD_BALANCER(Family.IP_ADDRESS);
+
+        private final Family family;
+
+        private Field(@Nonnull Family family) { this.family = family; }
+
+        public @Nonnull Family getFamily() { return family; }
+    }
+
+    /**
+     * A single change to a single resource between two polls.
+     */
+    static public class ChangeEvent {
+        private final Family         family;
+        private final ChangeType     type;
+        private final String         resourceId;
+        private final EnumSet<Field> changedFields;
+        private final Object         previous;
+        private final Object         current;
+
+        public ChangeEvent(@Nonnull Family family, @Nonnull ChangeType type, @Nonnull String resourceId, @Nonnull EnumSet<Field> changedFields, @Nullable Object previous, @Nullable Object current) {
+            this.family = family;
+            this.type = type;
+            this.resourceId = resourceId;
+            this.changedFields = changedFields;
+            this.previous = previous;
+            this.current = current;
+        }
+
+        /**
+         * @return the fields whose values differ between the previous and current poll; empty for creates and deletes
+         */
+        public @Nonnull EnumSet<Field> getChangedFields() {
+            return EnumSet.copyOf(changedFields);
+        }
+
+        /**
+         * @return the resource as of the poll that found the change, <code>null</code> for deletes
+         */
+        public @Nullable Object getCurrent() {
+            return current;
+        }
+
+        public @Nonnull Family getFamily() {
+            return family;
+        }
+
+        /**
+         * @return the resource as of the previous poll, <code>null</code> for creates
+         */
+        public @Nullable Object getPrevious() {
+            return previous;
+        }
+
+        public @Nonnull String getResourceId() {
+            return resourceId;
+        }
+
+        public @Nonnull ChangeType getType() {
+            return type;
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return type + " " + family + " " + resourceId + (changedFields.isEmpty() ? "" : " " + changedFields);
+        }
+    }
+
+    /**
+     * Receives the changes found by each poll.
+     */
+    static public interface Listener {
+        /**
+         * Called from a background thread with the changes found by a poll. Never called with an empty list.
+         * @param events the changes found, grouped by family
+         */
+        public void changed(@Nonnull List<ChangeEvent> events);
+    }
+
+    /**
+     * Provides the feed for the endpoint, region, and account of the provider's context.
+     * @param provider the provider through which the feed will poll
+     * @return the feed shared by all providers connected with the same endpoint, region, and account
+     * @throws SCEConfigException no context was configured for the provider
+     */
+    static public @Nonnull ChangeFeed getInstance(@Nonnull SCE provider) throws SCEConfigException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new SCEConfigException("No context was configured for this request");
+        }
+        String key = SCE.getContextKey(ctx);
+        ChangeFeed feed = feeds.get(key);
+
+        if( feed == null ) {
+            feed = new ChangeFeed(key);
+
+            ChangeFeed existing = feeds.putIfAbsent(key, feed);
+
+            if( existing != null ) {
+                feed = existing;
+            }
+        }
+        return feed;
+    }
+
+    static private class Snapshot {
+        public LinkedHashMap<String,Object>      resources = new LinkedHashMap<String, Object>();
+        public HashMap<String,Map<Field,Object>> values = new HashMap<String, Map<Field, Object>>();
+    }
+
+    private final String                         key;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final HashMap<Listener,SCE>          providers = new HashMap<Listener, SCE>();
+    private final EnumMap<Family,Snapshot>       snapshots = new EnumMap<Family, Snapshot>(Family.class);
+    private ScheduledFuture<?>                   poller;
+
+    private ChangeFeed(@Nonnull String key) {
+        this.key = key;
+    }
+
+    /**
+     * Adds a listener, starting the poll if this is the first one. The feed polls through this provider while it
+     * remains open and connected to the feed's context, or through that of another subscriber.
+     * @param provider the provider through which the feed may poll
+     * @param listener the listener to receive changes
+     */
+    public synchronized void subscribe(@Nonnull SCE provider, @Nonnull Listener listener) {
+        providers.put(listener, provider);
+        listeners.addIfAbsent(listener);
+        // the feed may have been discarded by a concurrent unsubscribe or shutdown
+        feeds.putIfAbsent(key, this);
+        if( poller == null ) {
+            long interval = Math.max(1L, provider.getCustomLong("changeFeedInterval", DEFAULT_INTERVAL));
+
+            poller = SCE.getBackgroundExecutor().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    poll();
+                }
+            }, 0L, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Removes a listener, stopping the poll and forgetting the baseline if no listeners remain.
+     * @param listener the listener to remove
+     */
+    public synchronized void unsubscribe(@Nonnull Listener listener) {
+        listeners.remove(listener);
+        providers.remove(listener);
+        if( listeners.isEmpty() ) {
+            shutdown();
+        }
+    }
+
+    private synchronized void shutdown() {
+        if( poller != null ) {
+            poller.cancel(false);
+            poller = null;
+        }
+        feeds.remove(key, this);
+        synchronized( snapshots ) {
+            snapshots.clear();
+        }
+    }
+
+    private synchronized @Nullable SCE getOpenProvider() {
+        for( SCE p : providers.values() ) {
+            if( p.isConnectedTo(key) ) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Polls every family once and publishes any changes found. Normally called on the feed's schedule, but may be
+     * called directly to pick up changes immediately.
+     */
+    public void poll() {
+        SCE p = getOpenProvider();
+
+        if( p == null ) {
+            synchronized( this ) {
+                if( !providers.isEmpty() ) {
+                    logger.warn("Every provider subscribed to the change feed for " + key + " has been closed or connected elsewhere; stopping it");
+                    shutdown();
+                }
+            }
+            return;
+        }
+        ArrayList<ChangeEvent> events = new ArrayList<ChangeEvent>();
+
+        synchronized( snapshots ) {
+            EnumMap<Family,Snapshot> loaded = new EnumMap<Family, Snapshot>(Family.class);
+
+            for( Family family : Family.values() ) {
+                try {
+                    loaded.put(family, load(p, family));
+                }
+                catch( Throwable t ) {
+                    logger.warn("Unable to poll " + family + " for the change feed: " + t.getMessage());
+                }
+            }
+            // a provider connected elsewhere mid-poll may have listed another account's resources
+            if( !p.isConnectedTo(key) ) {
+                logger.debug("Discarding a change feed poll for " + key + " whose provider was connected elsewhere");
+                return;
+            }
+            for( Map.Entry<Family,Snapshot> entry : loaded.entrySet() ) {
+                Snapshot previous = snapshots.put(entry.getKey(), entry.getValue());
+
+                if( previous != null ) {
+                    diff(entry.getKey(), previous, entry.getValue(), events);
+                }
+            }
+        }
+        if( events.isEmpty() ) {
+            return;
+        }
+        for( Listener listener : listeners ) {
+            try {
+                listener.changed(Collections.unmodifiableList(copy(events)));
+            }
+            catch( Throwable t ) {
+                logger.error("Change feed listener failed: " + t.getMessage(), t);
+            }
+        }
+    }
+
+    private void diff(@Nonnull Family family, @Nonnull Snapshot previous, @Nonnull Snapshot current, @Nonnull List<ChangeEvent> events) {
+        for( Map.Entry<String,Object> entry : current.resources.entrySet() ) {
+            String id = entry.getKey();
+            Object before = previous.resources.get(id);
+
+            if( before == null ) {
+                events.add(new ChangeEvent(family, ChangeType.CREATED, id, EnumSet.noneOf(Field.class), null, entry.getValue()));
+            }
+            else {
+                Map<Field,Object> oldValues = previous.values.get(id);
+                Map<Field,Object> newValues = current.values.get(id);
+                EnumSet<Field> changed = EnumSet.noneOf(Field.class);
+
+                for( Map.Entry<Field,Object> value : newValues.entrySet() ) {
+                    if( !equals(value.getValue(), oldValues.get(value.getKey())) ) {
+                        changed.add(value.getKey());
+                    }
+                }
+                if( !changed.isEmpty() ) {
+                    events.add(new ChangeEvent(family, ChangeType.CHANGED, id, changed, before, entry.getValue()));
+                }
+            }
+        }
+        for( Map.Entry<String,Object> entry : previous.resources.entrySet() ) {
+            if( !current.resources.containsKey(entry.getKey()) ) {
+                events.add(new ChangeEvent(family, ChangeType.DELETED, entry.getKey(), EnumSet.noneOf(Field.class), entry.getValue(), null));
+            }
+        }
+    }
+
+    static private @Nonnull List<ChangeEvent> copy(@Nonnull List<ChangeEvent> events) throws InternalException {
+        ArrayList<ChangeEvent> copies = new ArrayList<ChangeEvent>(events.size());
+
+        for( ChangeEvent event : events ) {
+            copies.add(new ChangeEvent(event.family, event.type, event.resourceId, event.changedFields, Copies.copy(event.previous), Copies.copy(event.current)));
+        }
+        return copies;
+    }
+
+    static private boolean equals(@Nullable Object a, @Nullable Object b) {
+        return (a == null ? b == null : a.equals(b));
+    }
+
+    static private @Nullable List<String> toList(@Nullable String[] values) {
+        return (values == null ? null : Arrays.asList(values));
+    }
+
+    private @Nonnull Snapshot load(@Nonnull SCE p, @Nonnull Family family) throws Exception {
+        Snapshot snapshot = new Snapshot();
+
+        switch( family ) {
+            case VIRTUAL_MACHINE:
+                for( VirtualMachine vm : p.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+                    EnumMap<Field,Object> values = new EnumMap<Field, Object>(Field.class);
+
+                    values.put(Field.VM_STATE, vm.getCurrentState());
+                    values.put(Field.VM_NAME, vm.getName());
+                    values.put(Field.VM_PRODUCT, vm.getProductId());
+                    values.put(Field.VM_PUBLIC_ADDRESSES, toList(vm.getPublicIpAddresses()));
+                    values.put(Field.VM_PRIVATE_ADDRESSES, toList(vm.getPrivateIpAddresses()));
+                    values.put(Field.VM_TAGS, new HashMap<String, String>(vm.getTags()));
+                    snapshot.resources.put(vm.getProviderVirtualMachineId(), Copies.copy(vm));
+                    snapshot.values.put(vm.getProviderVirtualMachineId(), values);
+                }
+                break;
+            case VOLUME:
+                for( Volume volume : p.getComputeServices().getVolumeSupport().listVolumes() ) {
+                    EnumMap<Field,Object> values = new EnumMap<Field, Object>(Field.class);
+
+                    values.put(Field.VOLUME_STATE, volume.getCurrentState());
+                    values.put(Field.VOLUME_NAME, volume.getName());
+                    values.put(Field.VOLUME_SIZE, volume.getSizeInGigabytes());
+                    values.put(Field.VOLUME_ATTACHMENT, volume.getProviderVirtualMachineId() == null ? null : volume.getProviderVirtualMachineId() + ":" + volume.getDeviceId());
+                    snapshot.resources.put(volume.getProviderVolumeId(), Copies.copy(volume));
+                    snapshot.values.put(volume.getProviderVolumeId(), values);
+                }
+                break;
+            case IP_ADDRESS:
+                for( IpAddress address : p.getNetworkServices().getIpAddressSupport().listPublicIpPool(false) ) {
+                    EnumMap<Field,Object> values = new EnumMap<Field, Object>(Field.class);
+
+                    values.put(Field.ADDRESS_SERVER, address.getServerId());
+                    values.put(Field.ADDRESS_LOAD_BALANCER, address.getProviderLoadBalancerId());
+                    snapshot.resources.put(address.getProviderIpAddressId(), Copies.copy(address));
+                    snapshot.values.put(address.getProviderIpAddressId(), values);
+                }
+                break;
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ibm.sce.compute.vm.InstanceView;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copies the Dasein model objects (virtual machines, volumes, addresses, images, and the like) held by the shared
+ * caches in this module. The model objects are mutable, so anything kept for other callers is copied on the way in
+ * and handed out as a copy on the way out; a caller changing the object it was given never changes what anyone else
+ * sees. Copies are field for field with their own arrays, lists, and tag maps; the values in those (strings, enums,
+ * and the like) are immutable and shared.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class Copies {
+    /**
+     * Copies a model object. Lazily decoded instance views come back as fully decoded plain virtual machines.
+     * @param value the object to copy
+     * @param <T> the type of object
+     * @return a copy of the object or <code>null</code> if it was <code>null</code>
+     * @throws InternalException the object's class cannot be instantiated reflectively
+     */
+    @SuppressWarnings("unchecked")
+    static public @Nullable <T> T copy(@Nullable T value) throws InternalException {
+        if( value == null ) {
+            return null;
+        }
+        if( value instanceof InstanceView ) {
+            return (T)((InstanceView)value).materialize();
+        }
+        Class<T> type = (Class<T>)value.getClass();
+        T copy;
+
+        try {
+            copy = type.newInstance();
+        }
+        catch( InstantiationException e ) {
+            throw new InternalException(e);
+        }
+        catch( IllegalAccessException e ) {
+            throw new InternalException(e);
+        }
+        copyFields(type, value, copy);
+        return copy;
+    }
+
+    /**
+     * Copies each of the specified values.
+     * @param values the values to copy
+     * @param <T> the type of value
+     * @return a list of copies in the same order
+     * @throws InternalException a value's class cannot be instantiated reflectively
+     */
+    static public @Nonnull <T> ArrayList<T> copyAll(@Nonnull Iterable<T> values) throws InternalException {
+        ArrayList<T> copies = new ArrayList<T>();
+
+        for( T value : values ) {
+            copies.add(copy(value));
+        }
+        return copies;
+    }
+
+    /**
+     * Copies every field declared by the specified type and its superclasses from one object to another.
+     * @param type the type whose fields are copied
+     * @param source the object being copied
+     * @param target the object receiving the copy
+     * @param <T> the type whose fields are copied
+     * @throws InternalException a field could not be accessed reflectively
+     */
+    static public <T> void copyFields(@Nonnull Class<? super T> type, @Nonnull T source, @Nonnull T target) throws InternalException {
+        Class<?> c = type;
+
+        while( c != null && !c.equals(Object.class) ) {
+            for( Field field : c.getDeclaredFields() ) {
+                if( Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers()) ) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    field.set(target, copyValue(field.get(source)));
+                }
+                catch( IllegalAccessException e ) {
+                    throw new InternalException(e);
+                }
+            }
+            c = c.getSuperclass();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static private @Nullable Object copyValue(@Nullable Object value) {
+        if( value == null ) {
+            return null;
+        }
+        if( value.getClass().isArray() ) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+        if( value instanceof Map ) {
+            return new HashMap<Object,Object>((Map<Object,Object>)value);
+        }
+        if( value instanceof Collection ) {
+            return new ArrayList<Object>((Collection<Object>)value);
+        }
+        return value;
+    }
+}
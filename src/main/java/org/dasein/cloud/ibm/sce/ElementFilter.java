@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A predicate evaluated against an element in the raw bytes of a listing before anything is decoded from it. List
+ * operations pass filters to {@link XmlScanner#findAll(String, int, int, ElementFilter)} so that elements describing
+ * resources the caller does not want are skipped without building DOM nodes or model objects for them. Filters
+ * compare child element text byte for byte wherever possible.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public abstract class ElementFilter {
+    /**
+     * Matches elements that have every one of the specified filters. Null filters are ignored.
+     * @param filters the filters to combine
+     * @return a filter matching elements that match all of the specified filters
+     */
+    static public @Nonnull ElementFilter all(@Nonnull final ElementFilter ... filters) {
+        return new ElementFilter() {
+            @Override
+            public boolean accept(@Nonnull XmlScanner scanner, int start, int end) {
+                for( ElementFilter filter : filters ) {
+                    if( filter != null && !filter.accept(scanner, start, end) ) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Matches elements whose named child holds exactly the specified text.
+     * @param child the name of the child element
+     * @param value the text the child must hold
+     * @return a filter matching elements whose child holds the specified value
+     */
+    static public @Nonnull ElementFilter childEquals(@Nonnull String child, @Nonnull String value) {
+        return childIn(child, value);
+    }
+
+    /**
+     * Matches elements whose named child holds one of the specified values.
+     * @param child the name of the child element
+     * @param values the acceptable values
+     * @return a filter matching elements whose child holds any of the specified values
+     */
+    static public @Nonnull ElementFilter childIn(@Nonnull final String child, @Nonnull final String ... values) {
+        return new ElementFilter() {
+            @Override
+            public boolean accept(@Nonnull XmlScanner scanner, int start, int end) {
+                int[] range = scanner.findChild(child, start, end);
+
+                if( range == null ) {
+                    return false;
+                }
+                for( String value : values ) {
+                    if( scanner.textEquals(range[0], range[1], value) ) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Matches elements whose named child is missing, empty, or holds none of the specified values.
+     * @param child the name of the child element
+     * @param values the values to reject
+     * @return a filter matching elements whose child holds none of the specified values
+     */
+    static public @Nonnull ElementFilter childNotIn(@Nonnull String child, @Nonnull String ... values) {
+        return not(childIn(child, values));
+    }
+
+    /**
+     * Matches elements whose named child holds text beginning with the specified prefix.
+     * @param child the name of the child element
+     * @param prefix the prefix the child text must have
+     * @return a filter matching elements whose child starts with the prefix
+     */
+    static public @Nonnull ElementFilter childStartsWith(@Nonnull final String child, @Nonnull final String prefix) {
+        return new ElementFilter() {
+            @Override
+            public boolean accept(@Nonnull XmlScanner scanner, int start, int end) {
+                int[] range = scanner.findChild(child, start, end);
+
+                return (range != null && scanner.textStartsWith(range[0], range[1], prefix));
+            }
+        };
+    }
+
+    /**
+     * Matches elements that have no child with the specified name or whose child with that name is empty.
+     * @param child the name of the child element
+     * @return a filter matching elements lacking a value for the child
+     */
+    static public @Nonnull ElementFilter childMissing(@Nonnull final String child) {
+        return new ElementFilter() {
+            @Override
+            public boolean accept(@Nonnull XmlScanner scanner, int start, int end) {
+                int[] range = scanner.findChild(child, start, end);
+
+                return (range == null || scanner.text(range[0], range[1]) == null);
+            }
+        };
+    }
+
+    /**
+     * Matches elements holding a child element that itself matches the specified filter, such as the
+     * <code>ID</code> within an instance's <code>Vlan</code>.
+     * @param child the name of the child element
+     * @param filter the filter the child must match
+     * @return a filter matching elements whose child matches the nested filter
+     */
+    static public @Nonnull ElementFilter child(@Nonnull final String child, @Nonnull final ElementFilter filter) {
+        return new ElementFilter() {
+            @Override
+            public boolean accept(@Nonnull XmlScanner scanner, int start, int end) {
+                int[] range = scanner.findChild(child, start, end);
+
+                return (range != null && filter.accept(scanner, range[0], range[1]));
+            }
+        };
+    }
+
+    /**
+     * Matches elements that the specified filter rejects.
+     * @param filter the filter to negate
+     * @return the negated filter
+     */
+    static public @Nonnull ElementFilter not(@Nonnull final ElementFilter filter) {
+        return new ElementFilter() {
+            @Override
+            public boolean accept(@Nonnull XmlScanner scanner, int start, int end) {
+                return !filter.accept(scanner, start, end);
+            }
+        };
+    }
+
+    /**
+     * Combines the specified filter with another, either of which may be absent.
+     * @param a a filter or <code>null</code>
+     * @param b another filter or <code>null</code>
+     * @return a filter matching what both match, or whichever is present
+     */
+    static public @Nullable ElementFilter and(@Nullable ElementFilter a, @Nullable ElementFilter b) {
+        if( a == null ) {
+            return b;
+        }
+        if( b == null ) {
+            return a;
+        }
+        return all(a, b);
+    }
+
+    /**
+     * Evaluates this filter against the element whose content lies between the specified offsets.
+     * @param scanner the scanner over the listing
+     * @param start the content start of the element
+     * @param end the content end of the element
+     * @return true if the element should be decoded
+     */
+    public abstract boolean accept(@Nonnull XmlScanner scanner, int start, int end);
+}
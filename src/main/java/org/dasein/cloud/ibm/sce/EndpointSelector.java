@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ranks the SmartCloud endpoints configured for a context so that each request goes to the fastest endpoint
+ * currently believed to be healthy. The primary endpoint is the one in the provider context; additional endpoints
+ * may be listed (comma-separated) in the <code>endpoints</code> custom property. Latency is tracked as an
+ * exponentially weighted moving average of observed response times and health is tracked passively: an endpoint
+ * that fails to connect is taken out of rotation for a back-off period that doubles with each consecutive failure.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class EndpointSelector {
+    static private final double ALPHA              = 0.3;
+    static private final long   MIN_BACKOFF        = 5000L;
+    static private final long   MAX_BACKOFF        = 300000L;
+    static private final long   DEFAULT_DNS_TTL    = 60000L;
+    static private final int    MAX_PER_ROUTE      = 20;
+    static private final int    MAX_CONNECTIONS    = 100;
+
+    static private final ConcurrentHashMap<String,EndpointSelector> selectors = new ConcurrentHashMap<String, EndpointSelector>();
+    static private final ConcurrentHashMap<String,ResolvedHost>     hosts     = new ConcurrentHashMap<String, ResolvedHost>();
+    static private final ConcurrentHashMap<Long,ClientConnectionManager> managers = new ConcurrentHashMap<Long, ClientConnectionManager>();
+
+    static private class Endpoint {
+        public final String url;
+        public double       latency  = -1;
+        public int          failures = 0;
+        public long         downUntil = 0L;
+
+        public Endpoint(@Nonnull String url) { this.url = url; }
+    }
+
+    static private class ResolvedHost {
+        public InetAddress[] addresses;
+        public long          expiration;
+    }
+
+    /**
+     * Provides the selector for the endpoints configured in the specified context. Selectors are shared across all
+     * contexts with the same endpoint configuration so that health and latency observations accumulate in one place.
+     * @param ctx the context for which endpoints are being selected
+     * @return the selector for the context's endpoints
+     * @throws SCEConfigException no endpoint was configured in the context
+     */
+    static public @Nonnull EndpointSelector getInstance(@Nonnull ProviderContext ctx) throws SCEConfigException {
+        List<String> urls = new ArrayList<String>();
+        String primary = ctx.getEndpoint();
+
+        if( primary == null ) {
+            throw new SCEConfigException("No endpoint was provided for this request");
+        }
+        addEndpoint(urls, primary);
+
+        Properties p = ctx.getCustomProperties();
+
+        if( p != null ) {
+            String alternates = p.getProperty("endpoints");
+
+            if( alternates != null ) {
+                for( String url : alternates.split(",") ) {
+                    addEndpoint(urls, url);
+                }
+            }
+        }
+        StringBuilder key = new StringBuilder();
+
+        for( String url : urls ) {
+            key.append(url).append(",");
+        }
+        EndpointSelector selector = selectors.get(key.toString());
+
+        if( selector == null ) {
+            selector = new EndpointSelector(urls);
+
+            EndpointSelector existing = selectors.putIfAbsent(key.toString(), selector);
+
+            if( existing != null ) {
+                selector = existing;
+            }
+        }
+        return selector;
+    }
+
+    static private void addEndpoint(@Nonnull List<String> urls, @Nonnull String url) {
+        url = url.trim();
+        if( url.length() < 1 ) {
+            return;
+        }
+        if( !url.endsWith("/") ) {
+            url = url + "/";
+        }
+        if( !urls.contains(url) ) {
+            urls.add(url);
+        }
+    }
+
+    /**
+     * Provides the pooled connection manager for requests made under the specified context. Managers are shared by
+     * every client with the same DNS cache settings and live for the life of the JVM, so connections to an endpoint
+     * are kept alive and reused across requests and failover attempts rather than opened by a new pool each time.
+     * @param ctx the context whose settings govern the manager
+     * @return a shared connection manager
+     */
+    static public @Nonnull ClientConnectionManager getConnectionManager(@Nonnull ProviderContext ctx) {
+        long ttl = getDnsTtl(ctx);
+        ClientConnectionManager manager = managers.get(ttl);
+
+        if( manager == null ) {
+            PoolingClientConnectionManager pool = new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault(), getResolver(ttl));
+
+            pool.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+            pool.setMaxTotal(MAX_CONNECTIONS);
+            manager = managers.putIfAbsent(ttl, pool);
+            if( manager == null ) {
+                manager = pool;
+            }
+            else {
+                pool.shutdown();
+            }
+        }
+        return manager;
+    }
+
+    static private long getDnsTtl(@Nonnull ProviderContext ctx) {
+        long ttl = DEFAULT_DNS_TTL;
+        Properties p = ctx.getCustomProperties();
+
+        if( p != null ) {
+            String value = p.getProperty("dnsCacheTtl");
+
+            if( value != null ) {
+                try {
+                    ttl = Long.parseLong(value.trim()) * 1000L;
+                }
+                catch( NumberFormatException ignore ) {
+                    // ignore
+                }
+            }
+        }
+        return ttl;
+    }
+
+    /**
+     * Provides a DNS resolver that caches lookups for the time specified in the <code>dnsCacheTtl</code> custom
+     * property (in seconds, defaulting to one minute) so that host resolution stays out of the request path.
+     * @param ctx the context whose settings govern the resolver
+     * @return a caching DNS resolver
+     */
+    static public @Nonnull DnsResolver getResolver(@Nonnull ProviderContext ctx) {
+        return getResolver(getDnsTtl(ctx));
+    }
+
+    static private @Nonnull DnsResolver getResolver(final long timeout) {
+        return new DnsResolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                ResolvedHost resolved = hosts.get(host);
+                long now = System.currentTimeMillis();
+
+                if( resolved == null || resolved.expiration < now ) {
+                    resolved = new ResolvedHost();
+                    resolved.addresses = InetAddress.getAllByName(host);
+                    resolved.expiration = now + timeout;
+                    hosts.put(host, resolved);
+                }
+                return resolved.addresses.clone();
+            }
+        };
+    }
+
+    private final List<Endpoint> endpoints;
+
+    private EndpointSelector(@Nonnull List<String> urls) {
+        endpoints = new ArrayList<Endpoint>();
+        for( String url : urls ) {
+            endpoints.add(new Endpoint(url));
+        }
+    }
+
+    /**
+     * Lists the endpoints in the order in which they should be attempted. Healthy endpoints come first, fastest
+     * first, with endpoints that have not yet been measured ahead of the others so they get sampled. Endpoints in
+     * back-off follow, soonest to recover first, so that a request is still attempted when everything looks down.
+     * @return the endpoint URLs, each ending with a slash, in attempt order
+     */
+    public synchronized @Nonnull List<String> rank() {
+        final long now = System.currentTimeMillis();
+        ArrayList<Endpoint> ordered = new ArrayList<Endpoint>(endpoints);
+
+        Collections.sort(ordered, new Comparator<Endpoint>() {
+            @Override
+            public int compare(Endpoint a, Endpoint b) {
+                boolean aUp = (a.downUntil <= now), bUp = (b.downUntil <= now);
+
+                if( aUp != bUp ) {
+                    return (aUp ? -1 : 1);
+                }
+                if( !aUp ) {
+                    return (a.downUntil < b.downUntil ? -1 : (a.downUntil == b.downUntil ? 0 : 1));
+                }
+                return Double.compare(a.latency, b.latency);
+            }
+        });
+        ArrayList<String> urls = new ArrayList<String>();
+
+        for( Endpoint e : ordered ) {
+            urls.add(e.url);
+        }
+        return urls;
+    }
+
+    /**
+     * Records a completed request against the specified endpoint.
+     * @param url the endpoint that served the request
+     * @param millis the time it took to get a response
+     */
+    public synchronized void recordSuccess(@Nonnull String url, long millis) {
+        Endpoint e = find(url);
+
+        if( e != null ) {
+            e.latency = (e.latency < 0 ? millis : (ALPHA * millis) + ((1.0 - ALPHA) * e.latency));
+            e.failures = 0;
+            e.downUntil = 0L;
+        }
+    }
+
+    /**
+     * Records a failure to reach the specified endpoint, taking it out of rotation for a back-off period.
+     * @param url the endpoint that could not be reached
+     */
+    public synchronized void recordFailure(@Nonnull String url) {
+        Endpoint e = find(url);
+
+        if( e != null ) {
+            long backoff = MIN_BACKOFF << Math.min(e.failures, 6);
+
+            e.failures++;
+            e.downUntil = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF);
+        }
+    }
+
+    private @Nullable Endpoint find(@Nonnull String url) {
+        for( Endpoint e : endpoints ) {
+            if( e.url.equals(url) ) {
+                return e;
+            }
+        }
+        return null;
+    }
+}
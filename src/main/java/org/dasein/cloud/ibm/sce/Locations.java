@@ -25,6 +25,9 @@ import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.dc.DataCenterServices;
 import org.dasein.cloud.dc.Region;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -34,6 +37,7 @@ import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 
 /**
@@ -77,40 +81,57 @@ public class Locations implements DataCenterServices {
 
     @Override
     public ExtendedRegion getRegion(String providerRegionId) throws InternalException, CloudException {
-        try {
-            ProviderContext ctx = provider.getContext();
+        // IBM incomprehensibly throws a 500 exception if it gets an invalid region id, so every lookup is answered
+        // from the cached list of locations, which also serves as the record of which IDs do not exist
+        return getRegionIndex().regions.get(providerRegionId);
+    }
+
+    static private class RegionIndex {
+        public final LinkedHashMap<String,ExtendedRegion> regions = new LinkedHashMap<String, ExtendedRegion>();
+    }
 
-            if( ctx == null ) {
-                throw new SCEConfigException("No context was configured for this request");
+    private @Nonnull RegionIndex getRegionIndex() throws InternalException, CloudException {
+        SCECache<RegionIndex> cache = SCECache.getInstance("regions", CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Hour>(10, TimePeriod.HOUR), new TimePeriod<Hour>(5, TimePeriod.HOUR), new SCECache.Weigher<RegionIndex>() {
+            @Override
+            public long weigh(@Nonnull RegionIndex index) {
+                return index.regions.size();
             }
-            SCEMethod method = new SCEMethod(provider);
+        });
+        RegionIndex index = cache.get(provider, new SCECache.Loader<RegionIndex>() {
+            @Override
+            public @Nullable RegionIndex load() throws CloudException, InternalException {
+                return loadRegionIndex();
+            }
+        });
 
-            Document xml = method.getAsXML("locations/" + providerRegionId);
+        return (index == null ? new RegionIndex() : index);
+    }
 
-            if( xml == null ) {
-                return null;
-            }
-            NodeList locations = xml.getElementsByTagName("Location");
+    private @Nullable RegionIndex loadRegionIndex() throws InternalException, CloudException {
+        ProviderContext ctx = provider.getContext();
 
-            for( int i=0; i<locations.getLength(); i++ ) {
-                Node item = locations.item(i);
-                ExtendedRegion region = toRegion(ctx, item);
+        if( ctx == null ) {
+            throw new SCEConfigException("No context was configured for this request");
+        }
+        SCEMethod method = new SCEMethod(provider);
+        Document xml = method.getAsXML("locations");
 
-                if( region != null ) {
-                    return region;
-                }
-            }
+        if( xml == null ) {
             return null;
         }
-        catch( SCEException e ) {
-            // IBM incomprehensibly throws a 500 exception if it gets an invalid region id, so this verifies the situation
-            for( Region r : listRegions() ) {
-                if( r.getProviderRegionId().equals(providerRegionId) ) {
-                    return (ExtendedRegion)r;
-                }
+        RegionIndex index = new RegionIndex();
+        NodeList locations = xml.getElementsByTagName("Location");
+
+        for( int i=0; i<locations.getLength(); i++ ) {
+            Node item = locations.item(i);
+            ExtendedRegion region = toRegion(ctx, item);
+
+            if( region != null ) {
+                index.regions.put(region.getProviderRegionId(), region);
             }
-            return null;
         }
+        // an empty listing is not cached so a transient bad response cannot hide every region for hours
+        return (index.regions.isEmpty() ? null : index);
     }
 
     @Override
@@ -132,30 +153,7 @@ public class Locations implements DataCenterServices {
 
     @Override
     public @Nonnull Collection<Region> listRegions() throws InternalException, CloudException {
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new SCEConfigException("No context was configured for this request");
-        }
-        SCEMethod method = new SCEMethod(provider);
-
-        Document xml = method.getAsXML("locations");
-
-        if( xml == null ) {
-            return Collections.emptyList();
-        }
-        NodeList locations = xml.getElementsByTagName("Location");
-        ArrayList<Region> regions = new ArrayList<Region>();
-
-        for( int i=0; i<locations.getLength(); i++ ) {
-            Node item = locations.item(i);
-            Region region = toRegion(ctx, item);
-
-            if( region != null ) {
-                regions.add(region);
-            }
-        }
-        return regions;
+        return new ArrayList<Region>(getRegionIndex().regions.values());
     }
 
     private @Nullable ExtendedRegion toRegion(@SuppressWarnings("UnusedParameters") @Nonnull ProviderContext ctx, @Nullable Node node) throws CloudException, InternalException {
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces point lookups for the same kind of resource that arrive within a short window into a single list call.
+ * The first lookup for a resource opens a batch and waits out the window; lookups arriving in the meantime join the
+ * batch; the list call happens once the window closes and every lookup in the batch is answered from its result.
+ * Each lookup receives its own copy of its result, so callers in the same batch never share an object.
+ * Batching is enabled by setting the <code>lookupBatchWindow</code> custom property to a window in milliseconds.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class LookupBatcher {
+    /**
+     * Performs the list call that satisfies a batch of lookups.
+     * @param <T> the type of resource being looked up
+     */
+    static public interface Loader<T> {
+        public @Nonnull Map<String,T> load() throws CloudException, InternalException;
+    }
+
+    static private class Batch {
+        public final CountDownLatch done = new CountDownLatch(1);
+        public Map<String,?>        results;
+        public CloudException       cloudError;
+        public InternalException    internalError;
+    }
+
+    static private final ConcurrentHashMap<String,Batch> batches = new ConcurrentHashMap<String, Batch>();
+
+    /**
+     * Looks up a single resource by ID, joining the open batch for that kind of resource if there is one.
+     * @param ctx the context in which the lookup is being made
+     * @param resource the name of the resource family (e.g. <code>instances</code>)
+     * @param window the time in milliseconds to hold a batch open
+     * @param id the ID of the resource to look up
+     * @param loader the list call that answers the batch
+     * @param <T> the type of resource being looked up
+     * @return the matching resource or <code>null</code> if the list call did not return it
+     * @throws CloudException an error occurred in the list call
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    static public @Nullable <T> T lookup(@Nonnull ProviderContext ctx, @Nonnull String resource, long window, @Nonnull String id, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        String key = resource + "|" + ctx.getEndpoint() + "|" + ctx.getAccountNumber() + "|" + ctx.getRegionId();
+        Batch batch = new Batch();
+        Batch open = batches.putIfAbsent(key, batch);
+
+        if( open != null ) {
+            return LookupBatcher.<T>await(open, id);
+        }
+        try {
+            try { Thread.sleep(window); }
+            catch( InterruptedException e ) {
+                // answer the lookups already in the batch now rather than abandoning them
+                Thread.currentThread().interrupt();
+            }
+            batches.remove(key, batch);
+            batch.results = loader.load();
+        }
+        catch( CloudException e ) {
+            batch.cloudError = e;
+        }
+        catch( InternalException e ) {
+            batch.internalError = e;
+        }
+        catch( RuntimeException e ) {
+            batch.internalError = new InternalException(e);
+        }
+        finally {
+            batches.remove(key, batch);
+            batch.done.countDown();
+        }
+        return LookupBatcher.<T>getResult(batch, id);
+    }
+
+    static private @Nullable <T> T await(@Nonnull Batch batch, @Nonnull String id) throws CloudException, InternalException {
+        try {
+            batch.done.await();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        return LookupBatcher.<T>getResult(batch, id);
+    }
+
+    @SuppressWarnings("unchecked")
+    static private @Nullable <T> T getResult(@Nonnull Batch batch, @Nonnull String id) throws CloudException, InternalException {
+        if( batch.cloudError != null ) {
+            throw batch.cloudError;
+        }
+        if( batch.internalError != null ) {
+            throw batch.internalError;
+        }
+        return Copies.copy((T)batch.results.get(id));
+    }
+}
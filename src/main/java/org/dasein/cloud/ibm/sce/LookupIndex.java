@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the resources seen by recent list calls so that point lookups for them can be answered without going back
+ * to the cloud. Every list call records what it decoded, and lookups consult the index before making a request of
+ * their own. A list call that returned everything in the region replaces what the index knows, so resources that have
+ * gone away are not served from it; a filtered list call only adds to it. The index keeps its own copies of the
+ * resources recorded (lazily decoded instance views are decoded in full so that the response they came from is not
+ * kept) and hands out copies of them, so callers changing what they were given never change what others see. Entries are trusted for the number of seconds set by the <code>lookupIndexMaxAge</code> custom property;
+ * the index is not used when the property is unset or 0. Lookups made by code that waits for a state change pass a
+ * bypass flag so they always see current data, and operations that change a resource forget its entry.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class LookupIndex {
+    static private class Entry {
+        public final Object value;
+        public final long   recorded;
+
+        public Entry(@Nonnull Object value, long recorded) {
+            this.value = value;
+            this.recorded = recorded;
+        }
+    }
+
+    static private final ConcurrentHashMap<String,ConcurrentHashMap<String,Entry>> indexes = new ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>>();
+
+    static private final AtomicLong lookupsAvoided = new AtomicLong(0L);
+
+    /**
+     * @return the number of point lookups answered from this index instead of from the cloud since the JVM started
+     */
+    static public long getLookupsAvoided() {
+        return lookupsAvoided.get();
+    }
+
+    static private long getMaxAge(@Nonnull SCE provider) {
+        return provider.getCustomLong("lookupIndexMaxAge", 0L) * 1000L;
+    }
+
+    static private @Nullable String getKey(@Nonnull SCE provider, @Nonnull String resource) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            return null;
+        }
+        return resource + "|" + ctx.getEndpoint() + "|" + ctx.getAccountNumber() + "|" + ctx.getRegionId();
+    }
+
+    static private @Nullable ConcurrentHashMap<String,Entry> getIndex(@Nonnull SCE provider, @Nonnull String resource, boolean create) {
+        String key = getKey(provider, resource);
+
+        if( key == null ) {
+            return null;
+        }
+        ConcurrentHashMap<String,Entry> index = indexes.get(key);
+
+        if( index == null && create ) {
+            index = new ConcurrentHashMap<String, Entry>();
+
+            ConcurrentHashMap<String,Entry> existing = indexes.putIfAbsent(key, index);
+
+            if( existing != null ) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Records copies of the resources returned by a list call, discarding entries that have aged out.
+     * @param provider the provider that made the list call
+     * @param resource the kind of resource listed (e.g. <code>storage</code>)
+     * @param values the listed resources, keyed by ID
+     * @param complete true if the list call returned every resource of the kind in the region, in which case the
+     * listed resources replace everything recorded before
+     * @throws InternalException a resource could not be copied
+     */
+    static public void record(@Nonnull SCE provider, @Nonnull String resource, @Nonnull Map<String,?> values, boolean complete) throws InternalException {
+        long maxAge = getMaxAge(provider);
+
+        if( maxAge < 1L ) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        ConcurrentHashMap<String,Entry> index;
+
+        if( complete ) {
+            String key = getKey(provider, resource);
+
+            if( key == null ) {
+                return;
+            }
+            index = new ConcurrentHashMap<String, Entry>();
+            put(index, values, now);
+            indexes.put(key, index);
+            return;
+        }
+        index = getIndex(provider, resource, true);
+        if( index == null ) {
+            return;
+        }
+        put(index, values, now);
+
+        Iterator<Entry> it = index.values().iterator();
+
+        while( it.hasNext() ) {
+            if( it.next().recorded < now - maxAge ) {
+                it.remove();
+            }
+        }
+    }
+
+    static private void put(@Nonnull Map<String,Entry> index, @Nonnull Map<String,?> values, long now) throws InternalException {
+        for( Map.Entry<String,?> value : values.entrySet() ) {
+            if( value.getKey() != null && value.getValue() != null ) {
+                index.put(value.getKey(), new Entry(Copies.copy(value.getValue()), now));
+            }
+        }
+    }
+
+    /**
+     * Looks up a resource seen by a recent list call.
+     * @param provider the provider making the lookup
+     * @param resource the kind of resource being looked up
+     * @param id the ID of the resource
+     * @param type the type of object expected
+     * @return a copy of the resource as last listed or <code>null</code> if it was not listed recently enough
+     * @throws InternalException the resource could not be copied
+     */
+    static public @Nullable <T> T lookup(@Nonnull SCE provider, @Nonnull String resource, @Nonnull String id, @Nonnull Class<T> type) throws InternalException {
+        long maxAge = getMaxAge(provider);
+
+        if( maxAge < 1L ) {
+            return null;
+        }
+        ConcurrentHashMap<String,Entry> index = getIndex(provider, resource, false);
+        Entry entry = (index == null ? null : index.get(id));
+
+        if( entry == null || entry.recorded < System.currentTimeMillis() - maxAge || !type.isInstance(entry.value) ) {
+            return null;
+        }
+        lookupsAvoided.incrementAndGet();
+        return Copies.copy(type.cast(entry.value));
+    }
+
+    /**
+     * Drops a resource that has just been changed so the next lookup goes to the cloud.
+     * @param provider the provider that changed the resource
+     * @param resource the kind of resource changed
+     * @param id the ID of the resource
+     */
+    static public void forget(@Nonnull SCE provider, @Nonnull String resource, @Nonnull String id) {
+        ConcurrentHashMap<String,Entry> index = getIndex(provider, resource, false);
+
+        if( index != null ) {
+            index.remove(id);
+        }
+    }
+}
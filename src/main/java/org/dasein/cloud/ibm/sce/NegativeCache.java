@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers resource IDs recently confirmed not to exist. SmartCloud answers a lookup of an unknown ID with a 500
+ * rather than a 404, so finding out that something is missing means falling back to listing every resource of that
+ * kind. Recording the answer for a short time (set in seconds by the <code>negativeCacheTtl</code> custom property,
+ * one minute by default) lets repeated probes for deleted or mistyped IDs skip the fallback. The cache holds a
+ * bounded number of IDs, dropping the least recently used first.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class NegativeCache {
+    static private final int  MAX_ENTRIES = 2000;
+    static private final long DEFAULT_TTL = 60000L;
+
+    static private final AtomicLong fallbacksAvoided = new AtomicLong(0L);
+
+    static private final LinkedHashMap<String,Long> absent = new LinkedHashMap<String, Long>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @return the number of lookups answered from this cache instead of from a list call since the JVM started
+     */
+    static public long getFallbacksAvoided() {
+        return fallbacksAvoided.get();
+    }
+
+    static private @Nonnull String getPrefix(@Nonnull ProviderContext ctx, @Nonnull String resource) {
+        return resource + "|" + ctx.getEndpoint() + "|" + ctx.getAccountNumber() + "|" + ctx.getRegionId() + "|";
+    }
+
+    /**
+     * Checks whether the specified ID was recently confirmed absent, counting a hit as an avoided fallback.
+     * @param provider the provider making the lookup
+     * @param resource the kind of resource being looked up (e.g. <code>storage</code>)
+     * @param id the ID being looked up
+     * @return true if the ID is known not to exist
+     */
+    static public boolean isAbsent(@Nonnull SCE provider, @Nonnull String resource, @Nonnull String id) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            return false;
+        }
+        String key = getPrefix(ctx, resource) + id;
+
+        synchronized( absent ) {
+            Long expiration = absent.get(key);
+
+            if( expiration == null ) {
+                return false;
+            }
+            if( expiration < System.currentTimeMillis() ) {
+                absent.remove(key);
+                return false;
+            }
+        }
+        fallbacksAvoided.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records that the specified ID does not exist.
+     * @param provider the provider that made the lookup
+     * @param resource the kind of resource that was looked up
+     * @param id the ID that was not found
+     */
+    static public void markAbsent(@Nonnull SCE provider, @Nonnull String resource, @Nonnull String id) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            return;
+        }
+        long ttl = provider.getCustomLong("negativeCacheTtl", DEFAULT_TTL/1000L) * 1000L;
+
+        if( ttl < 1L ) {
+            return;
+        }
+        synchronized( absent ) {
+            absent.put(getPrefix(ctx, resource) + id, System.currentTimeMillis() + ttl);
+        }
+    }
+
+    /**
+     * Forgets every ID recorded as absent for the specified kind of resource in the provider's context. Called
+     * whenever a resource of that kind is created since the new resource may carry a previously missing ID.
+     * @param provider the provider that created a resource
+     * @param resource the kind of resource that was created
+     */
+    static public void clear(@Nonnull SCE provider, @Nonnull String resource) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            return;
+        }
+        String prefix = getPrefix(ctx, resource);
+
+        synchronized( absent ) {
+            Iterator<String> it = absent.keySet().iterator();
+
+            while( it.hasNext() ) {
+                if( it.next().startsWith(prefix) ) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
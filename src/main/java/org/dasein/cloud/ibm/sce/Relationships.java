@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.Volume;
+import org.dasein.cloud.network.AddressType;
+import org.dasein.cloud.network.IpAddress;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.uom.time.Minute;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of how the instances, volumes, and addresses in a region relate to one another, built from one listing of
+ * each and indexed so that questions like "what is attached to this instance?" or "what is in this VLAN?" are answered
+ * with hash lookups instead of joins across separate list calls. Snapshots are shared through the
+ * <code>relationships</code> cache namespace and their indexes never change once built; the resources they hold are
+ * shared too, so every lookup hands out copies. Operations that change attachments or addresses invalidate the cached
+ * snapshot.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class Relationships {
+    static private @Nonnull SCECache<Relationships> getCache() {
+        return SCECache.getInstance("relationships", CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(2, TimePeriod.MINUTE), new TimePeriod<Minute>(1, TimePeriod.MINUTE), new SCECache.Weigher<Relationships>() {
+            @Override
+            public long weigh(@Nonnull Relationships relationships) {
+                return relationships.virtualMachines.size() + relationships.volumes.size() + relationships.addressCount;
+            }
+        });
+    }
+
+    /**
+     * Provides the current relationship snapshot for the provider's context, building one if none is cached.
+     * @param provider the provider whose resources are being related
+     * @return the relationship snapshot
+     * @throws CloudException an error occurred talking to SmartCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    static public @Nonnull Relationships getInstance(@Nonnull final SCE provider) throws CloudException, InternalException {
+        Relationships relationships = getCache().get(provider, new SCECache.Loader<Relationships>() {
+            @Override
+            public @Nonnull Relationships load() throws CloudException, InternalException {
+                return new Relationships(provider);
+            }
+        });
+
+        if( relationships == null ) {
+            throw new InternalException("Unable to build a relationship snapshot");
+        }
+        return relationships;
+    }
+
+    /**
+     * Discards the cached relationship snapshot for the provider's context so the next query sees current data.
+     * @param provider the provider whose snapshot should be discarded
+     * @throws InternalException no context was configured
+     */
+    static public void invalidate(@Nonnull SCE provider) throws InternalException {
+        getCache().invalidate(provider);
+    }
+
+    static private <K,V> void index(@Nonnull Map<K,List<V>> index, @Nullable K key, @Nonnull V value) {
+        if( key == null ) {
+            return;
+        }
+        List<V> values = index.get(key);
+
+        if( values == null ) {
+            values = new ArrayList<V>();
+            index.put(key, values);
+        }
+        values.add(value);
+    }
+
+    static private @Nonnull <V> List<V> lookup(@Nonnull Map<String,List<V>> index, @Nonnull String key) throws InternalException {
+        List<V> values = index.get(key);
+
+        return (values == null ? Collections.<V>emptyList() : Copies.copyAll(values));
+    }
+
+    private final long                                 timestamp;
+    private final HashMap<String,VirtualMachine>       virtualMachines    = new HashMap<String, VirtualMachine>();
+    private final HashMap<String,Volume>               volumes            = new HashMap<String, Volume>();
+    private final HashMap<String,List<Volume>>         volumesByInstance  = new HashMap<String, List<Volume>>();
+    private final HashMap<String,List<IpAddress>>      addressesByInstance = new HashMap<String, List<IpAddress>>();
+    private final HashMap<String,List<VirtualMachine>> instancesByVlan    = new HashMap<String, List<VirtualMachine>>();
+    private final HashMap<String,List<IpAddress>>      addressesByVlan    = new HashMap<String, List<IpAddress>>();
+    private final int                                  addressCount;
+
+    private Relationships(@Nonnull SCE provider) throws CloudException, InternalException {
+        timestamp = System.currentTimeMillis();
+        for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+            virtualMachines.put(vm.getProviderVirtualMachineId(), vm);
+            index(instancesByVlan, vm.getProviderVlanId(), vm);
+        }
+        for( Volume volume : provider.getComputeServices().getVolumeSupport().listVolumes() ) {
+            volumes.put(volume.getProviderVolumeId(), volume);
+            index(volumesByInstance, volume.getProviderVirtualMachineId(), volume);
+        }
+        Collection<IpAddress> addresses = provider.getNetworkServices().getIpAddressSupport().listAddresses();
+
+        for( IpAddress address : addresses ) {
+            index(addressesByInstance, address.getServerId(), address);
+            // VLAN listings have always shown only the public pool
+            if( AddressType.PUBLIC.equals(address.getAddressType()) ) {
+                index(addressesByVlan, address.getProviderVlanId(), address);
+            }
+        }
+        addressCount = addresses.size();
+    }
+
+    /**
+     * @return the time at which the listings behind this snapshot were taken
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @param vmId the instance being looked up
+     * @return a copy of the instance as of this snapshot or <code>null</code> if it did not exist
+     * @throws InternalException the instance could not be copied
+     */
+    public @Nullable VirtualMachine getVirtualMachine(@Nonnull String vmId) throws InternalException {
+        return Copies.copy(virtualMachines.get(vmId));
+    }
+
+    /**
+     * @param volumeId the volume whose attachment is being looked up
+     * @return a copy of the instance to which the volume was attached or <code>null</code> if it was not attached
+     * @throws InternalException the instance could not be copied
+     */
+    public @Nullable VirtualMachine getVirtualMachineForVolume(@Nonnull String volumeId) throws InternalException {
+        Volume volume = volumes.get(volumeId);
+        String vmId = (volume == null ? null : volume.getProviderVirtualMachineId());
+
+        return (vmId == null ? null : Copies.copy(virtualMachines.get(vmId)));
+    }
+
+    /**
+     * @param vmId the instance whose addresses are being listed
+     * @return copies of the public and private addresses assigned to the instance
+     * @throws InternalException the addresses could not be copied
+     */
+    public @Nonnull Collection<IpAddress> listAddresses(@Nonnull String vmId) throws InternalException {
+        return lookup(addressesByInstance, vmId);
+    }
+
+    /**
+     * @param vlanId the VLAN whose addresses are being listed
+     * @return copies of the public addresses belonging to the VLAN, the same addresses
+     * {@link org.dasein.cloud.network.IpAddressSupport#listIpPool(org.dasein.cloud.network.IPVersion, boolean)} lists
+     * @throws InternalException the addresses could not be copied
+     */
+    public @Nonnull Collection<IpAddress> listAddressesInVlan(@Nonnull String vlanId) throws InternalException {
+        return lookup(addressesByVlan, vlanId);
+    }
+
+    /**
+     * @param vlanId the VLAN whose instances are being listed
+     * @return copies of the instances attached to the VLAN
+     * @throws InternalException the instances could not be copied
+     */
+    public @Nonnull Collection<VirtualMachine> listVirtualMachinesInVlan(@Nonnull String vlanId) throws InternalException {
+        return lookup(instancesByVlan, vlanId);
+    }
+
+    /**
+     * @param vmId the instance whose volumes are being listed
+     * @return copies of the volumes attached to the instance
+     * @throws InternalException the volumes could not be copied
+     */
+    public @Nonnull Collection<Volume> listVolumes(@Nonnull String vmId) throws InternalException {
+        return lookup(volumesByInstance, vmId);
+    }
+}
@@ -22,8 +22,11 @@ package org.dasein.cloud.ibm.sce;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
 import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.ibm.sce.compute.SCECompute;
+import org.dasein.cloud.ibm.sce.compute.image.ImageCatalog;
 import org.dasein.cloud.ibm.sce.identity.SCEIdentity;
 import org.dasein.cloud.ibm.sce.network.SCENetwork;
 
@@ -31,6 +34,13 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provider class for integration with the IBM SmartCloud platform.
@@ -64,6 +74,29 @@ public class SCE extends AbstractCloud {
         return Logger.getLogger("dasein.cloud.ibm.sce." + type + "." + pkg + getLastItem(cls.getName()));
     }
 
+    static private ScheduledExecutorService background;
+
+    /**
+     * Provides the shared pool of daemon threads on which cached data is refreshed in the background.
+     * @return the background executor shared by all SmartCloud providers in this JVM
+     */
+    static public synchronized @Nonnull ScheduledExecutorService getBackgroundExecutor() {
+        if( background == null ) {
+            background = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread t = new Thread(r, "sce-background-" + count.incrementAndGet());
+
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return background;
+    }
+
     public SCE() { }
 
     @Override
@@ -96,6 +129,121 @@ public class SCE extends AbstractCloud {
         return "IBM";
     }
 
+    private StringPool strings;
+
+    private final HashSet<ImageCatalog> imageCatalogs = new HashSet<ImageCatalog>();
+
+    /**
+     * Records that this provider uses the specified image catalog so that the catalog can be released when the
+     * provider is closed.
+     * @param catalog the catalog in use
+     * @return true if this is the first time this provider has used the catalog
+     */
+    public synchronized boolean retain(@Nonnull ImageCatalog catalog) {
+        return imageCatalogs.add(catalog);
+    }
+
+    private volatile boolean closed;
+
+    /**
+     * Indicates whether this provider has been closed. Shared components that captured a provider for background
+     * work check this before using it and switch to another provider or stop.
+     * @return true once {@link #close()} has been called and until the provider is connected again
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Identifies the endpoint, region, and account of a context, the key under which shared components keep
+     * per-account data.
+     * @param ctx the context to identify
+     * @return the endpoint, region ID, and account number separated by <code>|</code>
+     */
+    static public @Nonnull String getContextKey(@Nonnull ProviderContext ctx) {
+        return ctx.getEndpoint() + "|" + ctx.getRegionId() + "|" + ctx.getAccountNumber();
+    }
+
+    /**
+     * Indicates whether this provider is open and connected to the specified context. A provider may be connected
+     * again to another account or region, so shared components that captured it for background work on behalf of one
+     * context check this rather than {@link #isClosed()} before using it.
+     * @param contextKey the context key as produced by {@link #getContextKey(ProviderContext)}
+     * @return true if this provider is open and its current context has that key
+     */
+    public boolean isConnectedTo(@Nonnull String contextKey) {
+        ProviderContext ctx = getContext();
+
+        return (!closed && ctx != null && contextKey.equals(getContextKey(ctx)));
+    }
+
+    @Override
+    public void connect(@Nonnull ProviderContext context, @Nullable CloudProvider computeProvider) {
+        // connecting closes out any earlier context first, so the provider is open only once that is done
+        super.connect(context, computeProvider);
+        closed = false;
+    }
+
+    @Override
+    public void close() {
+        ArrayList<ImageCatalog> released;
+
+        closed = true;
+        synchronized( this ) {
+            released = new ArrayList<ImageCatalog>(imageCatalogs);
+            imageCatalogs.clear();
+        }
+        for( ImageCatalog catalog : released ) {
+            catalog.release();
+        }
+        super.close();
+    }
+
+    /**
+     * Provides a snapshot of how this context's instances, volumes, and addresses relate to one another, such as which
+     * volumes and addresses are attached to an instance or which instances are in a VLAN.
+     * @return the current relationship snapshot
+     * @throws CloudException an error occurred talking to SmartCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Relationships getRelationships() throws CloudException, InternalException {
+        return Relationships.getInstance(this);
+    }
+
+    /**
+     * Provides the pool through which this provider's decoders share repeated values. Its size is set by the
+     * <code>stringPoolSize</code> custom property (4,096 values by default).
+     * @return the string pool for this provider
+     */
+    public synchronized @Nonnull StringPool getStringPool() {
+        if( strings == null ) {
+            strings = new StringPool((int)Math.max(0L, Math.min(Integer.MAX_VALUE, getCustomLong("stringPoolSize", 4096L))));
+        }
+        return strings;
+    }
+
+    /**
+     * Reads a numeric setting from the custom properties of the current context.
+     * @param name the name of the custom property
+     * @param defaultValue the value to use when the property is not set or is not a number
+     * @return the configured value or the default
+     */
+    public long getCustomLong(@Nonnull String name, long defaultValue) {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (p == null ? null : p.getProperty(name));
+
+        if( value == null ) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            return defaultValue;
+        }
+    }
+
     public long parseTimestamp(@Nullable String time) throws CloudException {
         if( time == null ) {
             return 0L;
@@ -135,7 +283,8 @@ public class SCE extends AbstractCloud {
                     logger.error("No context was specified for a context test");
                     return null;
                 }
-                if( method.getAsXML("locations") == null ) {
+                // always ask the cloud itself, never a stored catalog, so the credentials are really tested
+                if( method.getAsBytes("locations") == null ) {
                     logger.warn("Account number was invalid for context test: " + ctx.getAccountNumber());
                     return null;
                 }
@@ -0,0 +1,678 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cache through which the SmartCloud provider keeps data it has loaded from the cloud. Each namespace caches one
+ * kind of value, keyed by the endpoint, region, and/or account of the requesting context according to its
+ * {@link CacheLevel}. A value expires after the namespace's time to live; a value older than the namespace's refresh interval
+ * is still returned but reloaded in the background. Values requested often are refreshed ahead of their expiry by a
+ * background scan, with each refresh delayed by a random amount so they do not all fire together; an expired value is
+ * still served for a short grace period (a quarter of the time to live unless set in seconds by the
+ * <code>cacheStaleGrace</code> custom property) while it is reloaded, so foreground calls rarely wait on a load.
+ * Callers that validate an operation against cached data use {@link #getCurrent(SCE, Loader)}, which never serves an
+ * expired value. Only one thread loads a given key at a time, with concurrent requests waiting on its result.
+ * Background refreshes go through a provider that is still open and still connected to the entry's context: an entry
+ * whose provider has been closed or connected elsewhere lets go of it and its loader and is refreshed again only once a
+ * provider for its context reads it, and a load whose provider switches context midway is discarded rather than cached. A refresh that fails is retried after a
+ * growing delay and abandoned after repeated failures, leaving the value to expire and be loaded by the next caller.
+ * The background scan also discards values that are past their time to live and stale grace period. Every cached value
+ * has a weight (an approximate count of the items it holds, not its size in bytes), and when the combined weight of all
+ * namespaces exceeds the budget set by the <code>cacheWeightBudget</code> custom property (a number of items, 250,000
+ * by default) the least recently used values are evicted. Each namespace publishes hit, miss, and load statistics over
+ * JMX as <code>org.dasein.cloud.ibm.sce:type=Cache,name=<i>namespace</i></code>.
+ * @param <T> the type of value cached
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class SCECache<T> implements SCECacheMBean {
+    static private final Logger logger = SCE.getLogger(SCECache.class, "std");
+
+    static private final long DEFAULT_BUDGET = 250000L;
+    static private final int  HOT_ACCESSES   = 2;
+    static private final long SCAN_INTERVAL  = 30000L;
+    static private final long MIN_LEAD       = 60000L;
+    static private final int  MAX_FAILURES   = 5;
+
+    static private final Random random = new Random();
+
+    /**
+     * Loads the value for a key when it is missing or expired.
+     * @param <T> the type of value loaded
+     */
+    static public interface Loader<T> {
+        public @Nullable T load() throws CloudException, InternalException;
+    }
+
+    /**
+     * Determines the weight of a value for budget purposes.
+     * @param <T> the type of value weighed
+     */
+    static public interface Weigher<T> {
+        public long weigh(@Nonnull T value);
+    }
+
+    /**
+     * Notified whenever a value is discarded through invalidation or eviction.
+     */
+    static public interface InvalidationListener {
+        public void invalidated(@Nonnull String namespace, @Nonnull String key);
+    }
+
+    static private class Entry<T> {
+        public final T             value;
+        public final long          weight;
+        public final long          loaded;
+        public final AtomicInteger accesses = new AtomicInteger(0);
+        public final AtomicInteger failures = new AtomicInteger(0);
+        public final AtomicBoolean refreshing = new AtomicBoolean(false);
+        public volatile SCE        provider;
+        public volatile Loader<T>  loader;
+        public volatile long       lastAccess;
+        public volatile long       retryAt;
+
+        public Entry(@Nonnull T value, long weight, @Nullable SCE provider, @Nullable Loader<T> loader) {
+            this.value = value;
+            this.weight = weight;
+            this.provider = provider;
+            this.loader = loader;
+            this.loaded = System.currentTimeMillis();
+            this.lastAccess = loaded;
+        }
+    }
+
+    static private class Flight<T> {
+        public final CountDownLatch done = new CountDownLatch(1);
+        public T                    value;
+        public CloudException       cloudError;
+        public InternalException    internalError;
+        public RuntimeException     runtimeError;
+    }
+
+    static private final ConcurrentHashMap<String,SCECache<?>> namespaces  = new ConcurrentHashMap<String, SCECache<?>>();
+    static private final AtomicLong                            totalWeight = new AtomicLong(0L);
+
+    /**
+     * Provides the named cache namespace, creating it with the specified settings if it does not yet exist.
+     * @param namespace the name of the namespace
+     * @param level the part of the context that keys values in the namespace
+     * @param timeToLive the time after which a value must be reloaded before it is returned
+     * @param refreshAfter the time after which a value is reloaded in the background, <code>null</code> for never
+     * @param weigher the weigher for values in the namespace, <code>null</code> to give every value a weight of one
+     * @param <T> the type of value cached in the namespace
+     * @return the cache namespace
+     */
+    @SuppressWarnings("unchecked")
+    static public @Nonnull <T> SCECache<T> getInstance(@Nonnull String namespace, @Nonnull CacheLevel level, @Nonnull TimePeriod<?> timeToLive, @Nullable TimePeriod<?> refreshAfter, @Nullable Weigher<T> weigher) {
+        SCECache<?> cache = namespaces.get(namespace);
+
+        if( cache == null ) {
+            long ttl = timeToLive.convertTo(TimePeriod.MILLISECOND).longValue();
+            long refresh = (refreshAfter == null ? 0L : refreshAfter.convertTo(TimePeriod.MILLISECOND).longValue());
+            SCECache<T> created = new SCECache<T>(namespace, level, ttl, refresh, weigher);
+
+            cache = namespaces.putIfAbsent(namespace, created);
+            if( cache == null ) {
+                created.register();
+                cache = created;
+                startRefresher();
+            }
+        }
+        return (SCECache<T>)cache;
+    }
+
+    static private boolean refresherStarted = false;
+
+    static private synchronized void startRefresher() {
+        if( refresherStarted ) {
+            return;
+        }
+        refresherStarted = true;
+        SCE.getBackgroundExecutor().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for( SCECache<?> cache : namespaces.values() ) {
+                    try {
+                        cache.refreshAhead();
+                    }
+                    catch( Throwable t ) {
+                        logger.warn("Refresh-ahead scan of " + cache.namespace + " failed: " + t.getMessage());
+                    }
+                }
+            }
+        }, SCAN_INTERVAL, SCAN_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private final ConcurrentHashMap<String,Entry<T>>         entries   = new ConcurrentHashMap<String, Entry<T>>();
+    private final ConcurrentHashMap<String,Flight<T>>        flights   = new ConcurrentHashMap<String, Flight<T>>();
+    private final CopyOnWriteArrayList<InvalidationListener> listeners = new CopyOnWriteArrayList<InvalidationListener>();
+
+    private final String     namespace;
+    private final CacheLevel level;
+    private final long       timeToLive;
+    private final long       refreshAfter;
+    private final Weigher<T> weigher;
+
+    private final AtomicLong hits         = new AtomicLong(0L);
+    private final AtomicLong misses       = new AtomicLong(0L);
+    private final AtomicLong loads        = new AtomicLong(0L);
+    private final AtomicLong loadFailures = new AtomicLong(0L);
+    private final AtomicLong loadNanos    = new AtomicLong(0L);
+    private final AtomicLong evictions    = new AtomicLong(0L);
+    private final AtomicLong staleHits    = new AtomicLong(0L);
+    private final AtomicLong refreshes    = new AtomicLong(0L);
+
+    private SCECache(@Nonnull String namespace, @Nonnull CacheLevel level, long timeToLive, long refreshAfter, @Nullable Weigher<T> weigher) {
+        this.namespace = namespace;
+        this.level = level;
+        this.timeToLive = timeToLive;
+        this.refreshAfter = refreshAfter;
+        this.weigher = weigher;
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            server.registerMBean(this, new ObjectName("org.dasein.cloud.ibm.sce:type=Cache,name=" + ObjectName.quote(namespace)));
+        }
+        catch( Exception e ) {
+            logger.debug("Unable to register JMX statistics for cache " + namespace + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers a listener to be told whenever a value in this namespace is invalidated or evicted.
+     * @param listener the listener to register
+     */
+    public void addInvalidationListener(@Nonnull InvalidationListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeInvalidationListener(@Nonnull InvalidationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Provides the cached value for the provider's context, loading it if it is missing or expired.
+     * @param provider the provider whose context keys the value and through which any background refresh is done
+     * @param loader the loader for the value
+     * @return the value, or <code>null</code> if the loader found nothing
+     * @throws CloudException an error occurred loading the value from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable T get(@Nonnull SCE provider, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        return get(provider, loader, true);
+    }
+
+    /**
+     * Provides the cached value for the provider's context only if it is within its time to live, loading it
+     * otherwise. Unlike {@link #get(SCE, Loader)}, an expired value is never served during the stale grace period, so
+     * callers that validate an operation against the cache never see data past its time to live.
+     * @param provider the provider whose context keys the value and through which any background refresh is done
+     * @param loader the loader for the value
+     * @return the value, or <code>null</code> if the loader found nothing
+     * @throws CloudException an error occurred loading the value from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable T getCurrent(@Nonnull SCE provider, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        return get(provider, loader, false);
+    }
+
+    private @Nullable T get(@Nonnull SCE provider, @Nonnull Loader<T> loader, boolean allowStale) throws CloudException, InternalException {
+        String key = getKey(provider);
+        Entry<T> entry = entries.get(key);
+        long now = System.currentTimeMillis();
+
+        if( entry != null ) {
+            long age = now - entry.loaded;
+
+            if( !isBound(entry.provider, key) ) {
+                entry.provider = provider;
+                entry.loader = loader;
+            }
+            if( age < timeToLive ) {
+                hits.incrementAndGet();
+                entry.lastAccess = now;
+                entry.accesses.incrementAndGet();
+                if( refreshAfter > 0L && age >= refreshAfter ) {
+                    refresh(key, entry, provider, loader, 0L);
+                }
+                return entry.value;
+            }
+            if( allowStale && age < timeToLive + getGrace(provider) ) {
+                staleHits.incrementAndGet();
+                entry.lastAccess = now;
+                entry.accesses.incrementAndGet();
+                refresh(key, entry, provider, loader, 0L);
+                return entry.value;
+            }
+        }
+        misses.incrementAndGet();
+        return load(provider, key, loader);
+    }
+
+    private long getGrace(@Nullable SCE provider) {
+        long grace = (provider == null ? -1L : provider.getCustomLong("cacheStaleGrace", -1L));
+
+        return (grace < 0L ? timeToLive/4 : grace * 1000L);
+    }
+
+    /**
+     * Indicates whether a provider is open and connected to the context behind a key, so that loading through it
+     * produces the data for that key.
+     */
+    private boolean isBound(@Nullable SCE provider, @Nonnull String key) {
+        if( provider == null || provider.isClosed() ) {
+            return false;
+        }
+        try {
+            return key.equals(getKey(provider));
+        }
+        catch( InternalException e ) {
+            return false;
+        }
+    }
+
+    private void detach(@Nonnull Entry<T> entry, @Nonnull SCE provider) {
+        if( entry.provider == provider ) {
+            entry.provider = null;
+            entry.loader = null;
+        }
+    }
+
+    /**
+     * Schedules a background reload of an entry unless one is already pending, its provider has been closed or
+     * connected to another context, or its earlier refreshes failed too recently or too often.
+     */
+    private void refresh(@Nonnull final String key, @Nonnull final Entry<T> entry, @Nonnull final SCE provider, @Nonnull final Loader<T> loader, long delay) {
+        if( !isBound(provider, key) || entry.failures.get() >= MAX_FAILURES || System.currentTimeMillis() < entry.retryAt ) {
+            return;
+        }
+        if( flights.containsKey(key) || !entry.refreshing.compareAndSet(false, true) ) {
+            return;
+        }
+        SCE.getBackgroundExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if( !isBound(provider, key) ) {
+                        detach(entry, provider);
+                        return;
+                    }
+                    refreshes.incrementAndGet();
+                    load(provider, key, loader);
+                }
+                catch( Throwable t ) {
+                    int failures = entry.failures.incrementAndGet();
+
+                    if( failures >= MAX_FAILURES ) {
+                        logger.warn("Giving up on refreshing " + namespace + " for " + key + " after " + failures + " failures: " + t.getMessage());
+                    }
+                    else {
+                        entry.retryAt = System.currentTimeMillis() + Math.min(timeToLive, SCAN_INTERVAL << failures);
+                        logger.warn("Unable to refresh " + namespace + " for " + key + ": " + t.getMessage());
+                    }
+                }
+                finally {
+                    entry.refreshing.set(false);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Discards the entries past their time to live and stale grace period and lets go of providers that have been
+     * closed or connected to another context. Then finds
+     * the entries that have been read repeatedly since they were loaded and will expire before the scan after next,
+     * and schedules each for a reload at a random point within the first half of the time it has left.
+     */
+    private void refreshAhead() {
+        long now = System.currentTimeMillis();
+        long lead = Math.max(MIN_LEAD, timeToLive/10);
+
+        for( Map.Entry<String,Entry<T>> e : entries.entrySet() ) {
+            Entry<T> entry = e.getValue();
+            SCE provider = entry.provider;
+            Loader<T> loader = entry.loader;
+            long remaining = timeToLive - (now - entry.loaded);
+
+            if( remaining + getGrace(provider) <= 0L ) {
+                remove(e.getKey(), entry);
+                continue;
+            }
+            if( provider != null && !isBound(provider, e.getKey()) ) {
+                detach(entry, provider);
+                continue;
+            }
+            if( provider == null || loader == null || entry.accesses.get() < HOT_ACCESSES || remaining > lead ) {
+                continue;
+            }
+            long jitter = (remaining > 1L ? (long)(random.nextDouble() * (remaining/2)) : 0L);
+
+            refresh(e.getKey(), entry, provider, loader, jitter);
+        }
+    }
+
+    /**
+     * Loads the value for the provider's context from the cloud regardless of what is cached, as when a cached value
+     * lacks something that may have been created since it was loaded. A load already in flight for the context is
+     * joined rather than repeated.
+     * @param provider the provider whose context keys the value
+     * @param loader the loader for the value
+     * @return the freshly loaded value, or <code>null</code> if the loader found nothing
+     * @throws CloudException an error occurred loading the value from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable T reload(@Nonnull SCE provider, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        misses.incrementAndGet();
+        return load(provider, getKey(provider), loader);
+    }
+
+    /**
+     * Provides the cached value for the provider's context without loading it.
+     * @param provider the provider whose context keys the value
+     * @return the cached value or <code>null</code> if there is no current value
+     * @throws InternalException no context was configured for the provider
+     */
+    public @Nullable T peek(@Nonnull SCE provider) throws InternalException {
+        Entry<T> entry = entries.get(getKey(provider));
+
+        if( entry == null || (System.currentTimeMillis() - entry.loaded) >= timeToLive ) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Replaces the cached value for the provider's context, as when an operation changes the data being cached.
+     * @param provider the provider whose context keys the value
+     * @param value the new value
+     * @throws InternalException no context was configured for the provider
+     */
+    public void put(@Nonnull SCE provider, @Nonnull T value) throws InternalException {
+        String key = getKey(provider);
+        Entry<T> current = entries.get(key);
+
+        put(key, value, provider, current == null ? null : current.loader);
+    }
+
+    /**
+     * Discards the cached value for the provider's context.
+     * @param provider the provider whose context keys the value
+     * @throws InternalException no context was configured for the provider
+     */
+    public void invalidate(@Nonnull SCE provider) throws InternalException {
+        remove(getKey(provider));
+    }
+
+    @Override
+    public void invalidateAll() {
+        for( String key : new ArrayList<String>(entries.keySet()) ) {
+            remove(key);
+        }
+    }
+
+    private @Nullable T load(@Nonnull SCE provider, @Nonnull String key, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        Flight<T> flight = new Flight<T>();
+        Flight<T> existing = flights.putIfAbsent(key, flight);
+
+        if( existing != null ) {
+            return await(existing);
+        }
+        long start = System.nanoTime();
+
+        try {
+            checkBound(provider, key);
+
+            T value = loader.load();
+
+            // the provider may have been connected elsewhere while loading, in which case the value is not this key's
+            checkBound(provider, key);
+            loads.incrementAndGet();
+            if( value != null ) {
+                put(key, value, provider, loader);
+            }
+            flight.value = value;
+            return value;
+        }
+        catch( CloudException e ) {
+            loadFailures.incrementAndGet();
+            flight.cloudError = e;
+            throw e;
+        }
+        catch( InternalException e ) {
+            loadFailures.incrementAndGet();
+            flight.internalError = e;
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            loadFailures.incrementAndGet();
+            flight.runtimeError = e;
+            throw e;
+        }
+        finally {
+            loadNanos.addAndGet(System.nanoTime() - start);
+            flights.remove(key, flight);
+            flight.done.countDown();
+        }
+    }
+
+    private void checkBound(@Nonnull SCE provider, @Nonnull String key) throws InternalException {
+        if( !key.equals(getKey(provider)) ) {
+            throw new InternalException("The provider was connected to another context while loading " + namespace);
+        }
+    }
+
+    private @Nullable T await(@Nonnull Flight<T> flight) throws CloudException, InternalException {
+        try {
+            flight.done.await();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        if( flight.cloudError != null ) {
+            throw flight.cloudError;
+        }
+        if( flight.internalError != null ) {
+            throw flight.internalError;
+        }
+        if( flight.runtimeError != null ) {
+            throw flight.runtimeError;
+        }
+        return flight.value;
+    }
+
+    private void put(@Nonnull String key, @Nonnull T value, @Nonnull SCE provider, @Nullable Loader<T> loader) {
+        Entry<T> entry = new Entry<T>(value, weigher == null ? 1L : Math.max(1L, weigher.weigh(value)), provider, loader);
+        Entry<T> previous = entries.put(key, entry);
+
+        totalWeight.addAndGet(entry.weight - (previous == null ? 0L : previous.weight));
+
+        long budget = provider.getCustomLong("cacheWeightBudget", DEFAULT_BUDGET);
+
+        if( totalWeight.get() > budget ) {
+            evict(budget);
+        }
+    }
+
+    private boolean remove(@Nonnull String key) {
+        Entry<T> entry = entries.get(key);
+
+        return (entry != null && remove(key, entry));
+    }
+
+    private boolean remove(@Nonnull String key, @Nonnull Entry<T> entry) {
+        if( !entries.remove(key, entry) ) {
+            return false;
+        }
+        totalWeight.addAndGet(-entry.weight);
+        for( InvalidationListener listener : listeners ) {
+            try {
+                listener.invalidated(namespace, key);
+            }
+            catch( Throwable t ) {
+                logger.error("Cache invalidation listener failed: " + t.getMessage(), t);
+            }
+        }
+        return true;
+    }
+
+    static private class Candidate {
+        public SCECache<?> cache;
+        public String      key;
+        public long        lastAccess;
+    }
+
+    static private synchronized void evict(long budget) {
+        if( totalWeight.get() <= budget ) {
+            return;
+        }
+        ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+
+        for( SCECache<?> cache : namespaces.values() ) {
+            for( Map.Entry<String,? extends Entry<?>> entry : cache.entries.entrySet() ) {
+                Candidate c = new Candidate();
+
+                c.cache = cache;
+                c.key = entry.getKey();
+                c.lastAccess = entry.getValue().lastAccess;
+                candidates.add(c);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return (a.lastAccess < b.lastAccess ? -1 : (a.lastAccess == b.lastAccess ? 0 : 1));
+            }
+        });
+        for( Candidate c : candidates ) {
+            if( totalWeight.get() <= budget ) {
+                break;
+            }
+            if( c.cache.remove(c.key) ) {
+                c.cache.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private @Nonnull String getKey(@Nonnull SCE provider) throws InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new SCEConfigException("No context was configured for this request");
+        }
+        switch( level ) {
+            case CLOUD: return ctx.getEndpoint();
+            case REGION: return ctx.getEndpoint() + "|" + ctx.getRegionId();
+            case CLOUD_ACCOUNT: return ctx.getEndpoint() + "|" + ctx.getAccountNumber();
+            default: return ctx.getEndpoint() + "|" + ctx.getRegionId() + "|" + ctx.getAccountNumber();
+        }
+    }
+
+    @Override
+    public String getNamespace() {
+        return namespace;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    @Override
+    public long getLoadFailureCount() {
+        return loadFailures.get();
+    }
+
+    @Override
+    public double getAverageLoadTime() {
+        long count = loads.get() + loadFailures.get();
+
+        return (count == 0L ? 0.0 : (loadNanos.get() / 1000000.0) / count);
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    @Override
+    public int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public long getWeight() {
+        long weight = 0L;
+
+        for( Entry<T> entry : entries.values() ) {
+            weight += entry.weight;
+        }
+        return weight;
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+/**
+ * The management interface through which each {@link SCECache} namespace publishes its statistics over JMX.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public interface SCECacheMBean {
+    public String getNamespace();
+
+    public long getHitCount();
+
+    public long getMissCount();
+
+    public long getLoadCount();
+
+    public long getLoadFailureCount();
+
+    /**
+     * @return the average time spent loading a value, in milliseconds
+     */
+    public double getAverageLoadTime();
+
+    public long getEvictionCount();
+
+    /**
+     * @return the number of expired values served while they were being reloaded
+     */
+    public long getStaleHitCount();
+
+    /**
+     * @return the number of background reloads, whether refresh-after-write, refresh-ahead, or stale-while-revalidate
+     */
+    public long getRefreshCount();
+
+    /**
+     * @return the number of keys currently cached in this namespace
+     */
+    public int getSize();
+
+    /**
+     * @return the combined weight of the values currently cached in this namespace
+     */
+    public long getWeight();
+
+    /**
+     * Discards every value cached in this namespace.
+     */
+    public void invalidateAll();
+}
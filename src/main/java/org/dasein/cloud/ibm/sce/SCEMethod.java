@@ -34,7 +34,8 @@ import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.params.BasicHttpParams;
@@ -63,8 +64,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
@@ -78,8 +82,9 @@ import java.util.Properties;
  * @since 2012.04
  */
 public class SCEMethod {
-    private String endpoint;
-    private SCE provider;
+    private String           endpoint;
+    private EndpointSelector endpoints;
+    private SCE              provider;
 
     public SCEMethod(SCE cloud) throws InternalException {
         provider = cloud;
@@ -95,6 +100,7 @@ public class SCEMethod {
         if( !endpoint.endsWith("/") ) {
             endpoint = endpoint + "/";
         }
+        endpoints = EndpointSelector.getInstance(ctx);
     }
 
     public void delete(@Nonnull String resource) throws CloudException, InternalException {
@@ -109,7 +115,6 @@ public class SCEMethod {
             wire.debug("");
         }
         try {
-            HttpClient client = getClient();
             HttpDelete method = new HttpDelete(endpoint + resource);
 
             method.addHeader("Content-Type", "application/x-www-form-urlencoded;charset=UTF-8");
@@ -120,21 +125,9 @@ public class SCEMethod {
                 }
                 wire.debug("");
             }
-            HttpResponse response;
-            StatusLine status;
+            HttpResponse response = execute(method, resource, false);
+            StatusLine status = response.getStatusLine();
 
-            try {
-                APITrace.trace(provider, resource);
-                response = client.execute(method);
-                status = response.getStatusLine();
-            }
-            catch( IOException e ) {
-                std.error("post(): Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
-                if( std.isTraceEnabled() ) {
-                    e.printStackTrace();
-                }
-                throw new CloudException(e);
-            }
             if( std.isDebugEnabled() ) {
                 std.debug("post(): HTTP Status " + status);
             }
@@ -174,6 +167,12 @@ public class SCEMethod {
                 wire.debug("");
                 throw new SCEException(CloudErrorType.GENERAL, status.getStatusCode(), status.getReasonPhrase(), body);
             }
+            try {
+                EntityUtils.consume(response.getEntity());
+            }
+            catch( IOException ignore ) {
+                // the connection is discarded rather than returned to the pool
+            }
         }
         finally {
             if( std.isTraceEnabled() ) {
@@ -187,6 +186,13 @@ public class SCEMethod {
     }
 
     public @Nullable Document getAsXML(@Nonnull String resource) throws CloudException, InternalException {
+        CatalogStore store = (CatalogStore.isCatalog(resource) ? CatalogStore.getInstance(provider) : null);
+
+        if( store != null ) {
+            InputStream input = getCatalog(store, resource);
+
+            return (input == null ? null : parseResponse(input, false));
+        }
         try {
             return getAsXML(new URI(endpoint + resource), resource);
         }
@@ -195,7 +201,136 @@ public class SCEMethod {
         }
     }
 
+    /**
+     * Fetches the specified resource as an XML document. When the URI falls under the primary endpoint, the request
+     * is routed to the best available endpoint and fails over to the others; any other URI is requested as is.
+     * @param uri the URI of the resource
+     * @param resource the resource being requested relative to the endpoint
+     * @return the parsed response or <code>null</code> if the resource does not exist
+     * @throws CloudException an error occurred talking to the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
     public @Nullable Document getAsXML(@Nonnull URI uri, @Nonnull String resource) throws CloudException, InternalException {
+        HttpEntity entity = get(uri, resource);
+
+        if( entity == null ) {
+            return null;
+        }
+        try {
+            return parseResponse(entity.getContent(), true);
+        }
+        catch( IOException e ) {
+            SCE.getLogger(SCEMethod.class, "std").error("get(): Failed to read response error due to a cloud I/O error: " + e.getMessage());
+            throw new CloudException(e);
+        }
+    }
+
+    /**
+     * Fetches the specified resource as a raw stream so that callers interested in a small part of a large response
+     * can extract it without building a DOM for the whole thing. The caller is responsible for closing the stream.
+     * @param resource the resource being requested relative to the endpoint
+     * @return the response body or <code>null</code> if the resource does not exist
+     * @throws CloudException an error occurred talking to the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable InputStream getAsStream(@Nonnull String resource) throws CloudException, InternalException {
+        CatalogStore store = (CatalogStore.isCatalog(resource) ? CatalogStore.getInstance(provider) : null);
+
+        if( store != null ) {
+            return getCatalog(store, resource);
+        }
+        HttpEntity entity;
+
+        try {
+            entity = get(new URI(endpoint + resource), resource);
+        }
+        catch( URISyntaxException e ) {
+            throw new InternalException("Endpoint misconfiguration (" + endpoint + resource + "): " + e.getMessage());
+        }
+        if( entity == null ) {
+            return null;
+        }
+        try {
+            Logger wire = SCE.getLogger(SCEMethod.class, "wire");
+
+            if( wire.isDebugEnabled() ) {
+                String body = EntityUtils.toString(entity);
+
+                for( String l : body.split("\n") ) {
+                    wire.debug(l);
+                }
+                wire.debug("");
+                return new ByteArrayInputStream(body.getBytes("utf-8"));
+            }
+            return entity.getContent();
+        }
+        catch( IOException e ) {
+            SCE.getLogger(SCEMethod.class, "std").error("getAsStream(): Failed to read response due to a cloud I/O error: " + e.getMessage());
+            throw new CloudException(e);
+        }
+    }
+
+    /**
+     * Fetches the specified resource into memory without parsing it.
+     * @param resource the resource being requested relative to the endpoint
+     * @return the response body or <code>null</code> if the resource does not exist
+     * @throws CloudException an error occurred talking to the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable byte[] getAsBytes(@Nonnull String resource) throws CloudException, InternalException {
+        HttpEntity entity;
+
+        try {
+            entity = get(new URI(endpoint + resource), resource);
+        }
+        catch( URISyntaxException e ) {
+            throw new InternalException("Endpoint misconfiguration (" + endpoint + resource + "): " + e.getMessage());
+        }
+        if( entity == null ) {
+            return null;
+        }
+        byte[] body;
+
+        try {
+            body = EntityUtils.toByteArray(entity);
+        }
+        catch( IOException e ) {
+            SCE.getLogger(SCEMethod.class, "std").error("getAsBytes(): Failed to read response due to a cloud I/O error: " + e.getMessage());
+            throw new CloudException(e);
+        }
+        Logger wire = SCE.getLogger(SCEMethod.class, "wire");
+
+        if( wire.isDebugEnabled() ) {
+            try {
+                for( String l : new String(body, "utf-8").split("\n") ) {
+                    wire.debug(l);
+                }
+            }
+            catch( UnsupportedEncodingException ignore ) {
+                // utf-8 is always supported
+            }
+            wire.debug("");
+        }
+        return body;
+    }
+
+    private @Nullable InputStream getCatalog(@Nonnull CatalogStore store, @Nonnull String resource) throws CloudException, InternalException {
+        InputStream input = store.open(provider, resource);
+
+        if( input != null ) {
+            store.revalidate(provider, resource);
+            return input;
+        }
+        byte[] body = getAsBytes(resource);
+
+        if( body == null ) {
+            return null;
+        }
+        store.save(resource, body);
+        return new ByteArrayInputStream(body);
+    }
+
+    private @Nullable HttpEntity get(@Nonnull URI uri, @Nonnull String resource) throws CloudException, InternalException {
         Logger std = SCE.getLogger(SCEMethod.class, "std");
         Logger wire = SCE.getLogger(SCEMethod.class, "wire");
 
@@ -207,8 +342,7 @@ public class SCEMethod {
             wire.debug("");
         }
         try {
-            HttpClient client = getClient();
-            HttpUriRequest get = new HttpGet(uri);
+            HttpGet get = new HttpGet(uri);
 
             get.addHeader("Accept", "text/xml");
             if( wire.isDebugEnabled() ) {
@@ -221,18 +355,23 @@ public class SCEMethod {
             HttpResponse response;
             StatusLine status;
 
-            try {
-                APITrace.trace(provider, resource);
-                response = client.execute(get);
-                status = response.getStatusLine();
+            if( uri.toString().equals(endpoint + resource) ) {
+                response = execute(get, resource, true);
             }
-            catch( IOException e ) {
-                std.error("get(): Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
-                if( std.isTraceEnabled() ) {
-                    e.printStackTrace();
+            else {
+                try {
+                    APITrace.trace(provider, resource);
+                    response = getClient(endpoint).execute(get);
+                }
+                catch( IOException e ) {
+                    std.error("get(): Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
+                    if( std.isTraceEnabled() ) {
+                        e.printStackTrace();
+                    }
+                    throw new CloudException(e);
                 }
-                throw new CloudException(e);
             }
+            status = response.getStatusLine();
             if( std.isDebugEnabled() ) {
                 std.debug("get(): HTTP Status " + status);
             }
@@ -251,6 +390,12 @@ public class SCEMethod {
                 wire.debug("");
             }
             if( status.getStatusCode() == HttpServletResponse.SC_NOT_FOUND ) {
+                try {
+                    EntityUtils.consume(response.getEntity());
+                }
+                catch( IOException ignore ) {
+                    // the connection is discarded rather than returned to the pool
+                }
                 return null;
             }
             if( status.getStatusCode() != HttpServletResponse.SC_OK && status.getStatusCode() != HttpServletResponse.SC_NON_AUTHORITATIVE_INFORMATION ) {
@@ -275,24 +420,7 @@ public class SCEMethod {
                 throw new SCEException(CloudErrorType.GENERAL, status.getStatusCode(), status.getReasonPhrase(), body);
             }
             else {
-                HttpEntity entity = response.getEntity();
-
-                if( entity == null ) {
-                    return null;
-                }
-                InputStream input;
-
-                try {
-                    input = entity.getContent();
-                }
-                catch( IOException e ) {
-                    std.error("get(): Failed to read response error due to a cloud I/O error: " + e.getMessage());
-                    if( std.isTraceEnabled() ) {
-                        e.printStackTrace();
-                    }
-                    throw new CloudException(e);
-                }
-                return parseResponse(input, true);
+                return response.getEntity();
             }
         }
         finally {
@@ -306,17 +434,74 @@ public class SCEMethod {
         }
     }
 
+    /**
+     * Executes the request against the endpoints in the order ranked by the endpoint selector, pointing the request
+     * at each endpoint in turn until one responds. Idempotent requests fail over on any I/O error; others fail over
+     * only when the connection could not be established, since the cloud may otherwise have acted on them.
+     * @param request the request to execute
+     * @param resource the resource being requested relative to the endpoint
+     * @param idempotent true if the request may safely be repeated against another endpoint
+     * @return the response from the first endpoint to answer
+     * @throws CloudException no endpoint could be reached
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    private @Nonnull HttpResponse execute(@Nonnull HttpRequestBase request, @Nonnull String resource, boolean idempotent) throws CloudException, InternalException {
+        Logger std = SCE.getLogger(SCEMethod.class, "std");
+        IOException lastError = null;
+
+        for( String target : endpoints.rank() ) {
+            HttpClient client = getClient(target);
+
+            try {
+                request.setURI(new URI(target + resource));
+            }
+            catch( URISyntaxException e ) {
+                throw new InternalException("Endpoint misconfiguration (" + target + resource + "): " + e.getMessage());
+            }
+            long start = System.currentTimeMillis();
+
+            try {
+                APITrace.trace(provider, resource);
+                HttpResponse response = client.execute(request);
+
+                endpoints.recordSuccess(target, System.currentTimeMillis() - start);
+                return response;
+            }
+            catch( IOException e ) {
+                endpoints.recordFailure(target);
+                if( !idempotent && !isConnectFailure(e) ) {
+                    std.error("execute(): Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
+                    if( std.isTraceEnabled() ) {
+                        e.printStackTrace();
+                    }
+                    throw new CloudException(e);
+                }
+                std.warn("execute(): Unable to reach " + target + ", failing over: " + e.getMessage());
+                lastError = e;
+                request.reset();
+            }
+        }
+        std.error("execute(): Failed to execute HTTP request against any endpoint: " + (lastError == null ? "no endpoints" : lastError.getMessage()));
+        if( lastError == null ) {
+            throw new CloudException("No endpoints are available for " + resource);
+        }
+        throw new CloudException(lastError);
+    }
+
+    private boolean isConnectFailure(@Nonnull IOException e) {
+        return (e instanceof ConnectException || e instanceof ConnectTimeoutException || e instanceof NoRouteToHostException || e instanceof UnknownHostException);
+    }
+
     protected @Nonnull HttpClient getClient() throws InternalException {
+        return getClient(endpoint);
+    }
+
+    protected @Nonnull HttpClient getClient(@Nonnull String endpoint) throws InternalException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
             throw new SCEConfigException("No context was defined for this request");
         }
-        String endpoint = ctx.getEndpoint();
-
-        if( endpoint == null ) {
-            throw new SCEConfigException("No cloud endpoint was defined");
-        }
         boolean ssl = endpoint.startsWith("https");
         int targetPort;
         URI uri;
@@ -354,7 +539,7 @@ public class SCEMethod {
                 params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
             }
         }
-        DefaultHttpClient client = new DefaultHttpClient(params);
+        DefaultHttpClient client = new DefaultHttpClient(EndpointSelector.getConnectionManager(ctx), params);
 
         try {
             String userName = new String(ctx.getAccessPublic(), "utf-8");
@@ -434,7 +619,6 @@ public class SCEMethod {
             wire.debug("");
         }
         try {
-            HttpClient client = getClient();
             HttpPost post = new HttpPost(endpoint + resource);
 
             post.addHeader("Content-Type", "application/x-www-form-urlencoded");
@@ -470,21 +654,9 @@ public class SCEMethod {
                     throw new InternalException(e);
                 }
             }
-            HttpResponse response;
-            StatusLine status;
+            HttpResponse response = execute(post, resource, false);
+            StatusLine status = response.getStatusLine();
 
-            try {
-                APITrace.trace(provider, resource);
-                response = client.execute(post);
-                status = response.getStatusLine();
-            }
-            catch( IOException e ) {
-                std.error("post(): Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
-                if( std.isTraceEnabled() ) {
-                    e.printStackTrace();
-                }
-                throw new CloudException(e);
-            }
             if( std.isDebugEnabled() ) {
                 std.debug("post(): HTTP Status " + status);
             }
@@ -563,8 +735,6 @@ public class SCEMethod {
             wire.debug("");
         }
         try {
-            HttpClient client = getClient();
-
             HttpPut method = new HttpPut(endpoint + resource);
 
             method.addHeader("Content-Type", "application/x-www-form-urlencoded");
@@ -600,21 +770,9 @@ public class SCEMethod {
                     throw new InternalException(e);
                 }
             }
-            HttpResponse response;
-            StatusLine status;
+            HttpResponse response = execute(method, resource, false);
+            StatusLine status = response.getStatusLine();
 
-            try {
-                APITrace.trace(provider, resource);
-                response = client.execute(method);
-                status = response.getStatusLine();
-            }
-            catch( IOException e ) {
-                std.error("post(): Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
-                if( std.isTraceEnabled() ) {
-                    e.printStackTrace();
-                }
-                throw new CloudException(e);
-            }
             if( std.isDebugEnabled() ) {
                 std.debug("post(): HTTP Status " + status);
             }
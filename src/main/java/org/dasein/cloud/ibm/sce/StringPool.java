@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonicalizes the strings that repeat across decoded resources (locations, owners, instance types, image IDs, VLAN
+ * IDs, and state codes) so that thousands of decoded objects share one copy of each value instead of each holding the
+ * copy produced by parsing. The pool is bounded; once it holds the maximum number of values, new values are returned
+ * as is rather than added.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class StringPool {
+    private final ConcurrentHashMap<String,String> pool = new ConcurrentHashMap<String, String>();
+    private final int                              maxSize;
+
+    /**
+     * Constructs a pool holding at most the specified number of values.
+     * @param maxSize the maximum number of values kept in the pool
+     */
+    public StringPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Provides the pooled copy of the specified value, adding the value to the pool if it is new and there is room.
+     * @param value the value to canonicalize
+     * @return the pooled copy, or the value itself if it was not pooled
+     */
+    public @Nullable String canonicalize(@Nullable String value) {
+        if( value == null ) {
+            return null;
+        }
+        String pooled = pool.get(value);
+
+        if( pooled != null ) {
+            return pooled;
+        }
+        if( pool.size() >= maxSize ) {
+            return value;
+        }
+        pooled = pool.putIfAbsent(value, value);
+        return (pooled == null ? value : pooled);
+    }
+
+    /**
+     * @return the number of values currently pooled
+     */
+    public int size() {
+        return pool.size();
+    }
+}
@@ -0,0 +1,538 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Locates elements directly in the raw bytes of an SCE response without building a DOM. Elements are identified by
+ * the offsets of their content within the buffer, returned as start/end pairs, so callers can hold on to the buffer
+ * and decode individual values only when they need them. The scanner handles the plain XML the SCE API produces:
+ * element names are matched without regard to case or namespace resolution, and comments, processing instructions,
+ * and CDATA sections are skipped. A scanner holds no state beyond the buffer and is safe to share across threads.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class XmlScanner {
+    static private final Charset UTF8   = Charset.forName("UTF-8");
+    static private final int[]   NONE   = new int[0];
+
+    private final byte[] xml;
+
+    /**
+     * Constructs a scanner over the specified response body, which is retained but never modified.
+     * @param xml the raw bytes of the response
+     */
+    public XmlScanner(@Nonnull byte[] xml) {
+        this.xml = xml;
+    }
+
+    /**
+     * @return the length of the underlying buffer
+     */
+    public int length() {
+        return xml.length;
+    }
+
+    /**
+     * Finds every element with the specified name between the specified offsets, at any depth. Matching elements are
+     * not searched for further matches, so this behaves like <code>getElementsByTagName()</code> for element types
+     * that do not nest.
+     * @param name the element name to match
+     * @param start the offset at which to begin scanning
+     * @param end the offset at which to stop scanning
+     * @return the content offsets of each match as consecutive start/end pairs
+     */
+    public @Nonnull int[] findAll(@Nonnull String name, int start, int end) {
+        return find(name, start, end, true, false, null);
+    }
+
+    /**
+     * Finds every element with the specified name between the specified offsets that the specified filter accepts.
+     * Elements the filter rejects are skipped without decoding anything beyond what the filter itself examines.
+     * @param name the element name to match
+     * @param start the offset at which to begin scanning
+     * @param end the offset at which to stop scanning
+     * @param filter the filter matching elements must pass or <code>null</code> to accept every match
+     * @return the content offsets of each accepted match as consecutive start/end pairs
+     */
+    public @Nonnull int[] findAll(@Nonnull String name, int start, int end, @Nullable ElementFilter filter) {
+        return find(name, start, end, true, false, filter);
+    }
+
+    /**
+     * Finds the first child element with the specified name directly within the specified content.
+     * @param name the element name to match
+     * @param start the content start of the parent element
+     * @param end the content end of the parent element
+     * @return the content offsets of the child as a start/end pair or <code>null</code> if there is no such child
+     */
+    public @Nullable int[] findChild(@Nonnull String name, int start, int end) {
+        int[] range = find(name, start, end, false, true, null);
+
+        return (range.length == 0 ? null : range);
+    }
+
+    /**
+     * Finds every child element with the specified name directly within the specified content.
+     * @param name the element name to match or <code>null</code> to match any child
+     * @param start the content start of the parent element
+     * @param end the content end of the parent element
+     * @return the content offsets of each child as consecutive start/end pairs
+     */
+    public @Nonnull int[] findChildren(@Nullable String name, int start, int end) {
+        return find(name, start, end, false, false, null);
+    }
+
+    /**
+     * Provides the text of the first child element with the specified name directly within the specified content.
+     * @param name the element name to match
+     * @param start the content start of the parent element
+     * @param end the content end of the parent element
+     * @return the trimmed text of the child or <code>null</code> if there is no such child or it is empty
+     */
+    public @Nullable String childText(@Nonnull String name, int start, int end) {
+        int[] range = findChild(name, start, end);
+
+        return (range == null ? null : text(range[0], range[1]));
+    }
+
+    /**
+     * Extracts the text of the named children of an element in a single pass over its content. Children that are not
+     * requested, along with their entire subtrees, are skipped without being decoded.
+     * @param start the content start of the parent element
+     * @param end the content end of the parent element
+     * @param names the names of the children whose text is wanted
+     * @return the trimmed text of the first child with each name, in the order of the names, with <code>null</code>
+     * for children that are missing or empty
+     */
+    public @Nonnull String[] project(int start, int end, @Nonnull String ... names) {
+        String[] values = new String[names.length];
+        boolean[] found = new boolean[names.length];
+        int remaining = names.length;
+        int i = start;
+
+        while( i < end && remaining > 0 ) {
+            if( xml[i] != '<' ) {
+                i++;
+                continue;
+            }
+            if( i + 1 >= end ) {
+                break;
+            }
+            byte b = xml[i+1];
+
+            if( b == '?' || b == '!' || b == '/' ) {
+                i = skipMarkup(i, end);
+                continue;
+            }
+            int tag = i;
+            int close = tagEnd(tag, end);
+
+            if( close < 0 ) {
+                break;
+            }
+            int contentStart = close + 1;
+            int contentEnd = contentStart;
+
+            if( xml[close-1] == '/' ) {
+                i = contentStart;
+            }
+            else {
+                contentEnd = elementEnd(contentStart, end);
+                if( contentEnd < 0 ) {
+                    break;
+                }
+                i = skipMarkup(contentEnd, end);
+            }
+            for( int n=0; n<names.length; n++ ) {
+                if( !found[n] && nameEquals(tag + 1, names[n]) ) {
+                    found[n] = true;
+                    values[n] = text(contentStart, contentEnd);
+                    remaining--;
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Decodes the text content between the specified offsets, resolving entity references and CDATA sections.
+     * @param start the content start of the element
+     * @param end the content end of the element
+     * @return the trimmed text or <code>null</code> if the element is empty or holds child elements
+     */
+    public @Nullable String text(int start, int end) {
+        while( start < end && isSpace(xml[start]) ) {
+            start++;
+        }
+        while( end > start && isSpace(xml[end-1]) ) {
+            end--;
+        }
+        if( start >= end ) {
+            return null;
+        }
+        if( startsWith(start, "<![CDATA[") ) {
+            int close = indexOf("]]>", start, end);
+
+            return new String(xml, start + 9, (close < 0 ? end : close) - start - 9, UTF8);
+        }
+        if( xml[start] == '<' ) {
+            return null;
+        }
+        String value = new String(xml, start, end - start, UTF8);
+
+        return (value.indexOf('&') < 0 ? value : unescape(value));
+    }
+
+    /**
+     * Compares the text content between the specified offsets with the specified value without decoding it when the
+     * content is plain ASCII.
+     * @param start the content start of the element
+     * @param end the content end of the element
+     * @param value the value to compare against
+     * @return true if the trimmed text equals the value
+     */
+    public boolean textEquals(int start, int end, @Nonnull String value) {
+        return compare(start, end, value, false);
+    }
+
+    /**
+     * Checks whether the text content between the specified offsets begins with the specified prefix without decoding
+     * it when the content is plain ASCII.
+     * @param start the content start of the element
+     * @param end the content end of the element
+     * @param prefix the prefix to look for
+     * @return true if the trimmed text starts with the prefix
+     */
+    public boolean textStartsWith(int start, int end, @Nonnull String prefix) {
+        return compare(start, end, prefix, true);
+    }
+
+    /**
+     * Constructs a parser for use with {@link #toNode(DocumentBuilder, String, int, int)}.
+     * @return a new parser
+     * @throws InternalException the XML parser is misconfigured
+     */
+    static public @Nonnull DocumentBuilder newParser() throws InternalException {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        }
+        catch( ParserConfigurationException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Parses just the element whose content lies between the specified offsets into a DOM node so that existing
+     * DOM-based decoders can be applied to elements that passed a filter.
+     * @param parser the parser to use, which may be reused across calls on a single thread
+     * @param name the name of the element
+     * @param start the content start of the element
+     * @param end the content end of the element
+     * @return the parsed element
+     * @throws CloudException the element could not be parsed
+     */
+    public @Nonnull Node toNode(@Nonnull DocumentBuilder parser, @Nonnull String name, int start, int end) throws CloudException {
+        InputStream open = new ByteArrayInputStream(("<" + name + ">").getBytes(UTF8));
+        InputStream content = new ByteArrayInputStream(xml, start, end - start);
+        InputStream close = new ByteArrayInputStream(("</" + name + ">").getBytes(UTF8));
+
+        try {
+            return parser.parse(new SequenceInputStream(new SequenceInputStream(open, content), close)).getDocumentElement();
+        }
+        catch( IOException e ) {
+            throw new CloudException(e);
+        }
+        catch( SAXException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    private boolean compare(int start, int end, @Nonnull String value, boolean prefix) {
+        while( start < end && isSpace(xml[start]) ) {
+            start++;
+        }
+        while( end > start && isSpace(xml[end-1]) ) {
+            end--;
+        }
+        int len = value.length();
+
+        for( int i=start; i<end; i++ ) {
+            byte b = xml[i];
+
+            if( b < 0 || b == '&' || b == '<' ) {
+                String text = text(start, end);
+
+                return (text != null && (prefix ? text.startsWith(value) : text.equals(value)));
+            }
+        }
+        if( prefix ? (end - start < len) : (end - start != len) ) {
+            return false;
+        }
+        for( int i=0; i<len; i++ ) {
+            if( xml[start+i] != value.charAt(i) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private @Nonnull int[] find(@Nullable String name, int start, int end, boolean descend, boolean firstOnly, @Nullable ElementFilter filter) {
+        int[] ranges = NONE;
+        int count = 0;
+        int i = start;
+
+        while( i < end ) {
+            if( xml[i] != '<' ) {
+                i++;
+                continue;
+            }
+            if( i + 1 >= end ) {
+                break;
+            }
+            byte b = xml[i+1];
+
+            if( b == '?' || b == '!' || b == '/' ) {
+                i = skipMarkup(i, end);
+                continue;
+            }
+            int close = tagEnd(i, end);
+
+            if( close < 0 ) {
+                break;
+            }
+            boolean matches = (name == null || nameEquals(i + 1, name));
+            int contentStart = close + 1;
+            int contentEnd;
+
+            if( xml[close-1] == '/' ) {
+                contentEnd = contentStart;
+                i = contentStart;
+            }
+            else if( matches || !descend ) {
+                contentEnd = elementEnd(contentStart, end);
+                if( contentEnd < 0 ) {
+                    break;
+                }
+                i = skipMarkup(contentEnd, end);
+            }
+            else {
+                i = contentStart;
+                continue;
+            }
+            if( matches && (filter == null || filter.accept(this, contentStart, contentEnd)) ) {
+                if( count + 2 > ranges.length ) {
+                    ranges = Arrays.copyOf(ranges, Math.max(16, ranges.length * 2));
+                }
+                ranges[count++] = contentStart;
+                ranges[count++] = contentEnd;
+                if( firstOnly ) {
+                    break;
+                }
+            }
+        }
+        return (count == ranges.length ? ranges : Arrays.copyOf(ranges, count));
+    }
+
+    private int elementEnd(int start, int end) {
+        int depth = 0;
+        int i = start;
+
+        while( i < end ) {
+            if( xml[i] != '<' ) {
+                i++;
+                continue;
+            }
+            if( i + 1 >= end ) {
+                return -1;
+            }
+            byte b = xml[i+1];
+
+            if( b == '/' ) {
+                if( depth == 0 ) {
+                    return i;
+                }
+                depth--;
+                i = skipMarkup(i, end);
+            }
+            else if( b == '?' || b == '!' ) {
+                i = skipMarkup(i, end);
+            }
+            else {
+                int close = tagEnd(i, end);
+
+                if( close < 0 ) {
+                    return -1;
+                }
+                if( xml[close-1] != '/' ) {
+                    depth++;
+                }
+                i = close + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int skipMarkup(int i, int end) {
+        int close;
+
+        if( startsWith(i, "<!--") ) {
+            close = indexOf("-->", i + 4, end);
+            return (close < 0 ? end : close + 3);
+        }
+        if( startsWith(i, "<![CDATA[") ) {
+            close = indexOf("]]>", i + 9, end);
+            return (close < 0 ? end : close + 3);
+        }
+        close = tagEnd(i, end);
+        return (close < 0 ? end : close + 1);
+    }
+
+    private int tagEnd(int i, int end) {
+        byte quote = 0;
+
+        for( int j=i+1; j<end; j++ ) {
+            byte b = xml[j];
+
+            if( quote != 0 ) {
+                if( b == quote ) {
+                    quote = 0;
+                }
+            }
+            else if( b == '"' || b == '\'' ) {
+                quote = b;
+            }
+            else if( b == '>' ) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(int i, @Nonnull String name) {
+        int len = name.length();
+
+        if( i + len >= xml.length ) {
+            return false;
+        }
+        for( int j=0; j<len; j++ ) {
+            int b = xml[i+j];
+            int c = name.charAt(j);
+
+            if( b != c && Character.toLowerCase(b) != Character.toLowerCase(c) ) {
+                return false;
+            }
+        }
+        byte after = xml[i+len];
+
+        return (after == '>' || after == '/' || isSpace(after));
+    }
+
+    private boolean startsWith(int i, @Nonnull String prefix) {
+        if( i + prefix.length() > xml.length ) {
+            return false;
+        }
+        for( int j=0; j<prefix.length(); j++ ) {
+            if( xml[i+j] != prefix.charAt(j) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(@Nonnull String token, int start, int end) {
+        for( int i=start; i<end; i++ ) {
+            if( xml[i] == token.charAt(0) && startsWith(i, token) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static private boolean isSpace(byte b) {
+        return (b == ' ' || b == '\n' || b == '\r' || b == '\t');
+    }
+
+    static private @Nonnull String unescape(@Nonnull String value) {
+        StringBuilder str = new StringBuilder(value.length());
+        int i = 0;
+
+        while( i < value.length() ) {
+            char c = value.charAt(i);
+            int semi = (c == '&' ? value.indexOf(';', i) : -1);
+
+            if( semi < 0 ) {
+                str.append(c);
+                i++;
+                continue;
+            }
+            String entity = value.substring(i + 1, semi);
+
+            if( entity.equals("lt") ) {
+                str.append('<');
+            }
+            else if( entity.equals("gt") ) {
+                str.append('>');
+            }
+            else if( entity.equals("amp") ) {
+                str.append('&');
+            }
+            else if( entity.equals("quot") ) {
+                str.append('"');
+            }
+            else if( entity.equals("apos") ) {
+                str.append('\'');
+            }
+            else if( entity.startsWith("#") ) {
+                try {
+                    int code = (entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1)));
+
+                    str.appendCodePoint(code);
+                }
+                catch( IllegalArgumentException e ) {
+                    str.append(value, i, semi + 1);
+                }
+            }
+            else {
+                str.append(value, i, semi + 1);
+            }
+            i = semi + 1;
+        }
+        return str.toString();
+    }
+}
@@ -35,14 +35,25 @@ import org.dasein.cloud.compute.VolumeProduct;
 import org.dasein.cloud.compute.VolumeState;
 import org.dasein.cloud.compute.VolumeType;
 import org.dasein.cloud.ibm.sce.ExtendedRegion;
+import org.dasein.cloud.ibm.sce.LookupBatcher;
+import org.dasein.cloud.ibm.sce.LookupIndex;
+import org.dasein.cloud.ibm.sce.NegativeCache;
+import org.dasein.cloud.ibm.sce.Relationships;
 import org.dasein.cloud.ibm.sce.SCE;
+import org.dasein.cloud.ibm.sce.SCECache;
 import org.dasein.cloud.ibm.sce.SCEConfigException;
 import org.dasein.cloud.ibm.sce.SCEException;
 import org.dasein.cloud.ibm.sce.SCEMethod;
+import org.dasein.cloud.ibm.sce.StringPool;
+import org.dasein.cloud.ibm.sce.XmlScanner;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.util.CacheLevel;
 import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Storage;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.Minute;
+import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -51,8 +62,13 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Implements disk/volume management according to the Dasein Cloud API for IBM SmartCloud storage.
@@ -78,7 +94,7 @@ public class SCEDisk extends AbstractVolumeSupport {
             throw new SCEConfigException("No context was configured for this request");
         }
 
-        ExtendedVolume v = getVolume(volumeId);
+        ExtendedVolume v = getVolume(volumeId, true);
 
         if( v == null ) {
             throw new CloudException("No such volume: " + volumeId);
@@ -94,7 +110,7 @@ public class SCEDisk extends AbstractVolumeSupport {
             }
             try { Thread.sleep(15000L); }
             catch( InterruptedException ignore ) { }
-            v = getVolume(volumeId);
+            v = getVolume(volumeId, true);
         }
         if( v == null ) {
             throw new CloudException("Volume went away");
@@ -109,6 +125,8 @@ public class SCEDisk extends AbstractVolumeSupport {
         params.add(new BasicNameValuePair("type", "attach"));
         params.add(new BasicNameValuePair("storageID", volumeId));
         method.put("instances/" + toServer, params);
+        Relationships.invalidate(provider);
+        LookupIndex.forget(provider, "storage", volumeId);
     }
 
     static private class SCEOffering {
@@ -117,14 +135,35 @@ public class SCEDisk extends AbstractVolumeSupport {
         public String format;
     }
 
-    private SCEOffering findOffering(int sizeInGb) throws InternalException, CloudException {
-        SCEOffering offering = null;
+    static private class StorageOffering {
+        public String offeringId;
+        public String format;
+        public int[]  sizes;
+    }
 
-        ProviderContext ctx = provider.getContext();
+    static private class StorageCatalog {
+        public final LinkedHashMap<String,StorageOffering> offerings = new LinkedHashMap<String, StorageOffering>();
+    }
 
-        if( ctx == null ) {
-            throw new SCEConfigException("No context was configured for this request");
-        }
+    private @Nonnull StorageCatalog getStorageCatalog() throws InternalException, CloudException {
+        SCECache<StorageCatalog> cache = SCECache.getInstance("storageOfferings", CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR), new TimePeriod<Minute>(30, TimePeriod.MINUTE), new SCECache.Weigher<StorageCatalog>() {
+            @Override
+            public long weigh(@Nonnull StorageCatalog catalog) {
+                return catalog.offerings.size();
+            }
+        });
+        StorageCatalog catalog = cache.get(provider, new SCECache.Loader<StorageCatalog>() {
+            @Override
+            public @Nonnull StorageCatalog load() throws CloudException, InternalException {
+                return loadStorageCatalog();
+            }
+        });
+
+        //noinspection ConstantConditions
+        return catalog;
+    }
+
+    private @Nonnull StorageCatalog loadStorageCatalog() throws InternalException, CloudException {
         SCEMethod method = new SCEMethod(provider);
 
         Document xml = method.getAsXML("offerings/storage");
@@ -132,173 +171,54 @@ public class SCEDisk extends AbstractVolumeSupport {
         if( xml == null ) {
             throw new CloudException("No storage offerings exist");
         }
+        StorageCatalog catalog = new StorageCatalog();
         NodeList nodes = xml.getElementsByTagName("Offerings");
 
         for( int i=0; i<nodes.getLength(); i++ ) {
-            Node item = nodes.item(i);
-
-            if( item.hasChildNodes() ) {
-                NodeList attrs = item.getChildNodes();
-                String id = null, format = null;
-                int[] sizes = new int[0];
-
-                for( int j=0; j<attrs.getLength(); j++ ) {
-                    Node attr = attrs.item(j);
-                    String n = attr.getNodeName();
-
-                    if( n.equalsIgnoreCase("ID") ) {
-                        id = attr.getFirstChild().getNodeValue().trim();
-                    }
-                    else if( n.equalsIgnoreCase("SupportedSizes") ) {
-                        String s = attr.getFirstChild().getNodeValue().trim();
-                        String[] parts;
-
-                        if( s.contains(",") ) {
-                            parts = s.split(",");
-                        }
-                        else {
-                            parts = new String[] { s };
-                        }
-                        sizes = new int[parts.length];
-                        for( int k=0; k<parts.length; k++ ) {
-                            sizes[k] = Integer.parseInt(parts[k].trim());
-                        }
-                    }
-                    else if( n.equalsIgnoreCase("SupportedFormats") && attr.hasChildNodes() ) {
-                        NodeList formats = attr.getChildNodes();
-
-                        for( int k=0; k<formats.getLength(); k++ ) {
-                            Node fmt = formats.item(k);
+            StorageOffering offering = toOffering(nodes.item(i));
 
-                            if( fmt.getNodeName().equalsIgnoreCase("Format") && fmt.hasChildNodes() ) {
-                                NodeList fa = fmt.getChildNodes();
+            if( offering != null ) {
+                catalog.offerings.put(offering.offeringId, offering);
+            }
+        }
+        return catalog;
+    }
 
-                                for( int l=0; l<fa.getLength(); l++ ) {
-                                    Node fan = fa.item(l);
+    private SCEOffering findOffering(int sizeInGb) throws InternalException, CloudException {
+        for( StorageOffering o : getStorageCatalog().offerings.values() ) {
+            if( o.sizes.length > 0 && o.format != null ) {
+                // best fit is the smallest supported size that holds the request, or the largest if none does
+                int idx = Arrays.binarySearch(o.sizes, sizeInGb);
 
-                                    if( fan.getNodeName().equalsIgnoreCase("ID") && fan.hasChildNodes() ) {
-                                        format = fan.getFirstChild().getNodeValue().trim();
-                                        if( !format.equalsIgnoreCase("RAW") ) {
-                                            format = null;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
+                if( idx < 0 ) {
+                    idx = -(idx + 1);
                 }
-                if( sizes.length > 0 && format != null ) {
-                    if( offering == null ) {
-                        offering = new SCEOffering();
-                        offering.format = format;
-                        offering.offeringId = id;
-                        if( sizes[0] > sizeInGb ) {
-                            offering.size = sizes[0];
-                        }
-                        else {
-                            int sz = 0;
-
-                            for( int s : sizes ) {
-                                if( s < sizeInGb && s >= sz ) {
-                                    sz = s;
-                                }
-                                else {
-                                    break;
-                                }
-                            }
-                            offering.size = sz;
-                        }
-                    }
+                if( idx >= o.sizes.length ) {
+                    idx = o.sizes.length - 1;
                 }
+                SCEOffering offering = new SCEOffering();
+
+                offering.format = o.format;
+                offering.offeringId = o.offeringId;
+                offering.size = o.sizes[idx];
+                return offering;
             }
         }
-        if( offering == null ) {
-            throw new CloudException("No storage offerings exist");
-        }
-        return offering;
+        throw new CloudException("No storage offerings exist");
     }
 
     private SCEOffering findOffering(@Nonnull String productId) throws InternalException, CloudException {
-        SCEOffering offering;
-
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new SCEConfigException("No context was configured for this request");
-        }
-        SCEMethod method = new SCEMethod(provider);
-
-        Document xml = method.getAsXML("offerings/storage");
+        StorageOffering o = getStorageCatalog().offerings.get(productId);
 
-        if( xml == null ) {
-            throw new CloudException("No storage offerings exist");
+        if( o == null || o.sizes.length < 1 ) {
+            return null;
         }
-        NodeList nodes = xml.getElementsByTagName("Offerings");
-
-        for( int i=0; i<nodes.getLength(); i++ ) {
-            Node item = nodes.item(i);
-
-            if( item.hasChildNodes() ) {
-                NodeList attrs = item.getChildNodes();
-                String id = null, format = null;
-                int[] sizes = new int[0];
-
-                for( int j=0; j<attrs.getLength(); j++ ) {
-                    Node attr = attrs.item(j);
-                    String n = attr.getNodeName();
-
-                    if( n.equalsIgnoreCase("ID") ) {
-                        id = attr.getFirstChild().getNodeValue().trim();
-                    }
-                    else if( n.equalsIgnoreCase("SupportedSizes") ) {
-                        String s = attr.getFirstChild().getNodeValue().trim();
-                        String[] parts;
-
-                        if( s.contains(",") ) {
-                            parts = s.split(",");
-                        }
-                        else {
-                            parts = new String[] { s };
-                        }
-                        sizes = new int[parts.length];
-                        for( int k=0; k<parts.length; k++ ) {
-                            sizes[k] = Integer.parseInt(parts[k].trim());
-                        }
-                    }
-                    else if( n.equalsIgnoreCase("SupportedFormats") && attr.hasChildNodes() ) {
-                        NodeList formats = attr.getChildNodes();
-
-                        for( int k=0; k<formats.getLength(); k++ ) {
-                            Node fmt = formats.item(k);
-
-                            if( fmt.getNodeName().equalsIgnoreCase("Format") && fmt.hasChildNodes() ) {
-                                NodeList fa = fmt.getChildNodes();
-
-                                for( int l=0; l<fa.getLength(); l++ ) {
-                                    Node fan = fa.item(l);
+        SCEOffering offering = new SCEOffering();
 
-                                    if( fan.getNodeName().equalsIgnoreCase("ID") && fan.hasChildNodes() ) {
-                                        format = fan.getFirstChild().getNodeValue().trim();
-                                        if( !format.equalsIgnoreCase("RAW") ) {
-                                            format = null;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-                if( id == null || !id.equals(productId) ) {
-                    continue;
-                }
-                offering = new SCEOffering();
-                offering.format = format;
-                offering.offeringId = id;
-                offering.size = sizes[0];
-                return offering;
-            }
-        }
-        return null;
+        offering.format = o.format;
+        offering.offeringId = o.offeringId;
+        offering.size = o.sizes[0];
+        return offering;
     }
 
     @Override
@@ -336,6 +256,7 @@ public class SCEDisk extends AbstractVolumeSupport {
         SCEMethod method = new SCEMethod(provider);
         String response = method.post("storage", parameters);
 
+        NegativeCache.clear(provider, "storage");
         if( response == null ) {
             throw new CloudException("Cloud accepted the post, but no body was in the response");
         }
@@ -362,7 +283,7 @@ public class SCEDisk extends AbstractVolumeSupport {
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
-        ExtendedVolume v = getVolume(volumeId);
+        ExtendedVolume v = getVolume(volumeId, true);
 
         if( v == null ) {
             throw new CloudException("No such volume: " + volumeId);
@@ -379,7 +300,7 @@ public class SCEDisk extends AbstractVolumeSupport {
             }
             try { Thread.sleep(15000L); }
             catch( InterruptedException ignore ) { }
-            v = getVolume(volumeId);
+            v = getVolume(volumeId, true);
         }
         if( v == null ) {
             throw new CloudException("Volume went away");
@@ -393,6 +314,8 @@ public class SCEDisk extends AbstractVolumeSupport {
         params.add(new BasicNameValuePair("type", "detach"));
         params.add(new BasicNameValuePair("storageID", volumeId));
         method.put("instances/" + virtualMachineId, params);
+        Relationships.invalidate(provider);
+        LookupIndex.forget(provider, "storage", volumeId);
     }
 
     @Override
@@ -417,11 +340,43 @@ public class SCEDisk extends AbstractVolumeSupport {
 
     @Override
     public ExtendedVolume getVolume(@Nonnull String volumeId) throws InternalException, CloudException {
+        return getVolume(volumeId, false);
+    }
+
+    /**
+     * Fetches the specified volume, answering from volumes seen by a recent list call unless told otherwise.
+     * @param volumeId the ID of the volume to fetch
+     * @param bypassIndex true to ignore the {@link LookupIndex} and fetch current data from the cloud
+     * @return the volume or <code>null</code> if it does not exist
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred talking to SmartCloud
+     */
+    public ExtendedVolume getVolume(@Nonnull String volumeId, boolean bypassIndex) throws InternalException, CloudException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
+        if( !bypassIndex ) {
+            ExtendedVolume v = LookupIndex.lookup(provider, "storage", volumeId, ExtendedVolume.class);
+
+            if( v != null ) {
+                return v;
+            }
+        }
+        long window = provider.getCustomLong("lookupBatchWindow", 0L);
+
+        if( window > 0L ) {
+            return LookupBatcher.lookup(ctx, "storage", window, volumeId, new LookupBatcher.Loader<ExtendedVolume>() {
+                @Override
+                public @Nonnull Map<String, ExtendedVolume> load() throws CloudException, InternalException {
+                    return mapVolumes();
+                }
+            });
+        }
+        if( NegativeCache.isAbsent(provider, "storage", volumeId) ) {
+            return null;
+        }
         SCEMethod method = new SCEMethod(provider);
         Document xml;
         try {
@@ -433,6 +388,7 @@ public class SCEDisk extends AbstractVolumeSupport {
                     return (ExtendedVolume)v;
                 }
             }
+            NegativeCache.markAbsent(provider, "storage", volumeId);
             return null;
         }
         if( xml == null ) {
@@ -451,6 +407,44 @@ public class SCEDisk extends AbstractVolumeSupport {
         return null;
     }
 
+    /**
+     * Fetches the specified volumes with a single list call rather than one call per volume.
+     * @param volumeIds the IDs of the volumes to fetch
+     * @return the matching volumes in the current region; IDs that do not exist are left out
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred talking to SmartCloud
+     */
+    public @Nonnull Collection<ExtendedVolume> getVolumes(@Nonnull Collection<String> volumeIds) throws InternalException, CloudException {
+        if( volumeIds.isEmpty() ) {
+            return Collections.emptyList();
+        }
+        if( volumeIds.size() == 1 ) {
+            ExtendedVolume v = getVolume(volumeIds.iterator().next());
+
+            return (v == null ? Collections.<ExtendedVolume>emptyList() : Collections.singletonList(v));
+        }
+        Map<String,ExtendedVolume> volumes = mapVolumes();
+        ArrayList<ExtendedVolume> matches = new ArrayList<ExtendedVolume>();
+
+        for( String volumeId : volumeIds ) {
+            ExtendedVolume v = volumes.get(volumeId);
+
+            if( v != null ) {
+                matches.add(v);
+            }
+        }
+        return matches;
+    }
+
+    private @Nonnull Map<String,ExtendedVolume> mapVolumes() throws InternalException, CloudException {
+        HashMap<String,ExtendedVolume> volumes = new HashMap<String, ExtendedVolume>();
+
+        for( Volume v : listVolumes() ) {
+            volumes.put(v.getProviderVolumeId(), (ExtendedVolume)v);
+        }
+        return volumes;
+    }
+
     @Override
     public @Nonnull Requirement getVolumeProductRequirement() throws InternalException, CloudException {
         return Requirement.REQUIRED;
@@ -491,76 +485,11 @@ public class SCEDisk extends AbstractVolumeSupport {
     public @Nonnull Iterable<VolumeProduct> listVolumeProducts() throws InternalException, CloudException {
         ArrayList<VolumeProduct> products = new ArrayList<VolumeProduct>();
 
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new SCEConfigException("No context was configured for this request");
-        }
-        SCEMethod method = new SCEMethod(provider);
-
-        Document xml = method.getAsXML("offerings/storage");
-
-        if( xml == null ) {
-            throw new CloudException("No storage offerings exist");
-        }
-        NodeList nodes = xml.getElementsByTagName("Offerings");
-
-        for( int i=0; i<nodes.getLength(); i++ ) {
-            Node item = nodes.item(i);
-
-            if( item.hasChildNodes() ) {
-                NodeList attrs = item.getChildNodes();
-                String id = null, format = null;
-                int[] sizes = new int[0];
-
-                for( int j=0; j<attrs.getLength(); j++ ) {
-                    Node attr = attrs.item(j);
-                    String n = attr.getNodeName();
+        for( StorageOffering o : getStorageCatalog().offerings.values() ) {
+            if( o.sizes.length > 0 && o.format != null ) {
+                String id = o.offeringId;
 
-                    if( n.equalsIgnoreCase("ID") ) {
-                        id = attr.getFirstChild().getNodeValue().trim();
-                    }
-                    else if( n.equalsIgnoreCase("SupportedSizes") ) {
-                        String s = attr.getFirstChild().getNodeValue().trim();
-                        String[] parts;
-
-                        if( s.contains(",") ) {
-                            parts = s.split(",");
-                        }
-                        else {
-                            parts = new String[] { s };
-                        }
-                        sizes = new int[parts.length];
-                        for( int k=0; k<parts.length; k++ ) {
-                            sizes[k] = Integer.parseInt(parts[k].trim());
-                        }
-                    }
-                    else if( n.equalsIgnoreCase("SupportedFormats") && attr.hasChildNodes() ) {
-                        NodeList formats = attr.getChildNodes();
-
-                        for( int k=0; k<formats.getLength(); k++ ) {
-                            Node fmt = formats.item(k);
-
-                            if( fmt.getNodeName().equalsIgnoreCase("Format") && fmt.hasChildNodes() ) {
-                                NodeList fa = fmt.getChildNodes();
-
-                                for( int l=0; l<fa.getLength(); l++ ) {
-                                    Node fan = fa.item(l);
-
-                                    if( fan.getNodeName().equalsIgnoreCase("ID") && fan.hasChildNodes() ) {
-                                        format = fan.getFirstChild().getNodeValue().trim();
-                                        if( !format.equalsIgnoreCase("RAW") ) {
-                                            format = null;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-                if( sizes.length > 0 && format != null ) {
-                    products.add(VolumeProduct.getInstance(id, id + " - " + format, id + " - " + format + " - " + sizes[0], VolumeType.HDD, new Storage<Gigabyte>(sizes[0], Storage.GIGABYTE)));
-                }
+                products.add(VolumeProduct.getInstance(id, id + " - " + o.format, id + " - " + o.format + " - " + o.sizes[0], VolumeType.HDD, new Storage<Gigabyte>(o.sizes[0], Storage.GIGABYTE)));
             }
         }
         return products;
@@ -573,22 +502,22 @@ public class SCEDisk extends AbstractVolumeSupport {
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
+        String regionId = ctx.getRegionId();
         SCEMethod method = new SCEMethod(provider);
+        byte[] body = method.getAsBytes("storage");
 
-        Document xml = method.getAsXML("storage");
-
-        if( xml == null ) {
+        if( body == null || regionId == null ) {
             return Collections.emptyList();
         }
-        NodeList volumes = xml.getElementsByTagName("Volume");
-        ArrayList<ResourceStatus> list = new ArrayList<ResourceStatus>();
+        XmlScanner scanner = new XmlScanner(body);
+        int[] volumes = scanner.findAll("Volume", 0, scanner.length());
+        ArrayList<ResourceStatus> list = new ArrayList<ResourceStatus>(volumes.length/2);
 
-        for( int i=0; i<volumes.getLength(); i++ ) {
-            Node item = volumes.item(i);
-            ResourceStatus v = toStatus(item);
+        for( int i=0; i<volumes.length; i+=2 ) {
+            String[] values = scanner.project(volumes[i], volumes[i+1], "ID", "State", "Location");
 
-            if( v != null ) {
-                list.add(v);
+            if( values[0] != null && regionId.equals(values[2]) ) {
+                list.add(new ResourceStatus(values[0], values[1] == null ? VolumeState.PENDING : toState(values[1])));
             }
         }
         return list;
@@ -610,6 +539,7 @@ public class SCEDisk extends AbstractVolumeSupport {
         }
         NodeList volumes = xml.getElementsByTagName("Volume");
         ArrayList<Volume> list = new ArrayList<Volume>();
+        HashMap<String,Volume> byId = new HashMap<String, Volume>();
 
         for( int i=0; i<volumes.getLength(); i++ ) {
             Node item = volumes.item(i);
@@ -617,8 +547,10 @@ public class SCEDisk extends AbstractVolumeSupport {
 
             if( v != null ) {
                 list.add(v);
+                byId.put(v.getProviderVolumeId(), v);
             }
         }
+        LookupIndex.record(provider, "storage", byId, true);
         return list;
     }
 
@@ -650,7 +582,7 @@ public class SCEDisk extends AbstractVolumeSupport {
             throw new SCEConfigException("No context was configured for this request");
         }
         long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
-        ExtendedVolume v = getVolume(volumeId);
+        ExtendedVolume v = getVolume(volumeId, true);
 
         while( v != null && !v.getRealState().equals("5") && !v.getRealState().equals("4") && !v.getRealState().equals("6") ) {
             if( System.currentTimeMillis() >= timeout ) {
@@ -658,7 +590,7 @@ public class SCEDisk extends AbstractVolumeSupport {
             }
             try { Thread.sleep(15000L); }
             catch( InterruptedException ignore ) { }
-            v = getVolume(volumeId);
+            v = getVolume(volumeId, true);
         }
         if( v == null ) {
             throw new CloudException("Volume went away");
@@ -666,6 +598,8 @@ public class SCEDisk extends AbstractVolumeSupport {
         SCEMethod method = new SCEMethod(provider);
 
         method.delete("storage/" + volumeId);
+        Relationships.invalidate(provider);
+        LookupIndex.forget(provider, "storage", volumeId);
     }
 
     @Override
@@ -673,10 +607,72 @@ public class SCEDisk extends AbstractVolumeSupport {
         return new String[0];
     }
 
+    private @Nullable StorageOffering toOffering(@Nullable Node node) {
+        if( node == null || !node.hasChildNodes() ) {
+            return null;
+        }
+        NodeList attrs = node.getChildNodes();
+        StorageOffering offering = new StorageOffering();
+
+        offering.sizes = new int[0];
+        for( int j=0; j<attrs.getLength(); j++ ) {
+            Node attr = attrs.item(j);
+            String n = attr.getNodeName();
+
+            if( n.equalsIgnoreCase("ID") && attr.hasChildNodes() ) {
+                offering.offeringId = attr.getFirstChild().getNodeValue().trim();
+            }
+            else if( n.equalsIgnoreCase("SupportedSizes") && attr.hasChildNodes() ) {
+                String s = attr.getFirstChild().getNodeValue().trim();
+                String[] parts;
+
+                if( s.contains(",") ) {
+                    parts = s.split(",");
+                }
+                else {
+                    parts = new String[] { s };
+                }
+                int[] sizes = new int[parts.length];
+
+                for( int k=0; k<parts.length; k++ ) {
+                    sizes[k] = Integer.parseInt(parts[k].trim());
+                }
+                Arrays.sort(sizes);
+                offering.sizes = sizes;
+            }
+            else if( n.equalsIgnoreCase("SupportedFormats") && attr.hasChildNodes() ) {
+                NodeList formats = attr.getChildNodes();
+
+                for( int k=0; k<formats.getLength(); k++ ) {
+                    Node fmt = formats.item(k);
+
+                    if( fmt.getNodeName().equalsIgnoreCase("Format") && fmt.hasChildNodes() ) {
+                        NodeList fa = fmt.getChildNodes();
+
+                        for( int l=0; l<fa.getLength(); l++ ) {
+                            Node fan = fa.item(l);
+
+                            if( fan.getNodeName().equalsIgnoreCase("ID") && fan.hasChildNodes() ) {
+                                String format = fan.getFirstChild().getNodeValue().trim();
+
+                                offering.format = (format.equalsIgnoreCase("RAW") ? format : null);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if( offering.offeringId == null ) {
+            return null;
+        }
+        return offering;
+    }
+
     private @Nullable ExtendedVolume toVolume(@Nonnull ProviderContext ctx, @Nullable Node node) throws CloudException, InternalException {
         if( node == null || !node.hasChildNodes() ) {
             return null;
         }
+        StringPool strings = provider.getStringPool();
         NodeList attributes = node.getChildNodes();
         ExtendedVolume volume = new ExtendedVolume();
 
@@ -697,14 +693,14 @@ public class SCEDisk extends AbstractVolumeSupport {
                 volume.setName(attr.getFirstChild().getNodeValue().trim());
             }
             else if( nodeName.equalsIgnoreCase("Location") && attr.hasChildNodes()) {
-                volume.setProviderRegionId(attr.getFirstChild().getNodeValue().trim());
+                volume.setProviderRegionId(strings.canonicalize(attr.getFirstChild().getNodeValue().trim()));
                 volume.setProviderDataCenterId(volume.getProviderRegionId());
             }
             else if( nodeName.equalsIgnoreCase("Size") && attr.hasChildNodes()) {
                 volume.setSize(new Storage<Gigabyte>(Integer.parseInt(attr.getFirstChild().getNodeValue().trim()), Storage.GIGABYTE));
             }
             else if( nodeName.equalsIgnoreCase("State") && attr.hasChildNodes()) {
-                String status = attr.getFirstChild().getNodeValue().trim();
+                String status = strings.canonicalize(attr.getFirstChild().getNodeValue().trim());
 
                 volume.setCurrentState(toState(status));
                 volume.setRealState(status);
@@ -713,7 +709,7 @@ public class SCEDisk extends AbstractVolumeSupport {
                 volume.setCreationTimestamp(provider.parseTimestamp(attr.getFirstChild().getNodeValue().trim()));
             }
             else if( nodeName.equalsIgnoreCase("InstanceID") && attr.hasChildNodes()) {
-                volume.setProviderVirtualMachineId(attr.getFirstChild().getNodeValue().trim());
+                volume.setProviderVirtualMachineId(strings.canonicalize(attr.getFirstChild().getNodeValue().trim()));
             }
         }
         if( volume.getProviderVolumeId() == null ) {
@@ -743,34 +739,4 @@ public class SCEDisk extends AbstractVolumeSupport {
         System.out.println("DEBUG: Unknown volume state: " + id);
         return VolumeState.PENDING;
     }
-
-    private @Nullable ResourceStatus toStatus(@Nullable Node node) throws CloudException, InternalException {
-        if( node == null || !node.hasChildNodes() ) {
-            return null;
-        }
-        NodeList attributes = node.getChildNodes();
-        VolumeState state = null;
-        String volumeId = null;
-
-        for( int i=0; i<attributes.getLength(); i++ ) {
-            Node attr = attributes.item(i);
-            String nodeName = attr.getNodeName();
-
-            if( nodeName.equalsIgnoreCase("ID") && attr.hasChildNodes()) {
-                volumeId = attr.getFirstChild().getNodeValue().trim();
-            }
-            else if( nodeName.equalsIgnoreCase("State") && attr.hasChildNodes()) {
-                String status = attr.getFirstChild().getNodeValue().trim();
-
-                state = toState(status);
-            }
-            if( volumeId != null && state != null ) {
-                break;
-            }
-        }
-        if( volumeId == null ) {
-            return null;
-        }
-        return new ResourceStatus(volumeId, state == null ? VolumeState.PENDING : state);
-    }
 }
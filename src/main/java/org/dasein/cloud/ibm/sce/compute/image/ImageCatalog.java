@@ -0,0 +1,757 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce.compute.image;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.ImageFilterOptions;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.MachineImageState;
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.ibm.sce.SCE;
+import org.dasein.cloud.ibm.sce.SCEConfigException;
+import org.dasein.cloud.ibm.sce.SCEMethod;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory view of the <code>offerings/image</code> catalog for a single endpoint, region, and account. Public
+ * images are the same for every account in a region, so they are kept in a partition shared by the catalogs of all
+ * accounts in that region; each account catalog holds only the private and shared images visible to that account.
+ * The partition indexes the public images listed by any of its accounts, and each account's snapshot shows only the
+ * public images its own last load listed, so one account's load never changes what another account sees.
+ * Partitions are reference counted by the account catalogs using them, and account catalogs by the providers using
+ * them, so both are discarded once the last provider using them is closed. Readers get an immutable snapshot of the
+ * catalog; a snapshot past its staleness bound is replaced synchronously and one past half of its bound is replaced
+ * in the background through the provider that read it, unless that provider has since been closed or connected to
+ * another context, while readers continue to see the old one. A load whose provider switches context midway is
+ * discarded. A refresh compares each image with its entry in the previous load (or, for public
+ * images, in the shared partition) and only converts the images that actually changed. The images in a snapshot are
+ * shared by every reader of the catalog, so callers handing them out of this module must copy them first.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ImageCatalog {
+    static private final Logger logger = SCE.getLogger(ImageCatalog.class, "std");
+
+    static private final HashMap<String,ImageCatalog>    catalogs   = new HashMap<String, ImageCatalog>();
+    static private final HashMap<String,PublicPartition> partitions = new HashMap<String, PublicPartition>();
+
+    /**
+     * The public images of one endpoint and region, shared by the catalogs of every account there. The index covers
+     * the public images listed by any account, and the partition remembers which of them each account listed.
+     */
+    static private class PublicPartition {
+        public final String   key;
+        public int            references;
+        public volatile Index index = new Index(Collections.<String, Entry>emptyMap());
+
+        private final HashMap<String,Map<String,Entry>> accounts = new HashMap<String, Map<String, Entry>>();
+
+        public PublicPartition(@Nonnull String key) {
+            this.key = key;
+        }
+
+        /**
+         * Installs the public images found by an account's load, keeping the current index if nothing changed.
+         * @param accountNumber the account that loaded the images
+         * @param images the public images, reusing this partition's entries for unchanged images
+         */
+        public synchronized void update(@Nonnull String accountNumber, @Nonnull Map<String,Entry> images) {
+            accounts.put(accountNumber, images);
+            rebuild();
+        }
+
+        /**
+         * Drops the public images listed by an account that no longer uses this partition.
+         * @param accountNumber the account being dropped
+         */
+        public synchronized void remove(@Nonnull String accountNumber) {
+            if( accounts.remove(accountNumber) != null ) {
+                rebuild();
+            }
+        }
+
+        /**
+         * Combines the public images listed by an account with the account's own images.
+         * @param accountNumber the account whose snapshot is sought
+         * @param timestamp the time the account's images were loaded
+         * @param accountImages the account's own images
+         * @return a snapshot of the catalog for the account
+         */
+        public synchronized @Nonnull Snapshot getSnapshot(@Nonnull String accountNumber, long timestamp, @Nonnull Index accountImages) {
+            Map<String,Entry> listed = accounts.get(accountNumber);
+
+            return new Snapshot(timestamp, index, (listed == null ? Collections.<String>emptySet() : listed.keySet()), accountImages);
+        }
+
+        private void rebuild() {
+            LinkedHashMap<String,Entry> images = new LinkedHashMap<String, Entry>();
+
+            for( Map<String,Entry> listed : accounts.values() ) {
+                images.putAll(listed);
+            }
+            Index current = index;
+
+            if( current.images.size() == images.size() ) {
+                boolean same = true;
+
+                for( Map.Entry<String,Entry> e : images.entrySet() ) {
+                    if( current.images.get(e.getKey()) != e.getValue() ) {
+                        same = false;
+                        break;
+                    }
+                }
+                if( same ) {
+                    return;
+                }
+            }
+            index = new Index(images);
+        }
+    }
+
+    /**
+     * Provides the catalog for the endpoint, region, and account of the provider's context, recording the provider
+     * as a user of the catalog until the provider is closed.
+     * @param provider the provider whose catalog is sought
+     * @return the catalog shared by all providers connected with the same endpoint, region, and account
+     * @throws SCEConfigException no context was configured for the provider
+     */
+    static public @Nonnull ImageCatalog getInstance(@Nonnull SCE provider) throws SCEConfigException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new SCEConfigException("No context was configured for this request");
+        }
+        String regionKey = ctx.getEndpoint() + "|" + ctx.getRegionId();
+        String key = SCE.getContextKey(ctx);
+        ImageCatalog catalog;
+
+        synchronized( catalogs ) {
+            catalog = catalogs.get(key);
+            if( catalog == null ) {
+                PublicPartition partition = partitions.get(regionKey);
+
+                if( partition == null ) {
+                    partition = new PublicPartition(regionKey);
+                    partitions.put(regionKey, partition);
+                }
+                partition.references++;
+                catalog = new ImageCatalog(key, String.valueOf(ctx.getAccountNumber()), partition);
+                catalogs.put(key, catalog);
+            }
+            if( provider.retain(catalog) ) {
+                catalog.references++;
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * A single image in the catalog.
+     */
+    static public class Entry {
+        public final MachineImage image;
+        public final boolean      shared;
+        private final byte[]      source;
+        private final String[]    tokens;
+
+        Entry(@Nonnull MachineImage image, boolean shared, @Nonnull byte[] source) {
+            StringBuilder text = new StringBuilder();
+
+            text.append(image.getName()).append(" ").append(image.getDescription());
+            Map<String,String> tags = image.getTags();
+
+            if( tags != null ) {
+                for( String value : tags.values() ) {
+                    text.append(" ").append(value);
+                }
+            }
+            this.image = image;
+            this.shared = shared;
+            this.source = source;
+            this.tokens = tokenize(text.toString());
+        }
+    }
+
+    static private final Pattern LITERAL    = Pattern.compile("^(?:\\(\\?i\\))?(?:\\.\\*)?([A-Za-z0-9][A-Za-z0-9 _\\-]*)(?:\\.\\*)?$");
+    static private final Pattern SEPARATORS = Pattern.compile("[^a-z0-9]+");
+
+    static private @Nonnull String[] tokenize(@Nonnull String text) {
+        HashSet<String> tokens = new HashSet<String>();
+
+        for( String token : SEPARATORS.split(text.toLowerCase()) ) {
+            if( token.length() > 0 ) {
+                tokens.add(token);
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * An immutable, indexed set of images. Besides the lookup by ID, an index organizes its images by platform,
+     * architecture, owner, state, visibility, and the words in their names, descriptions, and tag values (the text a
+     * filter's regular expression is matched against) so that filtered searches start from the smallest matching set
+     * of images rather than from the whole set.
+     */
+    static class Index {
+        private final Map<String,Entry> images;
+
+        private final HashMap<Platform,List<Entry>>          byPlatform     = new HashMap<Platform, List<Entry>>();
+        private final HashMap<Architecture,List<Entry>>      byArchitecture = new HashMap<Architecture, List<Entry>>();
+        private final HashMap<String,List<Entry>>            byOwner        = new HashMap<String, List<Entry>>();
+        private final HashMap<MachineImageState,List<Entry>> byState        = new HashMap<MachineImageState, List<Entry>>();
+        private final HashMap<String,List<Entry>>            byToken        = new HashMap<String, List<Entry>>();
+        private final ArrayList<Entry>                       shared         = new ArrayList<Entry>();
+
+        Index(@Nonnull Map<String,Entry> images) {
+            this.images = Collections.unmodifiableMap(images);
+            for( Entry entry : images.values() ) {
+                MachineImage img = entry.image;
+
+                index(byPlatform, img.getPlatform(), entry);
+                index(byArchitecture, img.getArchitecture(), entry);
+                index(byOwner, img.getProviderOwnerId(), entry);
+                index(byState, img.getCurrentState(), entry);
+                for( String token : entry.tokens ) {
+                    index(byToken, token, entry);
+                }
+                if( entry.shared ) {
+                    shared.add(entry);
+                }
+            }
+        }
+
+        static private <K> void index(@Nonnull HashMap<K,List<Entry>> index, @Nullable K key, @Nonnull Entry entry) {
+            if( key == null ) {
+                return;
+            }
+            List<Entry> entries = index.get(key);
+
+            if( entries == null ) {
+                entries = new ArrayList<Entry>();
+                index.put(key, entries);
+            }
+            entries.add(entry);
+        }
+
+        public @Nullable Entry get(@Nonnull String imageId) {
+            return images.get(imageId);
+        }
+
+        public @Nonnull Collection<Entry> list() {
+            return images.values();
+        }
+
+        public @Nonnull Collection<Entry> listByOwner(@Nonnull String ownerId) {
+            List<Entry> entries = byOwner.get(ownerId);
+
+            return (entries == null ? Collections.<Entry>emptyList() : Collections.unmodifiableList(entries));
+        }
+
+        public @Nonnull Collection<Entry> listByState(@Nonnull MachineImageState state) {
+            List<Entry> entries = byState.get(state);
+
+            return (entries == null ? Collections.<Entry>emptyList() : Collections.unmodifiableList(entries));
+        }
+
+        public @Nonnull Collection<Entry> listShared() {
+            return Collections.unmodifiableList(shared);
+        }
+
+        /**
+         * Finds the images matching the specified filter options. The search starts from the most selective index
+         * that applies to the options and checks each candidate against the full options. Every index is a superset
+         * of the images that can match its criterion (the text index covers tag values as well as names and
+         * descriptions), so the result is the same as matching every image in the catalog.
+         * @param options the filter options to apply, if any
+         * @param ownerId the account whose images are sought or <code>null</code> for images from any account
+         * @return the matching images
+         */
+        public @Nonnull List<MachineImage> find(@Nullable ImageFilterOptions options, @Nullable String ownerId) {
+            ArrayList<Collection<Entry>> candidates = new ArrayList<Collection<Entry>>();
+
+            candidates.add(images.values());
+            if( ownerId != null ) {
+                candidates.add(listByOwner(ownerId));
+            }
+            if( options != null && !(options.isMatchesAny() && options.getCriteriaCount() > 1) ) {
+                if( options.getAccountNumber() != null ) {
+                    candidates.add(listByOwner(options.getAccountNumber()));
+                }
+                if( options.getArchitecture() != null ) {
+                    candidates.add(lookup(byArchitecture, options.getArchitecture()));
+                }
+                if( options.getPlatform() != null ) {
+                    candidates.add(lookup(byPlatform, options.getPlatform()));
+                }
+                if( options.getRegex() != null ) {
+                    Collection<Entry> matches = searchText(options.getRegex());
+
+                    if( matches != null ) {
+                        candidates.add(matches);
+                    }
+                }
+            }
+            Collection<Entry> smallest = candidates.get(0);
+
+            for( Collection<Entry> c : candidates ) {
+                if( c.size() < smallest.size() ) {
+                    smallest = c;
+                }
+            }
+            ArrayList<MachineImage> matches = new ArrayList<MachineImage>();
+
+            for( Entry entry : smallest ) {
+                MachineImage img = entry.image;
+
+                if( ownerId != null && !ownerId.equals(img.getProviderOwnerId()) ) {
+                    continue;
+                }
+                if( options == null || options.matches(img) ) {
+                    matches.add(img);
+                }
+            }
+            return matches;
+        }
+
+        private @Nonnull <K> Collection<Entry> lookup(@Nonnull HashMap<K,List<Entry>> index, @Nonnull K key) {
+            List<Entry> entries = index.get(key);
+
+            return (entries == null ? Collections.<Entry>emptyList() : entries);
+        }
+
+        /**
+         * Narrows a name, description, and tag value regular expression to the images that could match it using the
+         * token index.
+         * Only expressions that boil down to a literal phrase are narrowed; anything else is left to a full scan.
+         * @param regex the regular expression from the filter options
+         * @return the images containing every word fragment of the literal or <code>null</code> if the expression cannot be narrowed
+         */
+        private @Nullable Collection<Entry> searchText(@Nonnull String regex) {
+            Matcher m = LITERAL.matcher(regex);
+
+            if( !m.matches() ) {
+                return null;
+            }
+            Set<Entry> result = null;
+
+            for( String fragment : SEPARATORS.split(m.group(1).toLowerCase()) ) {
+                if( fragment.length() < 1 ) {
+                    continue;
+                }
+                Set<Entry> found = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+
+                for( Map.Entry<String,List<Entry>> token : byToken.entrySet() ) {
+                    if( token.getKey().contains(fragment) ) {
+                        for( Entry entry : token.getValue() ) {
+                            if( result == null || result.contains(entry) ) {
+                                found.add(entry);
+                            }
+                        }
+                    }
+                }
+                result = found;
+                if( result.isEmpty() ) {
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * An immutable view of the catalog as of a point in time, combining the public images listed by the account with
+     * the images private to the account. The images themselves are shared with other snapshots and are not copies.
+     */
+    static public class Snapshot {
+        public final long         timestamp;
+        private final Index       publicImages;
+        private final Set<String> publicIds;
+        private final boolean     allPublic;
+        private final Index       accountImages;
+
+        private Snapshot(long timestamp, @Nonnull Index publicImages, @Nonnull Set<String> publicIds, @Nonnull Index accountImages) {
+            this.timestamp = timestamp;
+            this.publicImages = publicImages;
+            this.publicIds = publicIds;
+            // the account's IDs are drawn from the partition, so equal sizes mean the account sees every public image
+            this.allPublic = (publicIds.size() == publicImages.images.size());
+            this.accountImages = accountImages;
+        }
+
+        public @Nullable Entry get(@Nonnull String imageId) {
+            Entry entry = accountImages.get(imageId);
+
+            return (entry == null && publicIds.contains(imageId) ? publicImages.get(imageId) : entry);
+        }
+
+        public @Nonnull Collection<Entry> list() {
+            return concat(visible(publicImages.list()), accountImages.list());
+        }
+
+        public @Nonnull Collection<Entry> listByOwner(@Nonnull String ownerId) {
+            return concat(visible(publicImages.listByOwner(ownerId)), accountImages.listByOwner(ownerId));
+        }
+
+        public @Nonnull Collection<Entry> listByState(@Nonnull MachineImageState state) {
+            return concat(visible(publicImages.listByState(state)), accountImages.listByState(state));
+        }
+
+        public @Nonnull Collection<Entry> listShared() {
+            return concat(visible(publicImages.listShared()), accountImages.listShared());
+        }
+
+        /**
+         * Finds the images matching the specified filter options, searching the public and account images each from
+         * their most selective index.
+         * @param options the filter options to apply, if any
+         * @param ownerId the account whose images are sought or <code>null</code> for images from any account
+         * @return the matching images
+         */
+        public @Nonnull List<MachineImage> find(@Nullable ImageFilterOptions options, @Nullable String ownerId) {
+            List<MachineImage> matches = publicImages.find(options, ownerId);
+
+            if( !allPublic ) {
+                Iterator<MachineImage> it = matches.iterator();
+
+                while( it.hasNext() ) {
+                    if( !publicIds.contains(it.next().getProviderMachineImageId()) ) {
+                        it.remove();
+                    }
+                }
+            }
+            matches.addAll(accountImages.find(options, ownerId));
+            return matches;
+        }
+
+        private @Nonnull Collection<Entry> visible(@Nonnull Collection<Entry> entries) {
+            if( allPublic ) {
+                return entries;
+            }
+            ArrayList<Entry> visible = new ArrayList<Entry>();
+
+            for( Entry entry : entries ) {
+                if( publicIds.contains(entry.image.getProviderMachineImageId()) ) {
+                    visible.add(entry);
+                }
+            }
+            return visible;
+        }
+
+        static private @Nonnull Collection<Entry> concat(@Nonnull Collection<Entry> a, @Nonnull Collection<Entry> b) {
+            if( a.isEmpty() ) {
+                return b;
+            }
+            if( b.isEmpty() ) {
+                return a;
+            }
+            ArrayList<Entry> entries = new ArrayList<Entry>(a.size() + b.size());
+
+            entries.addAll(a);
+            entries.addAll(b);
+            return Collections.unmodifiableList(entries);
+        }
+    }
+
+    private final String           key;
+    private final String           accountNumber;
+    private final PublicPartition  partition;
+    private int                    references;
+    private volatile Index         current;
+    private volatile long          timestamp;
+    private volatile boolean       invalidated;
+    private final    AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    private ImageCatalog(@Nonnull String key, @Nonnull String accountNumber, @Nonnull PublicPartition partition) {
+        this.key = key;
+        this.accountNumber = accountNumber;
+        this.partition = partition;
+    }
+
+    /**
+     * Ends one provider's use of this catalog. Once no provider uses it, the catalog is discarded along with its
+     * share of the region's public partition.
+     */
+    public void release() {
+        synchronized( catalogs ) {
+            if( --references > 0 ) {
+                return;
+            }
+            if( catalogs.get(key) == this ) {
+                catalogs.remove(key);
+            }
+            partition.remove(accountNumber);
+            if( --partition.references < 1 && partitions.get(partition.key) == partition ) {
+                partitions.remove(partition.key);
+            }
+        }
+    }
+
+    /**
+     * Provides a snapshot of the catalog no older than the specified bound, loading a new one if necessary.
+     * @param provider the provider through which the catalog is loaded
+     * @param maxStaleness the maximum age in milliseconds of an acceptable snapshot
+     * @return a snapshot of the catalog
+     * @throws CloudException an error occurred loading the catalog from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Snapshot getSnapshot(@Nonnull SCE provider, long maxStaleness) throws CloudException, InternalException {
+        Index index = current;
+        long age = System.currentTimeMillis() - timestamp;
+
+        if( index == null || invalidated || age > maxStaleness ) {
+            refresh(provider, maxStaleness);
+        }
+        else if( age > maxStaleness/2 ) {
+            refreshInBackground(provider);
+        }
+        return partition.getSnapshot(accountNumber, timestamp, current);
+    }
+
+    /**
+     * Marks the current snapshot as out of date so that the next read loads a new one.
+     */
+    public void invalidate() {
+        invalidated = true;
+    }
+
+    private synchronized void refresh(@Nonnull SCE provider, long maxStaleness) throws CloudException, InternalException {
+        // another thread may have finished loading while this one waited
+        if( current != null && !invalidated && (System.currentTimeMillis() - timestamp) <= maxStaleness ) {
+            return;
+        }
+        load(provider);
+    }
+
+    private void refreshInBackground(@Nonnull final SCE provider) {
+        if( !refreshing.compareAndSet(false, true) ) {
+            return;
+        }
+        SCE.getBackgroundExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // a provider closed or connected elsewhere since it read the catalog is not used; the next
+                    // reader refreshes instead
+                    if( !provider.isConnectedTo(key) ) {
+                        return;
+                    }
+                    synchronized( ImageCatalog.this ) {
+                        load(provider);
+                    }
+                }
+                catch( Throwable t ) {
+                    logger.warn("Failed to refresh the image catalog in the background: " + t.getMessage());
+                }
+                finally {
+                    refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    private void load(@Nonnull SCE provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new SCEConfigException("No context was configured for this request");
+        }
+        if( !isBound(provider) ) {
+            throw new InternalException("The provider is not connected to the context of the image catalog for " + key);
+        }
+        long loadedAt = System.currentTimeMillis();
+
+        invalidated = false;
+
+        SCEMethod method = new SCEMethod(provider);
+        Document xml = method.getAsXML("offerings/image");
+        Index previous = current;
+        Index previousPublic = partition.index;
+        LinkedHashMap<String,Entry> publicImages = new LinkedHashMap<String, Entry>();
+        LinkedHashMap<String,Entry> accountImages = new LinkedHashMap<String, Entry>();
+
+        if( xml != null ) {
+            SCEImage support = new SCEImage(provider);
+            NodeList items = xml.getElementsByTagName("Image");
+            int changed = 0;
+
+            for( int i=0; i<items.getLength(); i++ ) {
+                Node item = items.item(i);
+                String imageId = getImageId(item);
+
+                if( imageId == null ) {
+                    continue;
+                }
+                boolean isPublic = support.isPublic(item);
+                byte[] source = digest(item);
+                Index reuse = (isPublic ? previousPublic : previous);
+                Entry entry = (reuse == null ? null : reuse.get(imageId));
+
+                if( entry == null || !Arrays.equals(entry.source, source) ) {
+                    MachineImage img = support.toMachineImage(ctx, item, false);
+
+                    if( img == null ) {
+                        continue;
+                    }
+                    entry = new Entry(img, support.isShared(item), source);
+                    changed++;
+                }
+                if( isPublic ) {
+                    publicImages.put(imageId, entry);
+                }
+                else {
+                    accountImages.put(imageId, entry);
+                }
+            }
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Loaded image catalog for " + ctx.getRegionId() + ": " + publicImages.size() + " public and " + accountImages.size() + " account images, " + changed + " changed");
+            }
+        }
+        // the provider may have been connected elsewhere while loading, in which case the images are not this account's
+        if( !isBound(provider) ) {
+            invalidated = true;
+            throw new InternalException("The provider was connected to another context while loading the image catalog for " + key);
+        }
+        synchronized( catalogs ) {
+            // a catalog released while it loaded must not leave its images behind in the partition
+            if( references > 0 ) {
+                partition.update(accountNumber, publicImages);
+            }
+        }
+        current = new Index(accountImages);
+        timestamp = loadedAt;
+    }
+
+    private boolean isBound(@Nonnull SCE provider) {
+        ProviderContext ctx = provider.getContext();
+
+        return (ctx != null && key.equals(SCE.getContextKey(ctx)));
+    }
+
+    /**
+     * Digests the names, attributes, and text of an image element and everything under it so that a change anywhere in
+     * the element, including to an attribute or to which element holds which text, yields a different digest.
+     * @param node the image element
+     * @return the digest of the element
+     * @throws InternalException the digest algorithm is unavailable
+     */
+    static private @Nonnull byte[] digest(@Nonnull Node node) throws InternalException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+            digest(digest, node);
+            return digest.digest();
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new InternalException(e);
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    static private void digest(@Nonnull MessageDigest digest, @Nonnull Node node) throws UnsupportedEncodingException {
+        if( node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE ) {
+            String text = node.getNodeValue();
+
+            if( text != null && text.trim().length() > 0 ) {
+                update(digest, 't', text);
+            }
+            return;
+        }
+        if( node.getNodeType() != Node.ELEMENT_NODE ) {
+            return;
+        }
+        update(digest, '<', node.getNodeName());
+
+        NamedNodeMap attributes = node.getAttributes();
+
+        if( attributes != null ) {
+            String[] names = new String[attributes.getLength()];
+
+            for( int i=0; i<names.length; i++ ) {
+                names[i] = attributes.item(i).getNodeName();
+            }
+            Arrays.sort(names);
+            for( String name : names ) {
+                update(digest, '@', name);
+                update(digest, '=', attributes.getNamedItem(name).getNodeValue());
+            }
+        }
+        NodeList children = node.getChildNodes();
+
+        for( int i=0; i<children.getLength(); i++ ) {
+            digest(digest, children.item(i));
+        }
+        update(digest, '>', "");
+    }
+
+    static private void update(@Nonnull MessageDigest digest, char marker, @Nonnull String value) throws UnsupportedEncodingException {
+        byte[] bytes = value.getBytes("utf-8");
+
+        digest.update((byte)marker);
+        digest.update((byte)(bytes.length >>> 24));
+        digest.update((byte)(bytes.length >>> 16));
+        digest.update((byte)(bytes.length >>> 8));
+        digest.update((byte)bytes.length);
+        digest.update(bytes);
+    }
+
+    private @Nullable String getImageId(@Nonnull Node node) {
+        NodeList attributes = node.getChildNodes();
+
+        for( int i=0; i<attributes.getLength(); i++ ) {
+            Node attr = attributes.item(i);
+
+            if( attr.getNodeName().equalsIgnoreCase("ID") && attr.hasChildNodes() ) {
+                return attr.getFirstChild().getNodeValue().trim();
+            }
+        }
+        return null;
+    }
+}
@@ -37,10 +37,16 @@ import org.dasein.cloud.compute.MachineImageFormat;
 import org.dasein.cloud.compute.MachineImageState;
 import org.dasein.cloud.compute.MachineImageType;
 import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.ibm.sce.Copies;
 import org.dasein.cloud.ibm.sce.ExtendedRegion;
+import org.dasein.cloud.ibm.sce.NegativeCache;
 import org.dasein.cloud.ibm.sce.SCE;
 import org.dasein.cloud.ibm.sce.SCEConfigException;
+import org.dasein.cloud.ibm.sce.SCEException;
 import org.dasein.cloud.ibm.sce.SCEMethod;
+import org.dasein.cloud.ibm.sce.StringPool;
+import org.dasein.cloud.ibm.sce.compute.vm.InstanceInventory;
 import org.dasein.cloud.identity.ServiceAction;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -70,24 +76,73 @@ public class SCEImage extends AbstractImageSupport {
 
     @Override
     public @Nullable MachineImage getImage(@Nonnull String providerImageId) throws CloudException, InternalException {
-        ProviderContext ctx = provider.getContext();
+        return getImage(providerImageId, getDefaultStaleness());
+    }
 
-        if( ctx == null ) {
-            throw new SCEConfigException("No context was configured for this request");
+    /**
+     * Looks up an image in the image catalog, going to the cloud for images missing from the catalog or still
+     * changing state. SmartCloud answers a request for a missing image with a 500 error, so such an error means the
+     * image is reported missing, but the miss is remembered only when the error says the image was not found; other
+     * errors are thrown.
+     * @param providerImageId the ID of the image being sought
+     * @param maxStaleness the maximum age in milliseconds of the catalog data
+     * @return the matching image or <code>null</code> if no such image exists
+     * @throws CloudException an error occurred talking to the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable MachineImage getImage(@Nonnull String providerImageId, long maxStaleness) throws CloudException, InternalException {
+        ImageCatalog.Entry entry = getSnapshot(maxStaleness).get(providerImageId);
+
+        if( entry != null && !MachineImageState.PENDING.equals(entry.image.getCurrentState()) ) {
+            return Copies.copy(entry.image);
+        }
+        if( entry == null && NegativeCache.isAbsent(provider, "images", providerImageId) ) {
+            return null;
         }
-        SCEMethod method = new SCEMethod(provider);
-
-        Document xml;
+        MachineImage img;
 
         try {
-            xml = method.getAsXML("offerings/image/" + providerImageId);
+            img = fetchImage(providerImageId);
         }
-        catch( CloudException whatiswrongwithIBM ) {
+        catch( SCEException whatiswrongwithIBM ) {
             // SmartCloud throws a 500 error when the image doesn't exist
             // Seriously
             // I want to say a lot of very bad words here
+            if( whatiswrongwithIBM.getHttpCode() != HttpServletResponse.SC_INTERNAL_SERVER_ERROR ) {
+                throw whatiswrongwithIBM;
+            }
+            // any other failure behind the 500 may be transient, so only a confirmed miss is remembered
+            if( entry == null && isNotFound(whatiswrongwithIBM) ) {
+                NegativeCache.markAbsent(provider, "images", providerImageId);
+            }
             return null;
         }
+        if( img == null && entry == null ) {
+            NegativeCache.markAbsent(provider, "images", providerImageId);
+        }
+        return img;
+    }
+
+    static private boolean isNotFound(@Nonnull SCEException e) {
+        String message = e.getMessage();
+
+        if( message == null ) {
+            return false;
+        }
+        message = message.toLowerCase(Locale.ENGLISH);
+        return (message.contains("not found") || message.contains("does not exist") || message.contains("no such"));
+    }
+
+    private @Nullable MachineImage fetchImage(@Nonnull String providerImageId) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new SCEConfigException("No context was configured for this request");
+        }
+        SCEMethod method = new SCEMethod(provider);
+
+        Document xml = method.getAsXML("offerings/image/" + providerImageId);
+
         if( xml == null ) {
             return null;
         }
@@ -105,6 +160,14 @@ public class SCEImage extends AbstractImageSupport {
         return null;
     }
 
+    private long getDefaultStaleness() {
+        return provider.getCustomLong("imageCatalogMaxAge", 300L) * 1000L;
+    }
+
+    private @Nonnull ImageCatalog.Snapshot getSnapshot(long maxStaleness) throws CloudException, InternalException {
+        return ImageCatalog.getInstance(provider).getSnapshot(provider, maxStaleness);
+    }
+
     @Override
     public @Nonnull String getProviderTermForImage(@Nonnull Locale locale, @Nonnull ImageClass cls) {
         return (cls.equals(ImageClass.MACHINE) ? "image" : "unsupported image type");
@@ -140,6 +203,14 @@ public class SCEImage extends AbstractImageSupport {
         if( body == null ) {
             throw new CloudException("No response body when bundling image");
         }
+        ImageCatalog.getInstance(provider).invalidate();
+        NegativeCache.clear(provider, "images");
+        InstanceInventory inventory = InstanceInventory.getInstance(provider);
+
+        if( inventory != null ) {
+            inventory.markState(options.getVirtualMachineId(), VmState.PENDING);
+        }
+
         Document xml = method.parseResponse(body, true);
         NodeList items = xml.getElementsByTagName("Image");
 
@@ -160,6 +231,24 @@ public class SCEImage extends AbstractImageSupport {
 
     @Override
     public boolean isImageSharedWithPublic(@Nonnull String machineImageId) throws CloudException, InternalException {
+        return isImageSharedWithPublic(machineImageId, getDefaultStaleness());
+    }
+
+    /**
+     * Identifies whether the specified image is visible to the public, reading from the image catalog when the
+     * image is in it.
+     * @param machineImageId the ID of the image being checked
+     * @param maxStaleness the maximum age in milliseconds of the catalog data
+     * @return true if the image is shared with the public
+     * @throws CloudException an error occurred talking to the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public boolean isImageSharedWithPublic(@Nonnull String machineImageId, long maxStaleness) throws CloudException, InternalException {
+        ImageCatalog.Entry entry = getSnapshot(maxStaleness).get(machineImageId);
+
+        if( entry != null ) {
+            return entry.shared;
+        }
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
@@ -177,7 +266,28 @@ public class SCEImage extends AbstractImageSupport {
         return (items.getLength() > 0 && isShared(items.item(0)));
     }
 
-    private boolean isShared(@Nullable Node node) {
+    /**
+     * Identifies images visible to every account, as opposed to images private to or shared with specific accounts.
+     * @param node the image element
+     * @return true if the image is public
+     */
+    boolean isPublic(@Nullable Node node) {
+        if( node == null ) {
+            return false;
+        }
+        NodeList attributes = node.getChildNodes();
+
+        for( int i=0; i<attributes.getLength(); i++ ) {
+            Node attr = attributes.item(i);
+
+            if( attr.getNodeName().equalsIgnoreCase("Visibility") ) {
+                return (attr.hasChildNodes() && "PUBLIC".equalsIgnoreCase(attr.getFirstChild().getNodeValue().trim()));
+            }
+        }
+        return false;
+    }
+
+    boolean isShared(@Nullable Node node) {
         if( node == null ) {
             return false;
         }
@@ -216,35 +326,50 @@ public class SCEImage extends AbstractImageSupport {
 
     @Override
     public @Nonnull Iterable<ResourceStatus> listImageStatus(@Nonnull ImageClass cls) throws CloudException, InternalException {
+        return listImageStatus(cls, getDefaultStaleness());
+    }
+
+    /**
+     * Lists the status of the images belonging to the current account from the image catalog.
+     * @param cls the class of image being listed
+     * @param maxStaleness the maximum age in milliseconds of the catalog data
+     * @return the status of each image owned by the current account
+     * @throws CloudException an error occurred talking to the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Iterable<ResourceStatus> listImageStatus(@Nonnull ImageClass cls, long maxStaleness) throws CloudException, InternalException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
-        SCEMethod method = new SCEMethod(provider);
+        String accountNumber = ctx.getAccountNumber();
 
-        Document xml = method.getAsXML("offerings/image");
-
-        if( xml == null ) {
+        if( accountNumber == null ) {
             return Collections.emptyList();
         }
-        NodeList items = xml.getElementsByTagName("Image");
         ArrayList<ResourceStatus> images = new ArrayList<ResourceStatus>();
 
-        for( int i=0; i<items.getLength(); i++ ) {
-            Node item = items.item(i);
-
-            ResourceStatus img = toStatus(item, ctx.getAccountNumber(), ctx.getRegionId());
-
-            if( img != null ) {
-                images.add(img);
-            }
+        for( ImageCatalog.Entry entry : getSnapshot(maxStaleness).listByOwner(accountNumber) ) {
+            images.add(new ResourceStatus(entry.image.getProviderMachineImageId(), entry.image.getCurrentState()));
         }
         return images;
     }
 
     @Override
     public @Nonnull Iterable<MachineImage> listImages(@Nullable ImageFilterOptions options) throws CloudException, InternalException {
+        return listImages(options, getDefaultStaleness());
+    }
+
+    /**
+     * Lists the images belonging to the current account that match the specified options from the image catalog.
+     * @param options the filter options to apply
+     * @param maxStaleness the maximum age in milliseconds of the catalog data
+     * @return the matching images owned by the current account
+     * @throws CloudException an error occurred talking to the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Iterable<MachineImage> listImages(@Nullable ImageFilterOptions options, long maxStaleness) throws CloudException, InternalException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
@@ -255,26 +380,12 @@ public class SCEImage extends AbstractImageSupport {
         if( cls != null && !cls.equals(ImageClass.MACHINE) ) {
             return Collections.emptyList();
         }
-        SCEMethod method = new SCEMethod(provider);
+        String accountNumber = ctx.getAccountNumber();
 
-        Document xml = method.getAsXML("offerings/image");
-
-        if( xml == null ) {
+        if( accountNumber == null ) {
             return Collections.emptyList();
         }
-        NodeList items = xml.getElementsByTagName("Image");
-        ArrayList<MachineImage> images = new ArrayList<MachineImage>();
-
-        for( int i=0; i<items.getLength(); i++ ) {
-            Node item = items.item(i);
-
-            MachineImage img = toMachineImage(ctx, item, true);
-
-            if( img != null && (options == null || options.matches(img)) ) {
-                images.add(img);
-            }
-        }
-        return images;
+        return Copies.copyAll(getSnapshot(maxStaleness).find(options, accountNumber));
     }
 
     @Override
@@ -313,6 +424,7 @@ public class SCEImage extends AbstractImageSupport {
         SCEMethod method = new SCEMethod(provider);
 
         method.delete("offerings/image/" + providerImageId);
+        ImageCatalog.getInstance(provider).invalidate();
     }
 
     @Override
@@ -323,37 +435,24 @@ public class SCEImage extends AbstractImageSupport {
 
     @Override
     public @Nonnull Iterable<MachineImage> searchPublicImages(@Nonnull ImageFilterOptions options) throws CloudException, InternalException {
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new SCEConfigException("No context was configured for this request");
-        }
+        return searchPublicImages(options, getDefaultStaleness());
+    }
 
+    /**
+     * Searches the image catalog for images matching the specified options.
+     * @param options the filter options to apply
+     * @param maxStaleness the maximum age in milliseconds of the catalog data
+     * @return the matching images
+     * @throws CloudException an error occurred talking to the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Iterable<MachineImage> searchPublicImages(@Nonnull ImageFilterOptions options, long maxStaleness) throws CloudException, InternalException {
         ImageClass cls = options.getImageClass();
 
         if( cls != null && !cls.equals(ImageClass.MACHINE) ) {
             return Collections.emptyList();
         }
-        SCEMethod method = new SCEMethod(provider);
-
-        Document xml = method.getAsXML("offerings/image");
-
-        if( xml == null ) {
-            return Collections.emptyList();
-        }
-        NodeList items = xml.getElementsByTagName("Image");
-        ArrayList<MachineImage> images = new ArrayList<MachineImage>();
-
-        for( int i=0; i<items.getLength(); i++ ) {
-            Node item = items.item(i);
-
-            MachineImage img = toMachineImage(ctx, item, false);
-
-            if( img != null && options.matches(img) ) {
-                images.add(img);
-            }
-        }
-        return images;
+        return Copies.copyAll(getSnapshot(maxStaleness).find(options, null));
     }
 
     @Override
@@ -391,10 +490,11 @@ public class SCEImage extends AbstractImageSupport {
         return new String[0];
     }
 
-    private @Nullable MachineImage toMachineImage(@Nonnull ProviderContext ctx, @Nullable Node node, boolean mine) throws CloudException, InternalException {
+    @Nullable MachineImage toMachineImage(@Nonnull ProviderContext ctx, @Nullable Node node, boolean mine) throws CloudException, InternalException {
         if( node == null || !node.hasChildNodes() ) {
             return null;
         }
+        StringPool strings = provider.getStringPool();
         NodeList attributes = node.getChildNodes();
         Platform platform = Platform.UNKNOWN;
         MachineImageState state = MachineImageState.PENDING;
@@ -417,7 +517,7 @@ public class SCEImage extends AbstractImageSupport {
                 description = attr.getFirstChild().getNodeValue().trim();
             }
             else if( nodeName.equalsIgnoreCase("Location") && attr.hasChildNodes() ) {
-                regionId = attr.getFirstChild().getNodeValue().trim();
+                regionId = strings.canonicalize(attr.getFirstChild().getNodeValue().trim());
             }
             else if( nodeName.equalsIgnoreCase("State") && attr.hasChildNodes() ) {
                 String status = attr.getFirstChild().getNodeValue().trim();
@@ -425,7 +525,7 @@ public class SCEImage extends AbstractImageSupport {
                 state = toMachineImageState(status);
             }
             else if( nodeName.equalsIgnoreCase("Owner") && attr.hasChildNodes() ) {
-                ownerId = attr.getFirstChild().getNodeValue().trim();
+                ownerId = strings.canonicalize(attr.getFirstChild().getNodeValue().trim());
             }
             else if( nodeName.equalsIgnoreCase("Platform") && attr.hasChildNodes() ) {
                 String p = attr.getFirstChild().getNodeValue().trim();
@@ -500,48 +600,4 @@ public class SCEImage extends AbstractImageSupport {
         System.out.println("DEBUG: Unknown machine image state: " + status);
         return MachineImageState.PENDING;
     }
-
-    private @Nullable ResourceStatus toStatus(@Nullable Node node, @Nullable String accountId, @Nullable String regionId) throws CloudException, InternalException {
-        if( node == null || !node.hasChildNodes() ) {
-            return null;
-        }
-        NodeList attributes = node.getChildNodes();
-        MachineImageState state = null;
-        String ownerId = null;
-        String imgId = null;
-        String rid = null;
-
-        for( int i=0; i<attributes.getLength(); i++ ) {
-            Node attr = attributes.item(i);
-            String nodeName = attr.getNodeName();
-
-            if( nodeName.equalsIgnoreCase("ID") && attr.hasChildNodes() ) {
-                imgId = attr.getFirstChild().getNodeValue().trim();
-            }
-            else if( nodeName.equalsIgnoreCase("State") && attr.hasChildNodes() ) {
-                String status = attr.getFirstChild().getNodeValue().trim();
-
-                state = toMachineImageState(status);
-            }
-            else if( nodeName.equalsIgnoreCase("Owner") && attr.hasChildNodes() ) {
-                ownerId = attr.getFirstChild().getNodeValue().trim();
-            }
-            else if( nodeName.equalsIgnoreCase("Location") && attr.hasChildNodes() ) {
-                rid = attr.getFirstChild().getNodeValue().trim();
-            }
-            if( state != null && imgId != null && ownerId != null && rid != null ) {
-                break;
-            }
-        }
-        if( imgId == null ) {
-            return null;
-        }
-        if( rid == null || !rid.equals(regionId) ) {
-            return null;
-        }
-        if( accountId != null && !accountId.equals(ownerId) ) {
-            return null;
-        }
-        return new ResourceStatus(imgId, state == null ? MachineImageState.PENDING : state);
-    }
 }
@@ -0,0 +1,432 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce.compute.vm;
+
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Column-oriented storage for large numbers of instances held outside the Java heap. Each instance occupies a fixed
+ * width row in a direct buffer; strings that repeat across instances (region, owner, product, image, and VLAN) are
+ * dictionary encoded, strings unique to an instance live in a separate direct buffer, states are single bytes, and
+ * timestamps are primitive longs. {@link Row} is a flyweight that reads individual columns in place, and
+ * {@link VirtualMachine} objects are built only when a caller actually asks for one. Rows are found by ID through an
+ * on-heap map from ID to row number. Replacing an instance marks its old row deleted and appends a new one; once
+ * deleted rows make up half of the rows, the live rows and their strings are copied into fresh buffers. The columns
+ * are not thread safe; {@link InstanceInventory} guards them.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class InstanceColumns {
+    static private final Charset UTF8 = Charset.forName("utf-8");
+
+    // row layout: offsets into the fixed width row
+    static private final int ID          = 0;
+    static private final int NAME        = 4;
+    static private final int DESCRIPTION = 8;
+    static private final int DNS         = 12;
+    static private final int PUBLIC_IPS  = 16;
+    static private final int PRIVATE_IPS = 20;
+    static private final int REGION      = 24;
+    static private final int DATA_CENTER = 28;
+    static private final int OWNER       = 32;
+    static private final int PRODUCT     = 36;
+    static private final int IMAGE       = 40;
+    static private final int VLAN        = 44;
+    static private final int STATE       = 48;
+    static private final int PLATFORM    = 49;
+    static private final int ARCH        = 50;
+    static private final int CREATED     = 52;
+    static private final int BOOTED      = 60;
+    static private final int STRIDE      = 68;
+
+    static private final byte DELETED = (byte)-1;
+
+    // compaction is not worth it for a handful of deleted rows
+    static private final int MIN_COMPACTION = 64;
+
+    // the columns holding offsets into the string buffer
+    static private final int[] STRING_COLUMNS = { ID, NAME, DESCRIPTION, DNS, PUBLIC_IPS, PRIVATE_IPS };
+
+    static private final VmState[]      states        = VmState.values();
+    static private final Platform[]     platforms     = Platform.values();
+    static private final Architecture[] architectures = Architecture.values();
+
+    /**
+     * Interns repeating strings as small integer codes. The distinct values are few, so the dictionary stays on heap.
+     */
+    static private class Dictionary {
+        private final ArrayList<String>      values = new ArrayList<String>();
+        private final HashMap<String,Integer> codes = new HashMap<String, Integer>();
+
+        public int encode(@Nullable String value) {
+            if( value == null ) {
+                return -1;
+            }
+            Integer code = codes.get(value);
+
+            if( code == null ) {
+                code = values.size();
+                values.add(value);
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        public @Nullable String decode(int code) {
+            return (code < 0 ? null : values.get(code));
+        }
+    }
+
+    private final Dictionary               dictionary = new Dictionary();
+    private final HashMap<String,Integer>  rowsById   = new HashMap<String, Integer>();
+    private ByteBuffer                     rows;
+    private ByteBuffer                     strings;
+    private int                            count;
+    private int                            live;
+
+    /**
+     * Builds columns holding the specified instances.
+     * @param vms the instances to store
+     */
+    public InstanceColumns(@Nonnull Collection<VirtualMachine> vms) {
+        rows = ByteBuffer.allocateDirect(Math.max(16, vms.size()) * STRIDE);
+        strings = ByteBuffer.allocateDirect(Math.max(16, vms.size()) * 64);
+        for( VirtualMachine vm : vms ) {
+            append(vm);
+        }
+    }
+
+    /**
+     * A movable view onto a single row. Reading a column through the flyweight decodes only that column.
+     */
+    public class Row {
+        private int row = -1;
+
+        private Row() { }
+
+        public @Nonnull String getProviderVirtualMachineId() {
+            //noinspection ConstantConditions
+            return readString(row, ID);
+        }
+
+        public @Nonnull VmState getCurrentState() {
+            return states[rows.get(row * STRIDE + STATE)];
+        }
+
+        public @Nullable String getProviderOwnerId() {
+            return dictionary.decode(rows.getInt(row * STRIDE + OWNER));
+        }
+
+        public @Nullable String getProviderMachineImageId() {
+            return dictionary.decode(rows.getInt(row * STRIDE + IMAGE));
+        }
+
+        public @Nullable String getProductId() {
+            return dictionary.decode(rows.getInt(row * STRIDE + PRODUCT));
+        }
+
+        public @Nullable String getProviderVlanId() {
+            return dictionary.decode(rows.getInt(row * STRIDE + VLAN));
+        }
+
+        public long getCreationTimestamp() {
+            return rows.getLong(row * STRIDE + CREATED);
+        }
+
+        /**
+         * @return a new instance object built from this row
+         */
+        public @Nonnull VirtualMachine toVirtualMachine() {
+            return materialize(row);
+        }
+    }
+
+    /**
+     * Iterates over the live rows with a single flyweight, which is repositioned on each call to <code>next()</code>.
+     */
+    private class RowIterator implements Iterator<Row> {
+        private final Row flyweight = new Row();
+        private int       next      = advance(0);
+
+        private int advance(int from) {
+            while( from < count && rows.get(from * STRIDE + STATE) == DELETED ) {
+                from++;
+            }
+            return from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < count;
+        }
+
+        @Override
+        public @Nonnull Row next() {
+            if( next >= count ) {
+                throw new NoSuchElementException();
+            }
+            flyweight.row = next;
+            next = advance(next + 1);
+            return flyweight;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * @return the live rows, all read through one reused flyweight
+     */
+    public @Nonnull Iterable<Row> rows() {
+        return new Iterable<Row>() {
+            @Override
+            public @Nonnull Iterator<Row> iterator() {
+                return new RowIterator();
+            }
+        };
+    }
+
+    /**
+     * Adds an instance, replacing any existing row for the same ID.
+     * @param vm the instance to store
+     */
+    public void put(@Nonnull VirtualMachine vm) {
+        int row = find(vm.getProviderVirtualMachineId());
+
+        if( row > -1 ) {
+            rows.put(row * STRIDE + STATE, DELETED);
+            live--;
+        }
+        append(vm);
+        if( count - live >= MIN_COMPACTION && count - live >= live ) {
+            compact();
+        }
+    }
+
+    /**
+     * Copies the live rows, and only the strings they refer to, into new buffers sized for them.
+     */
+    private void compact() {
+        ByteBuffer newRows = ByteBuffer.allocateDirect(Math.max(16, live) * STRIDE);
+        ByteBuffer newStrings = ByteBuffer.allocateDirect(Math.max(64, strings.position()/Math.max(1, count) * live));
+        byte[] row = new byte[STRIDE];
+        int n = 0;
+
+        rowsById.clear();
+        for( int i=0; i<count; i++ ) {
+            if( rows.get(i * STRIDE + STATE) == DELETED ) {
+                continue;
+            }
+            ByteBuffer source = rows.duplicate();
+
+            source.position(i * STRIDE);
+            source.get(row);
+            newRows.put(row);
+            for( int column : STRING_COLUMNS ) {
+                int offset = rows.getInt(i * STRIDE + column);
+
+                if( offset > -1 ) {
+                    int length = strings.getInt(offset) + 4;
+
+                    if( newStrings.remaining() < length ) {
+                        newStrings = grow(newStrings, length);
+                    }
+                    newRows.putInt(n * STRIDE + column, newStrings.position());
+
+                    ByteBuffer bytes = strings.duplicate();
+
+                    bytes.position(offset);
+                    bytes.limit(offset + length);
+                    newStrings.put(bytes);
+                }
+            }
+            //noinspection ConstantConditions
+            rowsById.put(readString(i, ID), n);
+            n++;
+        }
+        rows = newRows;
+        strings = newStrings;
+        count = n;
+        live = n;
+    }
+
+    /**
+     * Changes the state of an instance in place.
+     * @param vmId the instance to change
+     * @param state the new state
+     * @return true if the instance was found
+     */
+    public boolean setState(@Nonnull String vmId, @Nonnull VmState state) {
+        int row = find(vmId);
+
+        if( row < 0 ) {
+            return false;
+        }
+        rows.put(row * STRIDE + STATE, (byte)state.ordinal());
+        return true;
+    }
+
+    /**
+     * @return the number of live instances in the columns
+     */
+    public int size() {
+        return live;
+    }
+
+    private void append(@Nonnull VirtualMachine vm) {
+        if( rows.remaining() < STRIDE ) {
+            rows = grow(rows, STRIDE);
+        }
+        int base = count * STRIDE;
+
+        rows.position(base + STRIDE);
+        rows.putInt(base + ID, writeString(vm.getProviderVirtualMachineId()));
+        rows.putInt(base + NAME, writeString(vm.getName()));
+        rows.putInt(base + DESCRIPTION, writeString(vm.getDescription()));
+        rows.putInt(base + DNS, writeString(vm.getPublicDnsAddress()));
+        rows.putInt(base + PUBLIC_IPS, writeString(join(vm.getPublicIpAddresses())));
+        rows.putInt(base + PRIVATE_IPS, writeString(join(vm.getPrivateIpAddresses())));
+        rows.putInt(base + REGION, dictionary.encode(vm.getProviderRegionId()));
+        rows.putInt(base + DATA_CENTER, dictionary.encode(vm.getProviderDataCenterId()));
+        rows.putInt(base + OWNER, dictionary.encode(vm.getProviderOwnerId()));
+        rows.putInt(base + PRODUCT, dictionary.encode(vm.getProductId()));
+        rows.putInt(base + IMAGE, dictionary.encode(vm.getProviderMachineImageId()));
+        rows.putInt(base + VLAN, dictionary.encode(vm.getProviderVlanId()));
+        rows.put(base + STATE, (byte)(vm.getCurrentState() == null ? VmState.PENDING : vm.getCurrentState()).ordinal());
+        rows.put(base + PLATFORM, (byte)(vm.getPlatform() == null ? Platform.UNKNOWN : vm.getPlatform()).ordinal());
+        rows.put(base + ARCH, (byte)(vm.getArchitecture() == null ? Architecture.I64 : vm.getArchitecture()).ordinal());
+        rows.putLong(base + CREATED, vm.getCreationTimestamp());
+        rows.putLong(base + BOOTED, vm.getLastBootTimestamp());
+        if( vm.getProviderVirtualMachineId() != null ) {
+            rowsById.put(vm.getProviderVirtualMachineId(), count);
+        }
+        count++;
+        live++;
+    }
+
+    private int find(@Nullable String vmId) {
+        Integer row = (vmId == null ? null : rowsById.get(vmId));
+
+        return (row == null ? -1 : row);
+    }
+
+    private @Nonnull VirtualMachine materialize(int row) {
+        int base = row * STRIDE;
+        VirtualMachine vm = new VirtualMachine();
+
+        vm.setRebootable(true);
+        vm.setClonable(false);
+        vm.setImagable(true);
+        vm.setPausable(false);
+        vm.setPersistent(true);
+        vm.setProviderVirtualMachineId(readString(row, ID));
+        vm.setName(readString(row, NAME));
+        vm.setDescription(readString(row, DESCRIPTION));
+        vm.setPublicDnsAddress(readString(row, DNS));
+        vm.setPublicIpAddresses(split(readString(row, PUBLIC_IPS)));
+        vm.setPrivateIpAddresses(split(readString(row, PRIVATE_IPS)));
+        vm.setProviderRegionId(dictionary.decode(rows.getInt(base + REGION)));
+        vm.setProviderDataCenterId(dictionary.decode(rows.getInt(base + DATA_CENTER)));
+        vm.setProviderOwnerId(dictionary.decode(rows.getInt(base + OWNER)));
+        vm.setProductId(dictionary.decode(rows.getInt(base + PRODUCT)));
+        vm.setProviderMachineImageId(dictionary.decode(rows.getInt(base + IMAGE)));
+        vm.setProviderVlanId(dictionary.decode(rows.getInt(base + VLAN)));
+        vm.setCurrentState(states[rows.get(base + STATE)]);
+        vm.setPlatform(platforms[rows.get(base + PLATFORM) & 0xFF]);
+        vm.setArchitecture(architectures[rows.get(base + ARCH) & 0xFF]);
+        vm.setCreationTimestamp(rows.getLong(base + CREATED));
+        vm.setLastBootTimestamp(rows.getLong(base + BOOTED));
+        return vm;
+    }
+
+    private @Nullable String readString(int row, int column) {
+        int offset = rows.getInt(row * STRIDE + column);
+
+        if( offset < 0 ) {
+            return null;
+        }
+        byte[] bytes = new byte[strings.getInt(offset)];
+
+        for( int i=0; i<bytes.length; i++ ) {
+            bytes[i] = strings.get(offset + 4 + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    private int writeString(@Nullable String value) {
+        if( value == null ) {
+            return -1;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+
+        if( strings.remaining() < bytes.length + 4 ) {
+            strings = grow(strings, bytes.length + 4);
+        }
+        int offset = strings.position();
+
+        strings.putInt(bytes.length);
+        strings.put(bytes);
+        return offset;
+    }
+
+    static private @Nonnull ByteBuffer grow(@Nonnull ByteBuffer buffer, int needed) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        ByteBuffer source = buffer.duplicate();
+
+        source.flip();
+        larger.put(source);
+        return larger;
+    }
+
+    static private @Nullable String join(@Nullable String[] values) {
+        if( values == null || values.length < 1 ) {
+            return null;
+        }
+        StringBuilder str = new StringBuilder();
+
+        for( String value : values ) {
+            if( str.length() > 0 ) {
+                str.append(',');
+            }
+            str.append(value);
+        }
+        return str.toString();
+    }
+
+    static private @Nonnull String[] split(@Nullable String value) {
+        return (value == null ? new String[0] : value.split(","));
+    }
+}
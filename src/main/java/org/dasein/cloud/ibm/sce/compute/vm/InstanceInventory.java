@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce.compute.vm;
+
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.ResourceStatus;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.ibm.sce.Copies;
+import org.dasein.cloud.ibm.sce.SCE;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The last known list of instances for an endpoint, region, and account. The inventory is filled by full listings
+ * and kept current between listings by the operations that change instances: a launch adds the new instance and a
+ * terminate, reboot, or capture marks the instance with the state it is moving into. Listings may then be answered
+ * from the inventory while it is younger than the age set in the <code>inventoryMaxAge</code> custom property (in
+ * seconds). The inventory is off unless that property is set. Setting the <code>inventoryOffHeap</code> custom property
+ * to <code>true</code> keeps the instances in {@link InstanceColumns} outside the Java heap, which matters for accounts
+ * with very large numbers of instances. The inventory keeps its own copies of the instances it is given and hands out
+ * copies, so callers never share instance objects with it or with each other.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class InstanceInventory {
+    static private final ConcurrentHashMap<String,InstanceInventory> inventories = new ConcurrentHashMap<String, InstanceInventory>();
+
+    /**
+     * Provides the inventory for the endpoint, region, and account of the provider's context. While the inventory is
+     * not in use for the context, no inventory is created for it; one already created by a provider that does use it
+     * is still returned so that changes made through this provider keep it current.
+     * @param provider the provider whose inventory is sought
+     * @return the inventory shared by all providers connected with the same endpoint, region, and account or
+     * <code>null</code> if there is none and the inventory is not in use for the context
+     */
+    static public @Nullable InstanceInventory getInstance(@Nonnull SCE provider) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            return null;
+        }
+        String key = ctx.getEndpoint() + "|" + ctx.getRegionId() + "|" + ctx.getAccountNumber();
+        InstanceInventory inventory = inventories.get(key);
+
+        if( inventory == null && getMaxStaleness(provider) > 0L ) {
+            inventory = new InstanceInventory();
+
+            InstanceInventory existing = inventories.putIfAbsent(key, inventory);
+
+            if( existing != null ) {
+                inventory = existing;
+            }
+        }
+        return inventory;
+    }
+
+    /**
+     * Provides the maximum age of inventory data configured for the provider's context.
+     * @param provider the provider whose settings are being checked
+     * @return the maximum age in milliseconds, 0 if the inventory is not in use
+     */
+    static public long getMaxStaleness(@Nonnull SCE provider) {
+        return provider.getCustomLong("inventoryMaxAge", 0L) * 1000L;
+    }
+
+    /**
+     * Indicates whether the provider's context asks for the inventory to be kept outside the Java heap.
+     * @param provider the provider whose settings are being checked
+     * @return true if instances should be stored in {@link InstanceColumns}
+     */
+    static public boolean isOffHeap(@Nonnull SCE provider) {
+        ProviderContext ctx = provider.getContext();
+
+        return (ctx != null && ctx.getCustomProperties() != null && "true".equalsIgnoreCase(ctx.getCustomProperties().getProperty("inventoryOffHeap")));
+    }
+
+    private LinkedHashMap<String,VirtualMachine> vms;
+    private InstanceColumns                      columns;
+    private long                                 timestamp;
+
+    private InstanceInventory() { }
+
+    /**
+     * Lists the instances in the inventory if the inventory is no older than the specified bound.
+     * @param maxStaleness the maximum age in milliseconds of acceptable data
+     * @return copies of the instances in the inventory or <code>null</code> if the inventory is missing or too old
+     * @throws InternalException the instances could not be copied
+     */
+    public synchronized @Nullable Collection<VirtualMachine> list(long maxStaleness) throws InternalException {
+        if( !isCurrent(maxStaleness) ) {
+            return null;
+        }
+        if( columns != null ) {
+            ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>(columns.size());
+
+            for( InstanceColumns.Row row : columns.rows() ) {
+                list.add(row.toVirtualMachine());
+            }
+            return list;
+        }
+        return Copies.copyAll(vms.values());
+    }
+
+    /**
+     * Lists the state of each instance in the inventory without building instance objects.
+     * @param maxStaleness the maximum age in milliseconds of acceptable data
+     * @return the instance states or <code>null</code> if the inventory is missing or too old
+     */
+    public synchronized @Nullable Collection<ResourceStatus> listStatus(long maxStaleness) {
+        if( !isCurrent(maxStaleness) ) {
+            return null;
+        }
+        ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+
+        if( columns != null ) {
+            for( InstanceColumns.Row row : columns.rows() ) {
+                status.add(new ResourceStatus(row.getProviderVirtualMachineId(), row.getCurrentState()));
+            }
+        }
+        else {
+            for( VirtualMachine vm : vms.values() ) {
+                status.add(new ResourceStatus(vm.getProviderVirtualMachineId(), vm.getCurrentState()));
+            }
+        }
+        return status;
+    }
+
+    private boolean isCurrent(long maxStaleness) {
+        return ((vms != null || columns != null) && maxStaleness > 0L && (System.currentTimeMillis() - timestamp) <= maxStaleness);
+    }
+
+    /**
+     * Replaces the inventory with the results of a full listing.
+     * @param listing the instances just listed from the cloud
+     * @param offHeap true if the instances should be kept outside the Java heap
+     * @throws InternalException the instances could not be copied
+     */
+    public synchronized void replace(@Nonnull Collection<VirtualMachine> listing, boolean offHeap) throws InternalException {
+        if( offHeap ) {
+            columns = new InstanceColumns(listing);
+            vms = null;
+        }
+        else {
+            LinkedHashMap<String,VirtualMachine> map = new LinkedHashMap<String, VirtualMachine>();
+
+            for( VirtualMachine vm : listing ) {
+                map.put(vm.getProviderVirtualMachineId(), Copies.copy(vm));
+            }
+            vms = map;
+            columns = null;
+        }
+        timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds or replaces a single instance in the inventory.
+     * @param vm the instance as just returned by the cloud
+     * @throws InternalException the instance could not be copied
+     */
+    public synchronized void put(@Nonnull VirtualMachine vm) throws InternalException {
+        if( columns != null ) {
+            columns.put(vm);
+        }
+        else if( vms != null ) {
+            vms.put(vm.getProviderVirtualMachineId(), Copies.copy(vm));
+        }
+    }
+
+    /**
+     * Records that an instance has been asked to move into a new state. Only the inventory's own copy changes.
+     * @param vmId the instance that was changed
+     * @param state the state the instance is now moving through
+     */
+    public synchronized void markState(@Nonnull String vmId, @Nonnull VmState state) {
+        if( columns != null ) {
+            columns.setState(vmId, state);
+            return;
+        }
+        VirtualMachine vm = (vms == null ? null : vms.get(vmId));
+
+        if( vm != null ) {
+            vm.setCurrentState(state);
+        }
+    }
+}
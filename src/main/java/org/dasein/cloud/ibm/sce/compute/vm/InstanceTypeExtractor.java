@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce.compute.vm;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.VirtualMachineProduct;
+import org.dasein.cloud.ibm.sce.SCE;
+import org.dasein.util.uom.storage.Gigabyte;
+import org.dasein.util.uom.storage.Megabyte;
+import org.dasein.util.uom.storage.Storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pulls the instance types out of the <code>offerings/image</code> catalog as it streams in. Only the
+ * <code>Architecture</code> and <code>SupportedInstanceTypes</code> elements of each image are looked at; everything
+ * else is passed over without being materialized. Instance types are shared by many images, so each distinct type is
+ * turned into a product (and has its CPU/RAM/disk dimensions parsed out of its ID) only the first time it is seen.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class InstanceTypeExtractor {
+    static private final Logger logger = SCE.getLogger(InstanceTypeExtractor.class, "std");
+
+    static private final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    private final HashMap<String,VirtualMachineProduct>                          unique = new HashMap<String, VirtualMachineProduct>();
+    private final HashMap<Architecture,LinkedHashMap<String,VirtualMachineProduct>> byArchitecture = new HashMap<Architecture, LinkedHashMap<String, VirtualMachineProduct>>();
+
+    /**
+     * Reads the image catalog from the specified stream and groups the instance types it finds by architecture.
+     * The stream is closed when the catalog has been read.
+     * @param input the <code>offerings/image</code> response body
+     * @return the distinct products supported for each architecture found in the catalog
+     * @throws CloudException the catalog could not be read
+     */
+    public @Nonnull Map<Architecture,LinkedHashMap<String,VirtualMachineProduct>> extract(@Nonnull InputStream input) throws CloudException {
+        XMLStreamReader reader = null;
+
+        try {
+            synchronized( factory ) {
+                reader = factory.createXMLStreamReader(input);
+            }
+            while( reader.hasNext() ) {
+                if( reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("Image") ) {
+                    readImage(reader);
+                }
+            }
+            return byArchitecture;
+        }
+        catch( XMLStreamException e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            if( reader != null ) {
+                try { reader.close(); }
+                catch( XMLStreamException ignore ) { }
+            }
+            try { input.close(); }
+            catch( Throwable ignore ) { }
+        }
+    }
+
+    private void readImage(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        ArrayList<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>();
+        Architecture architecture = null;
+        int depth = 1;
+
+        while( depth > 0 && reader.hasNext() ) {
+            int event = reader.next();
+
+            if( event == XMLStreamConstants.END_ELEMENT ) {
+                depth--;
+            }
+            else if( event == XMLStreamConstants.START_ELEMENT ) {
+                String name = reader.getLocalName();
+
+                if( depth == 1 && name.equalsIgnoreCase("Architecture") ) {
+                    architecture = toArchitecture(reader.getElementText().trim());
+                }
+                else if( depth == 1 && name.equalsIgnoreCase("SupportedInstanceTypes") ) {
+                    readInstanceTypes(reader, products);
+                }
+                else {
+                    depth++;
+                }
+            }
+        }
+        if( architecture != null && !products.isEmpty() ) {
+            LinkedHashMap<String,VirtualMachineProduct> map = byArchitecture.get(architecture);
+
+            if( map == null ) {
+                map = new LinkedHashMap<String, VirtualMachineProduct>();
+                byArchitecture.put(architecture, map);
+            }
+            for( VirtualMachineProduct prd : products ) {
+                map.put(prd.getProviderProductId(), prd);
+            }
+        }
+    }
+
+    private void readInstanceTypes(@Nonnull XMLStreamReader reader, @Nonnull ArrayList<VirtualMachineProduct> products) throws XMLStreamException {
+        int depth = 1;
+
+        while( depth > 0 && reader.hasNext() ) {
+            int event = reader.next();
+
+            if( event == XMLStreamConstants.END_ELEMENT ) {
+                depth--;
+            }
+            else if( event == XMLStreamConstants.START_ELEMENT ) {
+                if( depth == 1 && reader.getLocalName().equalsIgnoreCase("InstanceType") ) {
+                    VirtualMachineProduct prd = readInstanceType(reader);
+
+                    if( prd != null ) {
+                        products.add(prd);
+                    }
+                }
+                else {
+                    depth++;
+                }
+            }
+        }
+    }
+
+    private @Nullable VirtualMachineProduct readInstanceType(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        String id = null, label = null, detail = null;
+        int depth = 1;
+
+        while( depth > 0 && reader.hasNext() ) {
+            int event = reader.next();
+
+            if( event == XMLStreamConstants.END_ELEMENT ) {
+                depth--;
+            }
+            else if( event == XMLStreamConstants.START_ELEMENT ) {
+                String name = reader.getLocalName();
+
+                if( depth == 1 && name.equals("ID") ) {
+                    id = reader.getElementText().trim();
+                }
+                else if( depth == 1 && name.equals("Label") ) {
+                    label = reader.getElementText().trim();
+                }
+                else if( depth == 1 && name.equals("Detail") ) {
+                    detail = reader.getElementText().trim();
+                }
+                else {
+                    depth++;
+                }
+            }
+        }
+        if( id == null || id.length() < 1 ) {
+            return null;
+        }
+        VirtualMachineProduct prd = unique.get(id);
+
+        if( prd == null ) {
+            prd = toProduct(id);
+            unique.put(id, prd);
+        }
+        if( label != null && label.length() > 0 ) {
+            prd.setName(label);
+        }
+        if( detail != null && detail.length() > 0 ) {
+            prd.setDescription(detail);
+        }
+        return prd;
+    }
+
+    private @Nonnull Architecture toArchitecture(@Nonnull String val) {
+        if( val.equals("i386") ) {
+            return Architecture.I32;
+        }
+        else if( val.startsWith("x86") ) {
+            return Architecture.I64;
+        }
+        logger.warn("Unknown architecture: " + val);
+        return Architecture.I32;
+    }
+
+    private @Nonnull VirtualMachineProduct toProduct(@Nonnull String productId) {
+        VirtualMachineProduct prd = new VirtualMachineProduct();
+        String[] parts = productId.split("/");
+
+        prd.setProviderProductId(productId);
+        if( parts.length == 3 ) {
+            String[] sub = parts[0].split("\\.");
+
+            if( sub.length > 0 ) {
+                parts[0] = sub[sub.length-1];
+            }
+            try {
+                prd.setCpuCount(Integer.parseInt(parts[0]));
+            }
+            catch( NumberFormatException ignore ) {
+                // ignore
+            }
+            try {
+                prd.setRamSize(new Storage<Megabyte>(Integer.parseInt(parts[1]), Storage.MEGABYTE));
+            }
+            catch( NumberFormatException ignore ) {
+                // ignore
+            }
+            try {
+                int idx = parts[2].indexOf("*");
+
+                if( idx < 1 ) {
+                    prd.setRootVolumeSize(new Storage<Gigabyte>(Integer.parseInt(parts[2]), Storage.GIGABYTE));
+                }
+                else {
+                    prd.setRootVolumeSize(new Storage<Gigabyte>(Integer.parseInt(parts[2].substring(0,idx)), Storage.GIGABYTE));
+                }
+            }
+            catch( NumberFormatException ignore ) {
+                // ignore
+            }
+        }
+        return prd;
+    }
+}
@@ -0,0 +1,492 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce.compute.vm;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.ibm.sce.Copies;
+import org.dasein.cloud.ibm.sce.SCE;
+import org.dasein.cloud.ibm.sce.StringPool;
+import org.dasein.cloud.ibm.sce.XmlScanner;
+import org.dasein.cloud.network.RawAddress;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * A virtual machine backed directly by its <code>Instance</code> element in the raw bytes of a listing. Only the ID,
+ * location, and launch time are decoded up front; every other field is decoded from the retained response buffer the
+ * first time it is read and kept from then on. Fields that are set explicitly are never decoded. Each field is decoded
+ * the way {@link SCEVirtualMachine#toVirtualMachine(org.dasein.cloud.ProviderContext, org.w3c.dom.Node)} decodes it,
+ * through the same address and platform logic, so a fully decoded view equals the eagerly decoded virtual machine.
+ * The references tying a view to its listing are transient, and serialization writes a fully decoded plain virtual
+ * machine in place of the view. Views are produced by {@link SCEVirtualMachine#listVirtualMachines()} when the
+ * <code>lazyInstanceViews</code> custom property is <code>true</code>.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class InstanceView extends VirtualMachine {
+    static private final int NAME              = 1;
+    static private final int DESCRIPTION       = 1 << 1;
+    static private final int DNS               = 1 << 2;
+    static private final int PUBLIC_ADDRESSES  = 1 << 3;
+    static private final int PRIVATE_ADDRESSES = 1 << 4;
+    static private final int IMAGE             = 1 << 5;
+    static private final int PRODUCT           = 1 << 6;
+    static private final int OWNER             = 1 << 7;
+    static private final int STATE             = 1 << 8;
+    static private final int VLAN              = 1 << 9;
+    static private final int PLATFORM          = 1 << 10;
+
+    static private final String[] ADDRESS_TAGS = { "IP", "PrimaryIP", "SecondaryIP" };
+
+    /**
+     * Constructs a view over the specified instance element if it describes an instance in the specified region.
+     * @param provider the provider whose string pool and timestamp parsing the view uses
+     * @param support the virtual machine support that classifies addresses
+     * @param scanner the scanner over the listing
+     * @param start the content start of the instance element
+     * @param end the content end of the instance element
+     * @param regionId the region to which the listing is restricted
+     * @return a view of the instance or <code>null</code> if the element has no ID or belongs to another region
+     * @throws CloudException the launch time of the instance could not be parsed
+     */
+    static public @Nullable InstanceView getInstance(@Nonnull SCE provider, @Nonnull SCEVirtualMachine support, @Nonnull XmlScanner scanner, int start, int end, @Nullable String regionId) throws CloudException {
+        String vmId = lastText(scanner, "ID", start, end);
+
+        if( vmId == null ) {
+            return null;
+        }
+        String location = lastText(scanner, "Location", start, end);
+
+        if( location == null || !location.equals(regionId) ) {
+            return null;
+        }
+        // parsed up front so that a bad launch time fails the listing just as it does when decoding eagerly
+        long launched = provider.parseTimestamp(lastText(scanner, "LaunchTime", start, end));
+
+        return new InstanceView(provider, support, scanner, start, end, vmId, provider.getStringPool().canonicalize(location), launched);
+    }
+
+    /**
+     * Provides the text of the last child element with the specified name, matching the eager decoder in which each
+     * child overwrites what earlier children with the same name set.
+     */
+    static private @Nullable String lastText(@Nonnull XmlScanner scanner, @Nonnull String name, int start, int end) {
+        int[] ranges = scanner.findChildren(name, start, end);
+        String text = null;
+
+        for( int i=0; i<ranges.length; i+=2 ) {
+            String t = scanner.text(ranges[i], ranges[i+1]);
+
+            if( t != null ) {
+                text = t;
+            }
+        }
+        return text;
+    }
+
+    private transient final SCE               provider;
+    private transient final SCEVirtualMachine support;
+    private transient final XmlScanner        scanner;
+    private final int                         start;
+    private final int                         end;
+    private volatile int                      decoded;
+
+    private InstanceView(@Nonnull SCE provider, @Nonnull SCEVirtualMachine support, @Nonnull XmlScanner scanner, int start, int end, @Nonnull String vmId, @Nonnull String regionId, long launched) {
+        this.provider = provider;
+        this.support = support;
+        this.scanner = scanner;
+        this.start = start;
+        this.end = end;
+        super.setProviderVirtualMachineId(vmId);
+        super.setProviderRegionId(regionId);
+        super.setProviderDataCenterId(regionId);
+        super.setCreationTimestamp(launched);
+        super.setLastBootTimestamp(launched);
+        setRebootable(true);
+        setArchitecture(Architecture.I64);
+        setClonable(false);
+        setImagable(true);
+        setPausable(false);
+        setPersistent(true);
+    }
+
+    private boolean isDecoded(int field) {
+        return ((decoded & field) != 0);
+    }
+
+    private synchronized void markDecoded(int field) {
+        decoded |= field;
+    }
+
+    private @Nullable String lastText(@Nonnull String name) {
+        return lastText(scanner, name, start, end);
+    }
+
+    private synchronized void decode(int field) {
+        if( isDecoded(field) ) {
+            return;
+        }
+        StringPool strings = provider.getStringPool();
+
+        switch( field ) {
+            case NAME: case DESCRIPTION:
+                String name = lastText("Name");
+
+                if( name == null ) {
+                    name = getProviderVirtualMachineId();
+                }
+                if( field == NAME ) {
+                    super.setName(name);
+                }
+                else {
+                    super.setDescription(name);
+                }
+                break;
+            case DNS:
+                super.setPublicDnsAddress(lastText("Hostname"));
+                break;
+            case PUBLIC_ADDRESSES: case PRIVATE_ADDRESSES:
+                decodeAddresses();
+                break;
+            case IMAGE:
+                super.setProviderMachineImageId(strings.canonicalize(lastText("ImageID")));
+                break;
+            case PRODUCT:
+                super.setProductId(strings.canonicalize(lastText("InstanceType")));
+                break;
+            case OWNER:
+                super.setProviderOwnerId(strings.canonicalize(lastText("Owner")));
+                break;
+            case STATE:
+                String status = lastText("Status");
+
+                super.setCurrentState(status == null ? VmState.PENDING : SCEVirtualMachine.toVmState(status));
+                break;
+            case VLAN:
+                String vlanId = null;
+                int[] vlans = scanner.findChildren("Vlan", start, end);
+
+                for( int i=0; i<vlans.length; i+=2 ) {
+                    String id = lastText(scanner, "ID", vlans[i], vlans[i+1]);
+
+                    if( id != null ) {
+                        vlanId = id;
+                    }
+                }
+                super.setProviderVlanId(strings.canonicalize(vlanId));
+                break;
+            case PLATFORM:
+                super.setPlatform(decodePlatform());
+                break;
+        }
+        decoded |= field;
+    }
+
+    /**
+     * Decodes every field of this view and copies the result into a plain virtual machine that no longer refers to the
+     * response buffer.
+     * @return a fully decoded copy of this view
+     * @throws InternalException the fields could not be copied
+     */
+    public @Nonnull VirtualMachine materialize() throws InternalException {
+        for( int field=NAME; field<=PLATFORM; field <<= 1 ) {
+            decode(field);
+        }
+        VirtualMachine vm = new VirtualMachine();
+
+        Copies.copyFields(VirtualMachine.class, this, vm);
+        return vm;
+    }
+
+    /**
+     * Serializes a fully decoded plain virtual machine in place of this view.
+     * @return the decoded virtual machine
+     * @throws ObjectStreamException the view could not be decoded
+     */
+    protected Object writeReplace() throws ObjectStreamException {
+        try {
+            return materialize();
+        }
+        catch( InternalException e ) {
+            throw new NotSerializableException(e.getMessage());
+        }
+    }
+
+    /**
+     * Decodes the addresses in document order through the eager decoder's
+     * {@link SCEVirtualMachine#addIpAddress(VirtualMachine, String, boolean)} into a scratch virtual machine, since
+     * reading this view's own addresses would start decoding them again.
+     */
+    private void decodeAddresses() {
+        ArrayList<int[]> elements = new ArrayList<int[]>();
+
+        for( int tag=0; tag<ADDRESS_TAGS.length; tag++ ) {
+            int[] ranges = scanner.findChildren(ADDRESS_TAGS[tag], start, end);
+
+            for( int i=0; i<ranges.length; i+=2 ) {
+                elements.add(new int[] { ranges[i], ranges[i+1], tag });
+            }
+        }
+        Collections.sort(elements, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return (a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1));
+            }
+        });
+        VirtualMachine addresses = new VirtualMachine();
+
+        for( int[] element : elements ) {
+            if( element[2] == 0 ) {
+                String ip = scanner.text(element[0], element[1]);
+
+                if( ip != null ) {
+                    support.addIpAddress(addresses, ip, false);
+                }
+            }
+            else if( element[0] < element[1] ) {
+                support.addIpAddress(addresses, lastText(scanner, "IP", element[0], element[1]), true);
+            }
+        }
+        if( !isDecoded(PUBLIC_ADDRESSES) && addresses.getPublicIpAddresses().length > 0 ) {
+            super.setPublicIpAddresses(addresses.getPublicIpAddresses());
+        }
+        if( !isDecoded(PRIVATE_ADDRESSES) && addresses.getPrivateIpAddresses().length > 0 ) {
+            super.setPrivateIpAddresses(addresses.getPrivateIpAddresses());
+        }
+        decoded |= (PUBLIC_ADDRESSES | PRIVATE_ADDRESSES);
+    }
+
+    private @Nonnull Platform decodePlatform() {
+        Platform platform = Platform.UNKNOWN;
+        int[] software = scanner.findChildren("Software", start, end);
+
+        for( int s=0; s<software.length; s+=2 ) {
+            int[] items = scanner.findChildren(null, software[s], software[s+1]);
+
+            for( int i=0; i<items.length; i+=2 ) {
+                Platform p = SCEVirtualMachine.toPlatform(lastText(scanner, "Type", items[i], items[i+1]), lastText(scanner, "Name", items[i], items[i+1]));
+
+                if( p != null ) {
+                    platform = p;
+                }
+            }
+        }
+        return platform;
+    }
+
+    @Override
+    public @Nonnull VmState getCurrentState() {
+        if( !isDecoded(STATE) ) {
+            decode(STATE);
+        }
+        return super.getCurrentState();
+    }
+
+    @Override
+    public void setCurrentState(@Nonnull VmState state) {
+        markDecoded(STATE);
+        super.setCurrentState(state);
+    }
+
+    @Override
+    public String getDescription() {
+        if( !isDecoded(DESCRIPTION) ) {
+            decode(DESCRIPTION);
+        }
+        return super.getDescription();
+    }
+
+    @Override
+    public void setDescription(String description) {
+        markDecoded(DESCRIPTION);
+        super.setDescription(description);
+    }
+
+    @Override
+    public String getName() {
+        if( !isDecoded(NAME) ) {
+            decode(NAME);
+        }
+        return super.getName();
+    }
+
+    @Override
+    public void setName(String name) {
+        markDecoded(NAME);
+        super.setName(name);
+    }
+
+    @Override
+    public Platform getPlatform() {
+        if( !isDecoded(PLATFORM) ) {
+            decode(PLATFORM);
+        }
+        return super.getPlatform();
+    }
+
+    @Override
+    public void setPlatform(Platform platform) {
+        markDecoded(PLATFORM);
+        super.setPlatform(platform);
+    }
+
+    @Override
+    public RawAddress[] getPrivateAddresses() {
+        if( !isDecoded(PRIVATE_ADDRESSES) ) {
+            decode(PRIVATE_ADDRESSES);
+        }
+        return super.getPrivateAddresses();
+    }
+
+    @Override
+    public String[] getPrivateIpAddresses() {
+        if( !isDecoded(PRIVATE_ADDRESSES) ) {
+            decode(PRIVATE_ADDRESSES);
+        }
+        return super.getPrivateIpAddresses();
+    }
+
+    @Override
+    public void setPrivateAddresses(RawAddress... addresses) {
+        markDecoded(PRIVATE_ADDRESSES);
+        super.setPrivateAddresses(addresses);
+    }
+
+    @Override
+    public void setPrivateIpAddresses(String[] addresses) {
+        markDecoded(PRIVATE_ADDRESSES);
+        super.setPrivateIpAddresses(addresses);
+    }
+
+    @Override
+    public String getProviderMachineImageId() {
+        if( !isDecoded(IMAGE) ) {
+            decode(IMAGE);
+        }
+        return super.getProviderMachineImageId();
+    }
+
+    @Override
+    public void setProviderMachineImageId(String imageId) {
+        markDecoded(IMAGE);
+        super.setProviderMachineImageId(imageId);
+    }
+
+    @Override
+    public String getProviderOwnerId() {
+        if( !isDecoded(OWNER) ) {
+            decode(OWNER);
+        }
+        return super.getProviderOwnerId();
+    }
+
+    @Override
+    public void setProviderOwnerId(String ownerId) {
+        markDecoded(OWNER);
+        super.setProviderOwnerId(ownerId);
+    }
+
+    @Override
+    public String getProviderVlanId() {
+        if( !isDecoded(VLAN) ) {
+            decode(VLAN);
+        }
+        return super.getProviderVlanId();
+    }
+
+    @Override
+    public void setProviderVlanId(String vlanId) {
+        markDecoded(VLAN);
+        super.setProviderVlanId(vlanId);
+    }
+
+    @Override
+    public String getProductId() {
+        if( !isDecoded(PRODUCT) ) {
+            decode(PRODUCT);
+        }
+        return super.getProductId();
+    }
+
+    @Override
+    public void setProductId(String productId) {
+        markDecoded(PRODUCT);
+        super.setProductId(productId);
+    }
+
+    @Override
+    public String getPublicDnsAddress() {
+        if( !isDecoded(DNS) ) {
+            decode(DNS);
+        }
+        return super.getPublicDnsAddress();
+    }
+
+    @Override
+    public void setPublicDnsAddress(String address) {
+        markDecoded(DNS);
+        super.setPublicDnsAddress(address);
+    }
+
+    @Override
+    public RawAddress[] getPublicAddresses() {
+        if( !isDecoded(PUBLIC_ADDRESSES) ) {
+            decode(PUBLIC_ADDRESSES);
+        }
+        return super.getPublicAddresses();
+    }
+
+    @Override
+    public String[] getPublicIpAddresses() {
+        if( !isDecoded(PUBLIC_ADDRESSES) ) {
+            decode(PUBLIC_ADDRESSES);
+        }
+        return super.getPublicIpAddresses();
+    }
+
+    @Override
+    public void setPublicAddresses(RawAddress... addresses) {
+        markDecoded(PUBLIC_ADDRESSES);
+        super.setPublicAddresses(addresses);
+    }
+
+    @Override
+    public void setPublicIpAddresses(String[] addresses) {
+        markDecoded(PUBLIC_ADDRESSES);
+        super.setPublicIpAddresses(addresses);
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " [" + getProviderVirtualMachineId() + "]";
+    }
+}
@@ -39,17 +39,23 @@ import org.dasein.cloud.compute.VMLaunchOptions;
 import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.compute.VirtualMachineProduct;
 import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.ibm.sce.ElementFilter;
 import org.dasein.cloud.ibm.sce.ExtendedRegion;
+import org.dasein.cloud.ibm.sce.LookupBatcher;
+import org.dasein.cloud.ibm.sce.LookupIndex;
+import org.dasein.cloud.ibm.sce.Relationships;
 import org.dasein.cloud.ibm.sce.SCE;
+import org.dasein.cloud.ibm.sce.SCECache;
 import org.dasein.cloud.ibm.sce.SCEConfigException;
 import org.dasein.cloud.ibm.sce.SCEMethod;
+import org.dasein.cloud.ibm.sce.StringPool;
+import org.dasein.cloud.ibm.sce.XmlScanner;
 import org.dasein.cloud.ibm.sce.identity.keys.SSHKeys;
-import org.dasein.cloud.identity.SSHKeypair;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.util.CacheLevel;
 import org.dasein.util.CalendarWrapper;
-import org.dasein.util.uom.storage.Gigabyte;
-import org.dasein.util.uom.storage.Megabyte;
-import org.dasein.util.uom.storage.Storage;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -57,13 +63,16 @@ import org.w3c.dom.NodeList;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.DocumentBuilder;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
@@ -147,14 +156,9 @@ public class SCEVirtualMachine extends AbstractVMSupport {
 
     @Override
     public VirtualMachineProduct getProduct(@Nonnull String productId) throws InternalException, CloudException {
-        for( Architecture architecture : Architecture.values() ) {
-            for( VirtualMachineProduct prd : listProducts(architecture) ) {
-                if( prd.getProviderProductId().equals(productId) ) {
-                    return prd;
-                }
-            }
-        }
-        return null;
+        ProductCatalog catalog = getProductCatalog();
+
+        return (catalog == null ? null : catalog.byId.get(productId));
     }
 
     @Override
@@ -164,11 +168,40 @@ public class SCEVirtualMachine extends AbstractVMSupport {
 
     @Override
     public VirtualMachine getVirtualMachine(@Nonnull String vmId) throws InternalException, CloudException {
+        return getVirtualMachine(vmId, false);
+    }
+
+    /**
+     * Fetches the specified virtual machine, answering from instances seen by a recent list call unless told otherwise.
+     * @param vmId the ID of the virtual machine to fetch
+     * @param bypassIndex true to ignore the {@link LookupIndex} and fetch current data from the cloud
+     * @return the virtual machine or <code>null</code> if it does not exist
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred talking to SmartCloud
+     */
+    public VirtualMachine getVirtualMachine(@Nonnull String vmId, boolean bypassIndex) throws InternalException, CloudException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
+        if( !bypassIndex ) {
+            VirtualMachine vm = LookupIndex.lookup(provider, "instances", vmId, VirtualMachine.class);
+
+            if( vm != null ) {
+                return vm;
+            }
+        }
+        long window = provider.getCustomLong("lookupBatchWindow", 0L);
+
+        if( window > 0L ) {
+            return LookupBatcher.lookup(ctx, "instances", window, vmId, new LookupBatcher.Loader<VirtualMachine>() {
+                @Override
+                public @Nonnull Map<String, VirtualMachine> load() throws CloudException, InternalException {
+                    return mapVirtualMachines();
+                }
+            });
+        }
         SCEMethod method = new SCEMethod(provider);
 
         Document xml = method.getAsXML("instances/" + vmId);
@@ -189,6 +222,44 @@ public class SCEVirtualMachine extends AbstractVMSupport {
         return null;
     }
 
+    /**
+     * Fetches the specified virtual machines with a single list call rather than one call per virtual machine.
+     * @param vmIds the IDs of the virtual machines to fetch
+     * @return the matching virtual machines in the current region; IDs that do not exist are left out
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred talking to SmartCloud
+     */
+    public @Nonnull Collection<VirtualMachine> getVirtualMachines(@Nonnull Collection<String> vmIds) throws InternalException, CloudException {
+        if( vmIds.isEmpty() ) {
+            return Collections.emptyList();
+        }
+        if( vmIds.size() == 1 ) {
+            VirtualMachine vm = getVirtualMachine(vmIds.iterator().next());
+
+            return (vm == null ? Collections.<VirtualMachine>emptyList() : Collections.singletonList(vm));
+        }
+        Map<String,VirtualMachine> vms = mapVirtualMachines();
+        ArrayList<VirtualMachine> matches = new ArrayList<VirtualMachine>();
+
+        for( String vmId : vmIds ) {
+            VirtualMachine vm = vms.get(vmId);
+
+            if( vm != null ) {
+                matches.add(vm);
+            }
+        }
+        return matches;
+    }
+
+    private @Nonnull Map<String,VirtualMachine> mapVirtualMachines() throws InternalException, CloudException {
+        HashMap<String,VirtualMachine> vms = new HashMap<String, VirtualMachine>();
+
+        for( VirtualMachine vm : listVirtualMachines() ) {
+            vms.put(vm.getProviderVirtualMachineId(), vm);
+        }
+        return vms;
+    }
+
     @Override
     public @Nonnull Requirement identifyImageRequirement(@Nonnull ImageClass cls) throws CloudException, InternalException {
         return (cls.equals(ImageClass.MACHINE) ? Requirement.REQUIRED : Requirement.NONE);
@@ -304,6 +375,9 @@ public class SCEVirtualMachine extends AbstractVMSupport {
         }
         
         if( withLaunchOptions.getVlanId() != null ) {
+            if( provider.getNetworkServices().getVlanSupport().getVlan(withLaunchOptions.getVlanId(), true) == null ) {
+                throw new CloudException("No such VLAN: " + withLaunchOptions.getVlanId());
+            }
         	logger.debug("Adding vlanID parameter: " + withLaunchOptions.getVlanId());
             parameters.add(new BasicNameValuePair("vlanID", withLaunchOptions.getVlanId()));
         }
@@ -361,6 +435,13 @@ public class SCEVirtualMachine extends AbstractVMSupport {
             VirtualMachine vm = toVirtualMachine(ctx, item);
 
             if( vm != null ) {
+                InstanceInventory inventory = InstanceInventory.getInstance(provider);
+
+                // the inventory keeps its own copy, so the root password set below never reaches it
+                if( inventory != null ) {
+                    inventory.put(vm);
+                }
+                Relationships.invalidate(provider);
                 vm.setRootPassword(password);
             	vm.setRootUser(withLaunchOptions.getBootstrapUser());
                 return vm;
@@ -372,20 +453,7 @@ public class SCEVirtualMachine extends AbstractVMSupport {
     private @Nonnull String identifyKeypair() throws CloudException, InternalException {
         SSHKeys keys = provider.getIdentityServices().getShellKeySupport();
 
-        for( SSHKeypair kp : keys.list() ) {
-            String id = kp.getProviderKeypairId();
-
-            if( id != null ) {
-                return id;
-            }
-        }
-        SSHKeypair kp = keys.createKeypair("dsn" + System.currentTimeMillis());
-        String id = kp.getProviderKeypairId();
-
-        if( id != null ) {
-            return id;
-        }
-        throw new CloudException("Unable to identify keys in the cloud");
+        return keys.identifyDefaultKeypair();
     }
 
     @Override
@@ -393,129 +461,64 @@ public class SCEVirtualMachine extends AbstractVMSupport {
         return Collections.emptyList();
     }
 
-    static private Map<Architecture,Collection<VirtualMachineProduct>> products;
-
-    @Override
-    public Iterable<VirtualMachineProduct> listProducts(Architecture architecture) throws InternalException, CloudException {
-        if( products == null ) {
-            ProviderContext ctx = provider.getContext();
+    static private class ProductCatalog {
+        public final HashMap<Architecture,Collection<VirtualMachineProduct>> byArchitecture = new HashMap<Architecture, Collection<VirtualMachineProduct>>();
+        public final HashMap<String,VirtualMachineProduct>                   byId           = new HashMap<String, VirtualMachineProduct>();
+    }
 
-            if( ctx == null ) {
-                throw new SCEConfigException("No context was configured for this request");
+    private @Nullable ProductCatalog getProductCatalog() throws InternalException, CloudException {
+        SCECache<ProductCatalog> cache = SCECache.getInstance("products", CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(6, TimePeriod.HOUR), new TimePeriod<Hour>(3, TimePeriod.HOUR), new SCECache.Weigher<ProductCatalog>() {
+            @Override
+            public long weigh(@Nonnull ProductCatalog catalog) {
+                return catalog.byId.size();
             }
-            SCEMethod method = new SCEMethod(provider);
-
-            Document xml = method.getAsXML("offerings/image");
+        });
 
-            if( xml == null ) {
-                return Collections.emptyList();
+        // the cache lets only one thread per endpoint/region/account download the catalog
+        return cache.get(provider, new SCECache.Loader<ProductCatalog>() {
+            @Override
+            public @Nullable ProductCatalog load() throws CloudException, InternalException {
+                return loadProductCatalog();
             }
-            HashMap<String,VirtualMachineProduct> t = new HashMap<String, VirtualMachineProduct>();
-            HashMap<String,VirtualMachineProduct> s = new HashMap<String, VirtualMachineProduct>();
-            NodeList items = xml.getElementsByTagName("Image");
+        });
+    }
+
+    private @Nullable ProductCatalog loadProductCatalog() throws InternalException, CloudException {
+        SCEMethod method = new SCEMethod(provider);
 
-            for( int i=0; i<items.getLength(); i++ ) {
-                HashMap<String,VirtualMachineProduct> prdMap = new HashMap<String, VirtualMachineProduct>();
-                NodeList attrs = items.item(i).getChildNodes();
-                Architecture a = null;
+        InputStream input = method.getAsStream("offerings/image");
 
-                for( int j=0; j<attrs.getLength(); j++ ) {
-                    Node attr = attrs.item(j);
+        if( input == null ) {
+            return null;
+        }
+        Map<Architecture,LinkedHashMap<String,VirtualMachineProduct>> extracted = new InstanceTypeExtractor().extract(input);
+        ProductCatalog catalog = new ProductCatalog();
 
-                    if( attr.getNodeName().equalsIgnoreCase("Architecture") && attr.hasChildNodes() ) {
-                        String val = attr.getFirstChild().getNodeValue().trim();
+        for( Architecture a : new Architecture[] { Architecture.I32, Architecture.I64 } ) {
+            LinkedHashMap<String,VirtualMachineProduct> products = extracted.get(a);
 
-                        if( val.equals("i386") ) {
-                            a = Architecture.I32;
-                        }
-                        else if( val.startsWith("x86") ) {
-                            a = Architecture.I64;
-                        }
-                        else {
-                            System.out.println("DEBUG: Unknown architecture: " + val);
-                            a = Architecture.I32;
-                        }
-                    }
-                    else if( attr.getNodeName().equalsIgnoreCase("SupportedInstanceTypes") && attr.hasChildNodes() ) {
-                        NodeList types = attr.getChildNodes();
-
-                        for( int k=0; k<types.getLength(); k++ ) {
-                            Node type = types.item(k);
-
-                            if( type.getNodeName().equalsIgnoreCase("InstanceType") && type.hasChildNodes() ) {
-                                VirtualMachineProduct prd = new VirtualMachineProduct();
-                                NodeList nodes = type.getChildNodes();
-
-                                for( int l=0; l<nodes.getLength(); l++ ) {
-                                    Node node = nodes.item(l);
-
-                                    if( node.getNodeName().equals("ID") && node.hasChildNodes() ) {
-                                        prd.setProviderProductId(node.getFirstChild().getNodeValue().trim());
-                                    }
-                                    else if( node.getNodeName().equals("Label") && node.hasChildNodes() ) {
-                                        prd.setName(node.getFirstChild().getNodeValue().trim());
-                                    }
-                                    else if( node.getNodeName().equals("Detail") && node.hasChildNodes() ) {
-                                        prd.setDescription(node.getFirstChild().getNodeValue().trim());
-                                    }
-                                }
-                                if( prd.getProviderProductId() != null ) {
-                                    String[] parts = prd.getProviderProductId().split("/");
-
-                                    if( parts.length == 3 ) {
-                                        String[] sub = parts[0].split("\\.");
-
-                                        if( sub.length > 0 ) {
-                                            parts[0] = sub[sub.length-1];
-                                        }
-                                        try {
-                                            prd.setCpuCount(Integer.parseInt(parts[0]));
-                                        }
-                                        catch( NumberFormatException ignore ) {
-                                            // ignore
-                                        }
-                                        try {
-                                            prd.setRamSize(new Storage<Megabyte>(Integer.parseInt(parts[1]), Storage.MEGABYTE));
-                                        }
-                                        catch( NumberFormatException ignore ) {
-                                            // ignore
-                                        }
-                                        try {
-                                            int idx = parts[2].indexOf("*");
-
-                                            if( idx < 1 ) {
-                                                prd.setRootVolumeSize(new Storage<Gigabyte>(Integer.parseInt(parts[2]), Storage.GIGABYTE));
-                                            }
-                                            else {
-                                                prd.setRootVolumeSize(new Storage<Gigabyte>(Integer.parseInt(parts[2].substring(0,idx)), Storage.GIGABYTE));
-                                            }
-                                        }
-                                        catch( NumberFormatException ignore ) {
-                                            // ignore
-                                        }
-                                    }
-                                    prdMap.put(prd.getProviderProductId(), prd);
-                                }
-                            }
-                        }
-                    }
-                }
-                if( a != null ) {
-                    if( a.equals(Architecture.I32) ) {
-                        t.putAll(prdMap);
-                    }
-                    else if( a.equals(Architecture.I64) ) {
-                        s.putAll(prdMap);
-                    }
+            if( products == null ) {
+                products = new LinkedHashMap<String, VirtualMachineProduct>();
+            }
+            catalog.byArchitecture.put(a, Collections.unmodifiableCollection(products.values()));
+            for( VirtualMachineProduct prd : products.values() ) {
+                if( !catalog.byId.containsKey(prd.getProviderProductId()) ) {
+                    catalog.byId.put(prd.getProviderProductId(), prd);
                 }
             }
-            HashMap<Architecture,Collection<VirtualMachineProduct>> tmp = new HashMap<Architecture, Collection<VirtualMachineProduct>>();
+        }
+        return catalog;
+    }
+
+    @Override
+    public Iterable<VirtualMachineProduct> listProducts(Architecture architecture) throws InternalException, CloudException {
+        ProductCatalog catalog = getProductCatalog();
+        Collection<VirtualMachineProduct> products = (catalog == null ? null : catalog.byArchitecture.get(architecture));
 
-            tmp.put(Architecture.I32, Collections.unmodifiableCollection(t.values()));
-            tmp.put(Architecture.I64, Collections.unmodifiableCollection(s.values()));
-            products = tmp;
+        if( products == null ) {
+            return Collections.emptyList();
         }
-        return products.get(architecture);
+        return products;
     }
 
     @Override
@@ -525,27 +528,44 @@ public class SCEVirtualMachine extends AbstractVMSupport {
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
-        SCEMethod method = new SCEMethod(provider);
+        InstanceInventory inventory = InstanceInventory.getInstance(provider);
+        Collection<ResourceStatus> status = (inventory == null ? null : inventory.listStatus(InstanceInventory.getMaxStaleness(provider)));
 
-        Document xml = method.getAsXML("instances");
+        if( status != null ) {
+            return status;
+        }
+        String regionId = ctx.getRegionId();
+        SCEMethod method = new SCEMethod(provider);
+        byte[] body = method.getAsBytes("instances");
 
-        if( xml == null ) {
+        if( body == null || regionId == null ) {
             return Collections.emptyList();
         }
-        NodeList locations = xml.getElementsByTagName("Instance");
-        ArrayList<ResourceStatus> vms = new ArrayList<ResourceStatus>();
+        XmlScanner scanner = new XmlScanner(body);
+        int[] instances = scanner.findAll("Instance", 0, scanner.length());
+        ArrayList<ResourceStatus> vms = new ArrayList<ResourceStatus>(instances.length/2);
 
-        for( int i=0; i<locations.getLength(); i++ ) {
-            Node item = locations.item(i);
-            ResourceStatus vm = toStatus(item);
+        for( int i=0; i<instances.length; i+=2 ) {
+            String[] values = scanner.project(instances[i], instances[i+1], "ID", "Status", "Location");
 
-            if( vm != null ) {
-                vms.add(vm);
+            if( values[0] != null && regionId.equals(values[2]) ) {
+                vms.add(new ResourceStatus(values[0], values[1] == null ? VmState.PENDING : toVmState(values[1])));
             }
         }
         return vms;
     }
 
+    /**
+     * Indicates whether listings should return {@link InstanceView} objects that decode their fields on demand rather
+     * than fully decoded virtual machines.
+     * @return true if the <code>lazyInstanceViews</code> custom property is set
+     */
+    private boolean isLazy() {
+        ProviderContext ctx = provider.getContext();
+
+        return (ctx != null && ctx.getCustomProperties() != null && "true".equalsIgnoreCase(ctx.getCustomProperties().getProperty("lazyInstanceViews")));
+    }
+
     @Override
     public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
         ProviderContext ctx = provider.getContext();
@@ -553,27 +573,167 @@ public class SCEVirtualMachine extends AbstractVMSupport {
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
-        SCEMethod method = new SCEMethod(provider);
+        long maxStaleness = InstanceInventory.getMaxStaleness(provider);
+        InstanceInventory inventory = (maxStaleness > 0L ? InstanceInventory.getInstance(provider) : null);
 
-        Document xml = method.getAsXML("instances");
+        if( inventory != null ) {
+            Collection<VirtualMachine> vms = inventory.list(maxStaleness);
 
-        if( xml == null ) {
+            if( vms != null ) {
+                return vms;
+            }
+        }
+        ArrayList<VirtualMachine> vms = fetchVirtualMachines(ctx, null);
+
+        if( vms == null ) {
             return Collections.emptyList();
         }
-        NodeList locations = xml.getElementsByTagName("Instance");
-        ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
+        if( inventory != null ) {
+            inventory.replace(vms, InstanceInventory.isOffHeap(provider));
+        }
+        return vms;
+    }
 
-        for( int i=0; i<locations.getLength(); i++ ) {
-            Node item = locations.item(i);
-            VirtualMachine vm = toVirtualMachine(ctx, item);
+    /**
+     * Lists the virtual machines in the current region whose <code>Instance</code> elements pass the specified filter.
+     * The filter is evaluated against the raw listing, so instances it rejects are never decoded. Filtered listings
+     * are always fetched from the cloud rather than served from or stored in the instance inventory.
+     * @param filter the filter instances must pass, such as one built by {@link #inState(VmState...)}
+     * @return the matching virtual machines
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred talking to SmartCloud
+     */
+    public @Nonnull Collection<VirtualMachine> listVirtualMachines(@Nonnull ElementFilter filter) throws InternalException, CloudException {
+        ProviderContext ctx = provider.getContext();
 
-            if( vm != null ) {
-                vms.add(vm);
+        if( ctx == null ) {
+            throw new SCEConfigException("No context was configured for this request");
+        }
+        ArrayList<VirtualMachine> vms = fetchVirtualMachines(ctx, filter);
+
+        return (vms == null ? Collections.<VirtualMachine>emptyList() : vms);
+    }
+
+    private @Nullable ArrayList<VirtualMachine> fetchVirtualMachines(@Nonnull ProviderContext ctx, @Nullable ElementFilter filter) throws InternalException, CloudException {
+        String regionId = ctx.getRegionId();
+
+        if( regionId == null ) {
+            return new ArrayList<VirtualMachine>();
+        }
+        SCEMethod method = new SCEMethod(provider);
+        byte[] body = method.getAsBytes("instances");
+
+        if( body == null ) {
+            return null;
+        }
+        XmlScanner scanner = new XmlScanner(body);
+        int[] instances = scanner.findAll("Instance", 0, scanner.length(), ElementFilter.and(ElementFilter.childEquals("Location", regionId), filter));
+        ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>(instances.length/2);
+        HashMap<String,VirtualMachine> byId = new HashMap<String, VirtualMachine>();
+
+        if( isLazy() ) {
+            for( int i=0; i<instances.length; i+=2 ) {
+                VirtualMachine vm = InstanceView.getInstance(provider, this, scanner, instances[i], instances[i+1], regionId);
+
+                if( vm != null ) {
+                    vms.add(vm);
+                    byId.put(vm.getProviderVirtualMachineId(), vm);
+                }
+            }
+        }
+        else {
+            DocumentBuilder parser = XmlScanner.newParser();
+
+            for( int i=0; i<instances.length; i+=2 ) {
+                VirtualMachine vm = toVirtualMachine(ctx, scanner.toNode(parser, "Instance", instances[i], instances[i+1]));
+
+                if( vm != null ) {
+                    vms.add(vm);
+                    byId.put(vm.getProviderVirtualMachineId(), vm);
+                }
             }
         }
+        LookupIndex.record(provider, "instances", byId, filter == null);
         return vms;
     }
 
+    /**
+     * Matches instances owned by the specified account.
+     * @param ownerId the owner of the desired instances
+     * @return a filter for use with {@link #listVirtualMachines(ElementFilter)}
+     */
+    static public @Nonnull ElementFilter ownedBy(@Nonnull String ownerId) {
+        return ElementFilter.childEquals("Owner", ownerId);
+    }
+
+    /**
+     * Matches instances whose SmartCloud status code maps to any of the specified states.
+     * @param states the states of the desired instances
+     * @return a filter for use with {@link #listVirtualMachines(ElementFilter)}
+     */
+    static public @Nonnull ElementFilter inState(@Nonnull VmState ... states) {
+        ArrayList<String> codes = new ArrayList<String>();
+
+        for( int code=0; code<=15; code++ ) {
+            VmState s = toVmState(String.valueOf(code));
+
+            for( VmState state : states ) {
+                if( state.equals(s) ) {
+                    codes.add(String.valueOf(code));
+                    break;
+                }
+            }
+        }
+        return ElementFilter.childIn("Status", codes.toArray(new String[codes.size()]));
+    }
+
+    /**
+     * Matches instances attached to the specified VLAN.
+     * @param vlanId the VLAN of the desired instances
+     * @return a filter for use with {@link #listVirtualMachines(ElementFilter)}
+     */
+    static public @Nonnull ElementFilter inVlan(@Nonnull String vlanId) {
+        return ElementFilter.child("Vlan", ElementFilter.childEquals("ID", vlanId));
+    }
+
+    /**
+     * Matches instances whose name begins with the specified prefix.
+     * @param prefix the prefix of the names of the desired instances
+     * @return a filter for use with {@link #listVirtualMachines(ElementFilter)}
+     */
+    static public @Nonnull ElementFilter namedWith(@Nonnull String prefix) {
+        return ElementFilter.childStartsWith("Name", prefix);
+    }
+
+    /**
+     * Matches instances whose operating system, as guessed from their software list, is the specified platform.
+     * @param platform the platform of the desired instances
+     * @return a filter for use with {@link #listVirtualMachines(ElementFilter)}
+     */
+    static public @Nonnull ElementFilter onPlatform(@Nonnull final Platform platform) {
+        return new ElementFilter() {
+            @Override
+            public boolean accept(@Nonnull XmlScanner scanner, int start, int end) {
+                int[] software = scanner.findChild("Software", start, end);
+                Platform p = Platform.UNKNOWN;
+
+                if( software != null ) {
+                    int[] items = scanner.findChildren(null, software[0], software[1]);
+
+                    for( int i=0; i<items.length; i+=2 ) {
+                        String type = scanner.childText("Type", items[i], items[i+1]);
+                        String name = scanner.childText("Name", items[i], items[i+1]);
+
+                        if( name != null && type != null && type.equalsIgnoreCase("OS") ) {
+                            p = Platform.guess(name);
+                        }
+                    }
+                }
+                return platform.equals(p);
+            }
+        };
+    }
+
     @Override
     public void reboot(@Nonnull String vmId) throws CloudException, InternalException {
         ProviderContext ctx = provider.getContext();
@@ -587,6 +747,12 @@ public class SCEVirtualMachine extends AbstractVMSupport {
 
         params.add(new BasicNameValuePair("state", "restart"));
         method.put("instances/" + vmId, params);
+        InstanceInventory inventory = InstanceInventory.getInstance(provider);
+
+        if( inventory != null ) {
+            inventory.markState(vmId, VmState.REBOOTING);
+        }
+        LookupIndex.forget(provider, "instances", vmId);
     }
 
     @Override
@@ -612,7 +778,7 @@ public class SCEVirtualMachine extends AbstractVMSupport {
             throw new SCEConfigException("No context was configured for this request");
         }
         long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20);
-        VirtualMachine vm = getVirtualMachine(vmId);
+        VirtualMachine vm = getVirtualMachine(vmId, true);
 
         while( vm != null && vm.getCurrentState().equals(VmState.PENDING) ) {
             if( System.currentTimeMillis() >= timeout ) {
@@ -620,7 +786,7 @@ public class SCEVirtualMachine extends AbstractVMSupport {
             }
             try { Thread.sleep(15000L); }
             catch( InterruptedException ignore ) { }
-            vm = getVirtualMachine(vmId);
+            vm = getVirtualMachine(vmId, true);
         }
         if( vm == null ) {
             throw new CloudException("The VM " + vmId + " went away");
@@ -628,6 +794,13 @@ public class SCEVirtualMachine extends AbstractVMSupport {
         SCEMethod method = new SCEMethod(provider);
 
         method.delete("instances/" + vmId);
+        Relationships.invalidate(provider);
+        LookupIndex.forget(provider, "instances", vmId);
+        InstanceInventory inventory = InstanceInventory.getInstance(provider);
+
+        if( inventory != null ) {
+            inventory.markState(vmId, VmState.STOPPING);
+        }
     }
 
     @Override
@@ -673,10 +846,54 @@ public class SCEVirtualMachine extends AbstractVMSupport {
         return addresses;
     }
 
+    /**
+     * Adds an address listed for an instance to its public or private addresses. {@link InstanceView} decodes
+     * addresses through this method too, so both decoders classify and order addresses alike.
+     * @param vm the virtual machine being decoded
+     * @param ipAddress the address listed
+     * @param unique true if the address is skipped when already present, as for <code>PrimaryIP</code> and
+     * <code>SecondaryIP</code> elements; plain <code>IP</code> elements are always added
+     */
+    void addIpAddress(@Nonnull VirtualMachine vm, String ipAddress, boolean unique) {
+        boolean isPublic = isPublicIpAddress(ipAddress);
+        String[] addrs = (isPublic ? vm.getPublicIpAddresses() : vm.getPrivateIpAddresses());
+
+        if( unique ) {
+            addrs = addAddress(addrs, ipAddress);
+        }
+        else {
+            String[] tmp = new String[addrs.length + 1];
+
+            System.arraycopy(addrs, 0, tmp, 0, addrs.length);
+            tmp[addrs.length] = ipAddress;
+            addrs = tmp;
+        }
+        if( isPublic ) {
+            vm.setPublicIpAddresses(addrs);
+        }
+        else {
+            vm.setPrivateIpAddresses(addrs);
+        }
+    }
+
+    /**
+     * Determines the platform named by an entry in an instance's software list.
+     * @param type the type of software
+     * @param name the name of the software
+     * @return the platform if the entry is an operating system, otherwise <code>null</code>
+     */
+    static @Nullable Platform toPlatform(@Nullable String type, @Nullable String name) {
+        if( name != null && type != null && type.equalsIgnoreCase("OS") ) {
+            return Platform.guess(name);
+        }
+        return null;
+    }
+
     public @Nullable VirtualMachine toVirtualMachine(@Nonnull ProviderContext ctx, @Nullable Node node) throws CloudException, InternalException {
         if( node == null ) {
             return null;
         }
+        StringPool strings = provider.getStringPool();
         VirtualMachine vm = new VirtualMachine();
 
         vm.setRebootable(true);
@@ -700,55 +917,22 @@ public class SCEVirtualMachine extends AbstractVMSupport {
                 vm.setName(attr.getFirstChild().getNodeValue().trim());
             }
             else if( nodeName.equalsIgnoreCase("Location") && attr.hasChildNodes() ) {
-                vm.setProviderRegionId(attr.getFirstChild().getNodeValue().trim());
+                vm.setProviderRegionId(strings.canonicalize(attr.getFirstChild().getNodeValue().trim()));
             }
             else if( nodeName.equalsIgnoreCase("Owner") && attr.hasChildNodes() ) {
-                vm.setProviderOwnerId(attr.getFirstChild().getNodeValue().trim());
+                vm.setProviderOwnerId(strings.canonicalize(attr.getFirstChild().getNodeValue().trim()));
             }
             else if( nodeName.equalsIgnoreCase("Hostname") && attr.hasChildNodes() ) {
                 vm.setPublicDnsAddress(attr.getFirstChild().getNodeValue().trim());
             }
             else if( nodeName.equalsIgnoreCase("IP") && attr.hasChildNodes() ) {
-                String ip = attr.getFirstChild().getNodeValue().trim();
-                boolean isPublic = isPublicIpAddress(ip);
-                String[] addrs;
-                if (isPublic) {
-                    addrs = vm.getPublicIpAddresses();
-                }
-                else {
-                    addrs = vm.getPrivateIpAddresses();
-                }
-
-                if( addrs == null || addrs.length == 0 ) {
-                    if (isPublic) {
-                        vm.setPublicIpAddresses(new String[]{ ip });
-                    }
-                    else {
-                        vm.setPrivateIpAddresses(new String[]{ ip });
-                    }
-                }
-                else {
-                    String[] tmp = new String[addrs.length + 1];
-
-                    //noinspection ManualArrayCopy
-                    for(int idx=0; idx<addrs.length; idx++ ) {
-                        tmp[idx] = addrs[idx];
-                    }
-                    tmp[tmp.length-1] = ip;
-                    addrs = tmp;
-                    if (isPublic) {
-                        vm.setPublicIpAddresses(addrs);
-                    }
-                    else {
-                        vm.setPrivateIpAddresses(addrs);
-                    }
-                }
+                addIpAddress(vm, attr.getFirstChild().getNodeValue().trim(), false);
             }
             else if( nodeName.equalsIgnoreCase("ImageID") && attr.hasChildNodes() ) {
-                vm.setProviderMachineImageId(attr.getFirstChild().getNodeValue().trim());
+                vm.setProviderMachineImageId(strings.canonicalize(attr.getFirstChild().getNodeValue().trim()));
             }
             else if( nodeName.equalsIgnoreCase("InstanceType") && attr.hasChildNodes() ) {
-                vm.setProductId(attr.getFirstChild().getNodeValue().trim());
+                vm.setProductId(strings.canonicalize(attr.getFirstChild().getNodeValue().trim()));
             }
             else if( nodeName.equalsIgnoreCase("Status") && attr.hasChildNodes() ) {
                 String status = attr.getFirstChild().getNodeValue().trim();
@@ -762,24 +946,10 @@ public class SCEVirtualMachine extends AbstractVMSupport {
                 // what exactly is expiration time?
             }
             else if( nodeName.equalsIgnoreCase("PrimaryIP") && attr.hasChildNodes() ) {
-                String ipAddress = parseAddress(attr);
-                boolean isPublic = isPublicIpAddress(ipAddress);
-                if (isPublic) {
-                    vm.setPublicIpAddresses(addAddress(vm.getPublicIpAddresses(), ipAddress));
-                }
-                else {
-                    vm.setPrivateIpAddresses(addAddress(vm.getPrivateIpAddresses(), ipAddress));
-                }
+                addIpAddress(vm, parseAddress(attr), true);
             }
             else if( nodeName.equalsIgnoreCase("SecondaryIP") && attr.hasChildNodes() ) {
-                String ipAddress = parseAddress(attr);
-                boolean isPublic = isPublicIpAddress(ipAddress);
-                if (isPublic) {
-                    vm.setPublicIpAddresses(addAddress(vm.getPublicIpAddresses(), ipAddress));
-                }
-                else {
-                    vm.setPrivateIpAddresses(addAddress(vm.getPrivateIpAddresses(), ipAddress));
-                }
+                addIpAddress(vm, parseAddress(attr), true);
             }
             else if( nodeName.equalsIgnoreCase("Volume") && attr.hasChildNodes() ) {
                 // volume
@@ -791,7 +961,7 @@ public class SCEVirtualMachine extends AbstractVMSupport {
                     Node item = items.item(j);
 
                     if( item.getNodeName().equalsIgnoreCase("ID") && item.hasChildNodes() ) {
-                        vm.setProviderVlanId(item.getFirstChild().getNodeValue().trim());
+                        vm.setProviderVlanId(strings.canonicalize(item.getFirstChild().getNodeValue().trim()));
                     }
                 }
             }
@@ -817,8 +987,10 @@ public class SCEVirtualMachine extends AbstractVMSupport {
                             }
                         }
                     }
-                    if( name != null && type != null && type.equalsIgnoreCase("OS") ) {
-                        vm.setPlatform(Platform.guess(name));
+                    Platform platform = toPlatform(type, name);
+
+                    if( platform != null ) {
+                        vm.setPlatform(platform);
                     }
                 }
             }
@@ -840,7 +1012,7 @@ public class SCEVirtualMachine extends AbstractVMSupport {
         return vm;
     }
 
-    private boolean isPublicIpAddress(String ipv4Address) {
+    boolean isPublicIpAddress(String ipv4Address) {
         if (ipv4Address == null || ipv4Address.isEmpty())  {
             return false;
         }
@@ -862,7 +1034,7 @@ public class SCEVirtualMachine extends AbstractVMSupport {
         return true;
     }
 
-    private @Nonnull VmState toVmState(@Nonnull String vmState) throws InternalException {
+    static @Nonnull VmState toVmState(@Nonnull String vmState) {
         if( vmState.equals("0") || vmState.equals("1") || vmState.equals("4") || vmState.equals("6") || vmState.equals("9") || vmState.equals("14") || vmState.equals("15") ) {
             return VmState.PENDING;
         }
@@ -887,36 +1059,6 @@ public class SCEVirtualMachine extends AbstractVMSupport {
         }
     }
 
-    public @Nullable ResourceStatus toStatus(@Nullable Node node) throws CloudException, InternalException {
-        if( node == null ) {
-            return null;
-        }
-        NodeList nodes = node.getChildNodes();
-        VmState state = null;
-        String vmId = null;
-
-        for( int i=0; i<nodes.getLength(); i++ ) {
-            Node attr = nodes.item(i);
-            String nodeName = attr.getNodeName();
-
-            if( nodeName.equalsIgnoreCase("ID") && attr.hasChildNodes() ) {
-                vmId = attr.getFirstChild().getNodeValue().trim();
-            }
-            else if( nodeName.equalsIgnoreCase("Status") && attr.hasChildNodes() ) {
-                String status = attr.getFirstChild().getNodeValue().trim();
-
-                state = toVmState(status);
-            }
-            if( state != null && vmId != null ) {
-                break;
-            }
-        }
-        if( vmId == null ) {
-            return null;
-        }
-        return new ResourceStatus(vmId, state == null ? VmState.PENDING : state);
-    }
-
     static public String uppercaseAlphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
     static public String lowercaseAlphabet = "abcdefghijklmnopqrstuvwxyz";
     static public String numbers = "0123456789";
@@ -26,13 +26,18 @@ import org.dasein.cloud.InternalException;
 import org.dasein.cloud.OperationNotSupportedException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.Requirement;
+import org.dasein.cloud.ibm.sce.Copies;
 import org.dasein.cloud.ibm.sce.ExtendedRegion;
 import org.dasein.cloud.ibm.sce.SCE;
+import org.dasein.cloud.ibm.sce.SCECache;
 import org.dasein.cloud.ibm.sce.SCEConfigException;
 import org.dasein.cloud.ibm.sce.SCEMethod;
 import org.dasein.cloud.identity.SSHKeypair;
 import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.identity.ShellKeySupport;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.uom.time.Minute;
+import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -44,7 +49,9 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * SSH key support in the IBM SmartCloud.
@@ -55,12 +62,18 @@ import java.util.Locale;
  * @since 2012.04
  */
 public class SSHKeys implements ShellKeySupport {
+    static private final ConcurrentHashMap<String,Object> defaultKeyLocks = new ConcurrentHashMap<String, Object>();
+
     private SCE provider;
 
     public SSHKeys(SCE provider) { this.provider = provider; }
 
     @Override
     public @Nonnull SSHKeypair createKeypair(@Nonnull String name) throws InternalException, CloudException {
+        return createKeypair(name, true);
+    }
+
+    private @Nonnull SSHKeypair createKeypair(@Nonnull String name, boolean withPublicKey) throws InternalException, CloudException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
@@ -86,12 +99,23 @@ public class SSHKeys implements ShellKeySupport {
             SSHKeypair kp = toKeyPair(ctx, item, true);
 
             if( kp != null ) {
-                SSHKeypair withPublic = getKeypair(name);
-                String publicKey = (withPublic == null ? null : withPublic.getPublicKey());
+                if( withPublicKey ) {
+                    SSHKeypair withPublic = getKeypair(name);
+                    String publicKey = (withPublic == null ? null : withPublic.getPublicKey());
 
-                if( publicKey != null ) {
-                    kp.setPublicKey(publicKey);
+                    if( publicKey != null ) {
+                        kp.setPublicKey(publicKey);
+                    }
                 }
+                SSHKeypair cached = new SSHKeypair();
+
+                cached.setProviderOwnerId(kp.getProviderOwnerId());
+                cached.setProviderRegionId(kp.getProviderRegionId());
+                cached.setProviderKeypairId(kp.getProviderKeypairId());
+                cached.setName(kp.getName());
+                cached.setFingerprint(kp.getFingerprint());
+                cached.setPublicKey(kp.getPublicKey());
+                updateCache(cached, null);
                 return kp;
             }
         }
@@ -109,6 +133,99 @@ public class SSHKeys implements ShellKeySupport {
         SCEMethod method = new SCEMethod(provider);
 
         method.delete("keys/" + providerId);
+        updateCache(null, providerId);
+    }
+
+    /**
+     * Identifies a keypair to place on a new Unix server, creating one if the account has none. Concurrent launches
+     * in an account with no keys share a single new keypair rather than each creating their own.
+     * @return the ID of the keypair to use
+     * @throws CloudException an error occurred talking to the cloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull String identifyDefaultKeypair() throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new SCEConfigException("No context was configured for this request");
+        }
+        String id = findAnyKeypair();
+
+        if( id != null ) {
+            return id;
+        }
+        String key = ctx.getEndpoint() + "|" + ctx.getAccountNumber();
+        Object lock = new Object();
+        Object existing = defaultKeyLocks.putIfAbsent(key, lock);
+
+        if( existing != null ) {
+            lock = existing;
+        }
+        synchronized( lock ) {
+            id = findAnyKeypair();
+            if( id != null ) {
+                return id;
+            }
+            id = createKeypair("dsn" + System.currentTimeMillis(), false).getProviderKeypairId();
+            if( id == null ) {
+                throw new CloudException("Unable to identify keys in the cloud");
+            }
+            return id;
+        }
+    }
+
+    private @Nullable String findAnyKeypair() throws CloudException, InternalException {
+        // the key goes into a launch, so a list past its time to live is never trusted here
+        List<SSHKeypair> keypairs = getCache().getCurrent(provider, new SCECache.Loader<List<SSHKeypair>>() {
+            @Override
+            public @Nonnull List<SSHKeypair> load() throws CloudException, InternalException {
+                return loadKeypairs();
+            }
+        });
+
+        if( keypairs == null ) {
+            return null;
+        }
+        for( SSHKeypair kp : keypairs ) {
+            String id = kp.getProviderKeypairId();
+
+            if( id != null ) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    private @Nonnull SCECache<List<SSHKeypair>> getCache() {
+        return SCECache.getInstance("keypairs", CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE), null, new SCECache.Weigher<List<SSHKeypair>>() {
+            @Override
+            public long weigh(@Nonnull List<SSHKeypair> keypairs) {
+                return keypairs.size();
+            }
+        });
+    }
+
+    private void updateCache(@Nullable SSHKeypair added, @Nullable String removedId) throws InternalException {
+        SCECache<List<SSHKeypair>> cache = getCache();
+        List<SSHKeypair> cached = cache.peek(provider);
+
+        if( cached == null ) {
+            return;
+        }
+        ArrayList<SSHKeypair> list = new ArrayList<SSHKeypair>();
+
+        for( SSHKeypair kp : cached ) {
+            String id = kp.getProviderKeypairId();
+
+            if( id == null || id.equals(removedId) || (added != null && id.equals(added.getProviderKeypairId())) ) {
+                continue;
+            }
+            list.add(kp);
+        }
+        if( added != null ) {
+            list.add(added);
+        }
+        cache.put(provider, Collections.unmodifiableList(list));
     }
 
     @Override
@@ -185,6 +302,23 @@ public class SSHKeys implements ShellKeySupport {
     public @Nonnull Collection<SSHKeypair> list() throws InternalException, CloudException {
         ProviderContext ctx = provider.getContext();
 
+        if( ctx == null ) {
+            throw new SCEConfigException("No context was configured for this request");
+        }
+        List<SSHKeypair> cached = getCache().get(provider, new SCECache.Loader<List<SSHKeypair>>() {
+            @Override
+            public @Nonnull List<SSHKeypair> load() throws CloudException, InternalException {
+                return loadKeypairs();
+            }
+        });
+
+        //noinspection ConstantConditions
+        return Copies.copyAll(cached);
+    }
+
+    private @Nonnull List<SSHKeypair> loadKeypairs() throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
@@ -206,7 +340,7 @@ public class SSHKeys implements ShellKeySupport {
                 list.add(kp);
             }
         }
-        return list;
+        return Collections.unmodifiableList(list);
     }
 
     @Override
@@ -27,10 +27,17 @@ import org.dasein.cloud.OperationNotSupportedException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.Requirement;
 import org.dasein.cloud.ResourceStatus;
+import org.dasein.cloud.ibm.sce.ElementFilter;
 import org.dasein.cloud.ibm.sce.ExtendedRegion;
+import org.dasein.cloud.ibm.sce.LookupBatcher;
+import org.dasein.cloud.ibm.sce.LookupIndex;
+import org.dasein.cloud.ibm.sce.Relationships;
 import org.dasein.cloud.ibm.sce.SCE;
+import org.dasein.cloud.ibm.sce.SCECache;
 import org.dasein.cloud.ibm.sce.SCEConfigException;
 import org.dasein.cloud.ibm.sce.SCEMethod;
+import org.dasein.cloud.ibm.sce.StringPool;
+import org.dasein.cloud.ibm.sce.XmlScanner;
 import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.network.AddressType;
 import org.dasein.cloud.network.IPVersion;
@@ -38,7 +45,11 @@ import org.dasein.cloud.network.IpAddress;
 import org.dasein.cloud.network.IpAddressSupport;
 import org.dasein.cloud.network.IpForwardingRule;
 import org.dasein.cloud.network.Protocol;
+import org.dasein.cloud.util.CacheLevel;
 import org.dasein.util.CalendarWrapper;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.Minute;
+import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -46,10 +57,14 @@ import org.w3c.dom.NodeList;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.DocumentBuilder;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * IP address support for IBM SmartCloud.
@@ -81,6 +96,68 @@ public class SCEStaticIP implements IpAddressSupport {
 
     @Override
     public ExtendedIpAddress getIpAddress(@Nonnull String addressId) throws InternalException, CloudException {
+        return getIpAddress(addressId, false);
+    }
+
+    /**
+     * Fetches the specified address, answering from addresses seen by a recent list call unless told otherwise.
+     * @param addressId the ID of the address to fetch
+     * @param bypassIndex true to ignore the {@link LookupIndex} and fetch current data from the cloud
+     * @return the address or <code>null</code> if it does not exist
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred talking to SmartCloud
+     */
+    public ExtendedIpAddress getIpAddress(@Nonnull String addressId, boolean bypassIndex) throws InternalException, CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new SCEConfigException("No context was configured for this request");
+        }
+        if( !bypassIndex ) {
+            ExtendedIpAddress address = LookupIndex.lookup(provider, "addresses", addressId, ExtendedIpAddress.class);
+
+            if( address != null ) {
+                return address;
+            }
+        }
+        long window = provider.getCustomLong("lookupBatchWindow", 0L);
+
+        if( window > 0L ) {
+            return LookupBatcher.lookup(ctx, "addresses", window, addressId, new LookupBatcher.Loader<ExtendedIpAddress>() {
+                @Override
+                public @Nonnull Map<String, ExtendedIpAddress> load() throws CloudException, InternalException {
+                    return mapAddresses();
+                }
+            });
+        }
+        return mapAddresses().get(addressId);
+    }
+
+    /**
+     * Fetches the specified IP addresses with a single list call rather than one call per address.
+     * @param addressIds the IDs of the addresses to fetch
+     * @return the matching addresses in the current region; IDs that do not exist are left out
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred talking to SmartCloud
+     */
+    public @Nonnull Collection<ExtendedIpAddress> getIpAddresses(@Nonnull Collection<String> addressIds) throws InternalException, CloudException {
+        if( addressIds.isEmpty() ) {
+            return Collections.emptyList();
+        }
+        Map<String,ExtendedIpAddress> addresses = mapAddresses();
+        ArrayList<ExtendedIpAddress> matches = new ArrayList<ExtendedIpAddress>();
+
+        for( String addressId : addressIds ) {
+            ExtendedIpAddress address = addresses.get(addressId);
+
+            if( address != null ) {
+                matches.add(address);
+            }
+        }
+        return matches;
+    }
+
+    private @Nonnull Map<String,ExtendedIpAddress> mapAddresses() throws InternalException, CloudException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
@@ -91,21 +168,23 @@ public class SCEStaticIP implements IpAddressSupport {
         Document xml = method.getAsXML("addresses");
 
         if( xml == null ) {
-            return null;
+            return Collections.emptyMap();
         }
-        List<AddressOffering> offerings = listOfferings();
+        Map<String,AddressType> offerings = listOfferings();
         NodeList nodes = xml.getElementsByTagName("Address");
+        HashMap<String,ExtendedIpAddress> addresses = new HashMap<String, ExtendedIpAddress>();
 
         for( int i=0; i<nodes.getLength(); i++ ) {
             Node item = nodes.item(i);
             ExtendedIpAddress address = toAddress(ctx, item, offerings);
 
             //noinspection ConstantConditions
-            if( address != null && address.getAddress() != null && addressId.equals(address.getProviderIpAddressId()) ) {
-                return address;
+            if( address != null && address.getAddress() != null ) {
+                addresses.put(address.getProviderIpAddressId(), address);
             }
         }
-        return null;
+        LookupIndex.record(provider, "addresses", addresses, true);
+        return addresses;
     }
 
     @Override
@@ -146,12 +225,7 @@ public class SCEStaticIP implements IpAddressSupport {
     @Override
     public boolean isRequestable(@Nonnull AddressType type) {
         try {
-            for( AddressOffering offering : listOfferings() ) {
-                if( offering.type.equals(type) ) {
-                    return true;
-                }
-            }
-            return false;
+            return listOfferings().containsValue(type);
         }
         catch( Exception e ) {
             throw new RuntimeException(e);
@@ -183,49 +257,64 @@ public class SCEStaticIP implements IpAddressSupport {
         }
     }
 
-    private class AddressOffering {
-        public AddressType type;
-        public String offeringId;
+    static private class AddressOfferings {
+        public final LinkedHashMap<String,AddressType> types = new LinkedHashMap<String, AddressType>();
     }
 
-    public List<AddressOffering> listOfferings() throws CloudException, InternalException {
-        ProviderContext ctx = provider.getContext();
+    private @Nonnull Map<String,AddressType> listOfferings() throws CloudException, InternalException {
+        SCECache<AddressOfferings> cache = SCECache.getInstance("addressOfferings", CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR), new TimePeriod<Minute>(30, TimePeriod.MINUTE), new SCECache.Weigher<AddressOfferings>() {
+            @Override
+            public long weigh(@Nonnull AddressOfferings offerings) {
+                return offerings.types.size();
+            }
+        });
+        AddressOfferings offerings = cache.get(provider, new SCECache.Loader<AddressOfferings>() {
+            @Override
+            public @Nullable AddressOfferings load() throws CloudException, InternalException {
+                return loadOfferings();
+            }
+        });
 
-        if( ctx == null ) {
-            throw new SCEConfigException("No context was configured for this request");
+        if( offerings == null ) {
+            return Collections.emptyMap();
         }
+        return offerings.types;
+    }
+
+    private @Nullable AddressOfferings loadOfferings() throws CloudException, InternalException {
         SCEMethod method = new SCEMethod(provider);
 
         Document xml = method.getAsXML("offerings/address");
 
         if( xml == null ) {
-            return Collections.emptyList();
+            return null;
         }
         NodeList nodes = xml.getElementsByTagName("Offerings");
-        ArrayList<AddressOffering> offerings = new ArrayList<AddressOffering>();
+        AddressOfferings offerings = new AddressOfferings();
 
         for( int i=0; i<nodes.getLength(); i++ ) {
             Node item = nodes.item(i);
 
             if( item.hasChildNodes() ) {
                 NodeList attributes = item.getChildNodes();
-                AddressOffering offering = new AddressOffering();
+                AddressType type = null;
+                String offeringId = null;
 
                 for( int j=0; j<attributes.getLength(); j++ ) {
                     Node attr = attributes.item(j);
                     String nodeName = attr.getNodeName();
 
                     if( nodeName.equalsIgnoreCase("ID") && attr.hasChildNodes() ) {
-                        offering.offeringId = attr.getFirstChild().getNodeValue().trim();
+                        offeringId = attr.getFirstChild().getNodeValue().trim();
                     }
                     else if( nodeName.equalsIgnoreCase("ipType") && attr.hasChildNodes() ) {
                         String t = attr.getFirstChild().getNodeValue().trim();
 
-                        offering.type = (t.equals("1") ? AddressType.PRIVATE : AddressType.PUBLIC);
+                        type = (t.equals("1") ? AddressType.PRIVATE : AddressType.PUBLIC);
                     }
                 }
-                if( offering.offeringId != null && offering.type != null ) {
-                    offerings.add(offering);
+                if( offeringId != null && type != null ) {
+                    offerings.types.put(offeringId, type);
                 }
             }
 
@@ -235,67 +324,89 @@ public class SCEStaticIP implements IpAddressSupport {
 
     @Override
     public @Nonnull Iterable<IpAddress> listPrivateIpPool(boolean unassignedOnly) throws InternalException, CloudException {
+        return listPool(AddressType.PRIVATE, unassignedOnly);
+    }
+
+    @Override
+    public @Nonnull Iterable<IpAddress> listPublicIpPool(boolean unassignedOnly) throws InternalException, CloudException {
+        return listPool(AddressType.PUBLIC, unassignedOnly);
+    }
+
+    /**
+     * Lists every public and private address in the current region with a single request to SmartCloud.
+     * @return the public and private addresses
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred talking to SmartCloud
+     */
+    public @Nonnull Collection<IpAddress> listAddresses() throws InternalException, CloudException {
+        return listPool(null, false);
+    }
+
+    /**
+     * Lists the addresses of the specified type in the current region. The region, state, offering, and assignment
+     * criteria are checked against the raw listing so that addresses outside the pool are never decoded.
+     * @param type the type of addresses to list or <code>null</code> for addresses of every type
+     * @param unassignedOnly true if only addresses free for assignment should be listed
+     * @return the matching addresses
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred talking to SmartCloud
+     */
+    private @Nonnull Collection<IpAddress> listPool(@Nullable AddressType type, boolean unassignedOnly) throws InternalException, CloudException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
-        SCEMethod method = new SCEMethod(provider);
-
-        Document xml = method.getAsXML("addresses");
+        String regionId = ctx.getRegionId();
 
-        if( xml == null ) {
+        if( regionId == null ) {
             return Collections.emptyList();
         }
-        List<AddressOffering> offerings = listOfferings();
-        NodeList nodes = xml.getElementsByTagName("Address");
-        ArrayList<IpAddress> list = new ArrayList<IpAddress>();
-
-        for( int i=0; i<nodes.getLength(); i++ ) {
-            Node item = nodes.item(i);
-            IpAddress address = toAddress(ctx, item, offerings);
+        Map<String,AddressType> offerings = listOfferings();
+        ArrayList<String> offeringIds = new ArrayList<String>();
 
-            //noinspection ConstantConditions
-            if( address != null && address.getAddress() != null ) {
-                if( address.getAddressType().equals(AddressType.PRIVATE) && (!unassignedOnly || (address.getProviderLoadBalancerId() == null && address.getServerId() == null)) ) {
-                    list.add(address);
-                }
+        for( Map.Entry<String,AddressType> entry : offerings.entrySet() ) {
+            if( type == null || type.equals(entry.getValue()) ) {
+                offeringIds.add(entry.getKey());
             }
         }
-        return list;
-    }
-
-    @Override
-    public @Nonnull Iterable<IpAddress> listPublicIpPool(boolean unassignedOnly) throws InternalException, CloudException {
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new SCEConfigException("No context was configured for this request");
+        if( offeringIds.isEmpty() ) {
+            return Collections.emptyList();
         }
         SCEMethod method = new SCEMethod(provider);
+        byte[] body = method.getAsBytes("addresses");
 
-        Document xml = method.getAsXML("addresses");
-
-        if( xml == null ) {
+        if( body == null ) {
             return Collections.emptyList();
         }
-        List<AddressOffering> offerings = listOfferings();
-        NodeList nodes = xml.getElementsByTagName("Address");
+        ElementFilter filter = ElementFilter.all(
+                ElementFilter.childEquals("Location", regionId),
+                ElementFilter.childNotIn("State", "4", "5", "6", "7"),
+                ElementFilter.childIn("OfferingID", offeringIds.toArray(new String[offeringIds.size()]))
+        );
+
+        if( unassignedOnly ) {
+            filter = ElementFilter.and(filter, ElementFilter.childMissing("InstanceID"));
+            if( AddressType.PUBLIC.equals(type) ) {
+                filter = ElementFilter.and(filter, ElementFilter.childEquals("State", "2"));
+            }
+        }
+        XmlScanner scanner = new XmlScanner(body);
+        int[] elements = scanner.findAll("Address", 0, scanner.length(), filter);
+        DocumentBuilder parser = XmlScanner.newParser();
         ArrayList<IpAddress> list = new ArrayList<IpAddress>();
+        HashMap<String,ExtendedIpAddress> byId = new HashMap<String, ExtendedIpAddress>();
 
-        for( int i=0; i<nodes.getLength(); i++ ) {
-            Node item = nodes.item(i);
-            ExtendedIpAddress address = toAddress(ctx, item, offerings);
+        for( int i=0; i<elements.length; i+=2 ) {
+            ExtendedIpAddress address = toAddress(ctx, scanner.toNode(parser, "Address", elements[i], elements[i+1]), offerings);
 
             //noinspection ConstantConditions
             if( address != null && address.getAddress() != null ) {
-                if( address.getAddressType().equals(AddressType.PUBLIC) && (!unassignedOnly || (address.getProviderLoadBalancerId() == null && address.getServerId() == null)) ) {
-                    if( !unassignedOnly || "2".equals(address.getRealState()) ) {
-                        list.add(address);
-                    }
-                }
+                list.add(address);
+                byId.put(address.getProviderIpAddressId(), address);
             }
         }
+        LookupIndex.record(provider, "addresses", byId, type == null && !unassignedOnly);
         return list;
     }
 
@@ -317,22 +428,26 @@ public class SCEStaticIP implements IpAddressSupport {
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
+        String regionId = ctx.getRegionId();
         SCEMethod method = new SCEMethod(provider);
+        byte[] body = method.getAsBytes("addresses");
 
-        Document xml = method.getAsXML("addresses");
-
-        if( xml == null ) {
+        if( body == null || regionId == null ) {
             return Collections.emptyList();
         }
-        NodeList nodes = xml.getElementsByTagName("Address");
-        ArrayList<ResourceStatus> list = new ArrayList<ResourceStatus>();
+        XmlScanner scanner = new XmlScanner(body);
+        int[] addresses = scanner.findAll("Address", 0, scanner.length());
+        ArrayList<ResourceStatus> list = new ArrayList<ResourceStatus>(addresses.length/2);
 
-        for( int i=0; i<nodes.getLength(); i++ ) {
-            Node item = nodes.item(i);
-            ResourceStatus address = toStatus(item);
+        for( int i=0; i<addresses.length; i+=2 ) {
+            String[] values = scanner.project(addresses[i], addresses[i+1], "ID", "State", "IP", "Location");
+            String realState = values[1];
 
-            if( address != null ) {
-                list.add(address);
+            if( realState != null && (realState.equals("4") || realState.equals("5") || realState.equals("6") || realState.equals("7")) ) {
+                continue;
+            }
+            if( values[0] != null && values[2] != null && regionId.equals(values[3]) ) {
+                list.add(new ResourceStatus(values[0], realState != null && realState.equals("2")));
             }
         }
         return list;
@@ -355,12 +470,12 @@ public class SCEStaticIP implements IpAddressSupport {
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
-        ExtendedIpAddress ip = getIpAddress(addressId);
+        ExtendedIpAddress ip = getIpAddress(addressId, true);
 
         while( ip != null && !ip.getRealState().equals("2") && !ip.getRealState().equals("4") && !ip.getRealState().equals("7") && !ip.getRealState().equals("5")) {
             try { Thread.sleep(15000L); }
             catch( InterruptedException ignore ) { }
-            ip = getIpAddress(addressId);
+            ip = getIpAddress(addressId, true);
         }
         if( ip == null || ip.getRealState().equals("7") || ip.getRealState().equals("5") || ip.getRealState().equals("4")) {
             return;
@@ -368,6 +483,8 @@ public class SCEStaticIP implements IpAddressSupport {
         SCEMethod method = new SCEMethod(provider);
 
         method.delete("addresses/" + addressId);
+        Relationships.invalidate(provider);
+        LookupIndex.forget(provider, "addresses", addressId);
     }
 
     @Override
@@ -382,21 +499,21 @@ public class SCEStaticIP implements IpAddressSupport {
         if( ctx == null ) {
             throw new SCEConfigException("No context was configured for this request");
         }
-        List<AddressOffering> offerings = listOfferings();
-        AddressOffering offering = null;
+        Map<String,AddressType> offerings = listOfferings();
+        String offeringId = null;
 
-        for( AddressOffering o : offerings ) {
-            if( o.type.equals(typeOfAddress) ) {
-                offering = o;
+        for( Map.Entry<String,AddressType> entry : offerings.entrySet() ) {
+            if( entry.getValue().equals(typeOfAddress) ) {
+                offeringId = entry.getKey();
                 break;
             }
         }
-        if( offering == null ) {
+        if( offeringId == null ) {
             throw new CloudException("No offering exists for " + typeOfAddress);
         }
         ArrayList<NameValuePair> parameters = new ArrayList<NameValuePair>();
 
-        parameters.add(new BasicNameValuePair("offeringID", offering.offeringId));
+        parameters.add(new BasicNameValuePair("offeringID", offeringId));
         parameters.add(new BasicNameValuePair("location", ctx.getRegionId()));
 
         SCEMethod method = new SCEMethod(provider);
@@ -405,6 +522,7 @@ public class SCEStaticIP implements IpAddressSupport {
         if( response == null ) {
             throw new CloudException("Cloud accepted the post, but no body was in the response");
         }
+        Relationships.invalidate(provider);
 
         Document doc = method.parseResponse(response, true);
 
@@ -424,7 +542,7 @@ public class SCEStaticIP implements IpAddressSupport {
                     }
                     try { Thread.sleep(15000L); }
                     catch( InterruptedException ignore ) { }
-                    ip = getIpAddress(address.getProviderIpAddressId());
+                    ip = getIpAddress(address.getProviderIpAddressId(), true);
                 }
                 throw new CloudException("Timed out waiting for IP assignment to static IP #" + address.getProviderIpAddressId() + " in IBM SCE");
             }
@@ -465,7 +583,7 @@ public class SCEStaticIP implements IpAddressSupport {
         return new String[0];
     }
 
-    private @Nullable ExtendedIpAddress toAddress(@Nonnull ProviderContext ctx, @Nullable Node node, List<AddressOffering> offerings) throws CloudException, InternalException {
+    private @Nullable ExtendedIpAddress toAddress(@Nonnull ProviderContext ctx, @Nullable Node node, @Nonnull Map<String,AddressType> offerings) throws CloudException, InternalException {
         if( node == null || !node.hasChildNodes() ) {
             return null;
         }
@@ -475,6 +593,7 @@ public class SCEStaticIP implements IpAddressSupport {
             return null;
         }
 
+        StringPool strings = provider.getStringPool();
         NodeList attributes = node.getChildNodes();
         ExtendedIpAddress address = new ExtendedIpAddress();
         AddressType type = null;
@@ -491,20 +610,13 @@ public class SCEStaticIP implements IpAddressSupport {
                 address.setAddress(attr.getFirstChild().getNodeValue().trim());
             }
             else if( nodeName.equalsIgnoreCase("InstanceID") && attr.hasChildNodes() ) {
-                address.setServerId(attr.getFirstChild().getNodeValue().trim());
+                address.setServerId(strings.canonicalize(attr.getFirstChild().getNodeValue().trim()));
             }
             else if( nodeName.equalsIgnoreCase("Location") && attr.hasChildNodes() ) {
-                address.setRegionId(attr.getFirstChild().getNodeValue().trim());
+                address.setRegionId(strings.canonicalize(attr.getFirstChild().getNodeValue().trim()));
             }
             else if( nodeName.equalsIgnoreCase("OfferingID") && attr.hasChildNodes() ) {
-                String t = attr.getFirstChild().getNodeValue().trim();
-
-                for( AddressOffering offering : offerings ) {
-                    if( offering.offeringId.equals(t) ) {
-                        type = offering.type;
-                        break;
-                    }
-                }
+                type = offerings.get(attr.getFirstChild().getNodeValue().trim());
             }
             else if( nodeName.equalsIgnoreCase("State") && attr.hasChildNodes() ) {
                 String s = attr.getFirstChild().getNodeValue().trim();
@@ -512,7 +624,7 @@ public class SCEStaticIP implements IpAddressSupport {
                 if( s == null || s.equals("4") || s.equals("5") || s.equals("6") || s.equals("7") ) {
                     return null;
                 }
-                address.setRealState(s);
+                address.setRealState(strings.canonicalize(s));
             }
         }
         if( id == null || type == null ) {
@@ -525,40 +637,4 @@ public class SCEStaticIP implements IpAddressSupport {
         address.setAddressType(type);
         return address;
     }
-
-    private @Nullable ResourceStatus toStatus(@Nullable Node node) throws CloudException, InternalException {
-        if( node == null || !node.hasChildNodes() ) {
-            return null;
-        }
-        NodeList attributes = node.getChildNodes();
-        String addressId = null;
-        String realState = null;
-        String address = null;
-
-        for( int i=0; i<attributes.getLength(); i++ ) {
-            Node attr = attributes.item(i);
-            String nodeName = attr.getNodeName();
-
-            if( nodeName.equalsIgnoreCase("ID") && attr.hasChildNodes() ) {
-                addressId = attr.getFirstChild().getNodeValue().trim();
-            }
-            else if( nodeName.equalsIgnoreCase("State") && attr.hasChildNodes() ) {
-                realState = attr.getFirstChild().getNodeValue().trim();
-
-                if( realState == null || realState.equals("4") || realState.equals("5") || realState.equals("6") || realState.equals("7") ) {
-                    return null;
-                }
-            }
-            else if( nodeName.equalsIgnoreCase("IP") && attr.hasChildNodes() ) {
-                address = attr.getFirstChild().getNodeValue().trim();
-            }
-            if( addressId != null && realState != null && address != null ) {
-                break;
-            }
-        }
-        if( addressId == null || address == null ) {
-            return null;
-        }
-        return new ResourceStatus(addressId, realState != null && realState.equals("2"));
-    }
 }
@@ -25,9 +25,11 @@ import org.dasein.cloud.OperationNotSupportedException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.Requirement;
 import org.dasein.cloud.ResourceStatus;
-import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.ibm.sce.Copies;
 import org.dasein.cloud.ibm.sce.ExtendedRegion;
+import org.dasein.cloud.ibm.sce.Relationships;
 import org.dasein.cloud.ibm.sce.SCE;
+import org.dasein.cloud.ibm.sce.SCECache;
 import org.dasein.cloud.ibm.sce.SCEConfigException;
 import org.dasein.cloud.ibm.sce.SCEMethod;
 import org.dasein.cloud.identity.ServiceAction;
@@ -35,7 +37,6 @@ import org.dasein.cloud.network.AbstractVLANSupport;
 import org.dasein.cloud.network.Firewall;
 import org.dasein.cloud.network.FirewallSupport;
 import org.dasein.cloud.network.IPVersion;
-import org.dasein.cloud.network.IpAddressSupport;
 import org.dasein.cloud.network.NICCreateOptions;
 import org.dasein.cloud.network.NetworkInterface;
 import org.dasein.cloud.network.NetworkServices;
@@ -45,6 +46,10 @@ import org.dasein.cloud.network.Subnet;
 import org.dasein.cloud.network.SubnetCreateOptions;
 import org.dasein.cloud.network.VLAN;
 import org.dasein.cloud.network.VLANState;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.Minute;
+import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -55,6 +60,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 
 /**
@@ -210,12 +216,86 @@ public class SCEVLAN extends AbstractVLANSupport {
 
     @Override
     public VLAN getVlan(@Nonnull String vlanId) throws CloudException, InternalException {
-        for( VLAN vlan : listVlans() ) {
-            if( vlan.getProviderVlanId().equals(vlanId) ) {
-                return vlan;
+        return getVlan(vlanId, false);
+    }
+
+    /**
+     * Looks up a VLAN in the cached VLAN index, optionally reloading the index from the cloud when the VLAN is not in
+     * it. Callers that reject an operation for an unknown VLAN reload so that a VLAN added since the index was
+     * loaded is not refused; they are also never answered from an index past its time to live.
+     * @param vlanId the VLAN being looked up
+     * @param reloadOnMiss true to reload the index before reporting the VLAN as missing
+     * @return a copy of the cached VLAN or <code>null</code> if it does not exist
+     * @throws CloudException an error occurred talking to SmartCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable VLAN getVlan(@Nonnull String vlanId, boolean reloadOnMiss) throws CloudException, InternalException {
+        if( !reloadOnMiss ) {
+            return Copies.copy(getVlanIndex().vlans.get(vlanId));
+        }
+        VlanIndex index = getCache().getCurrent(provider, getLoader());
+        VLAN vlan = (index == null ? null : index.vlans.get(vlanId));
+
+        if( vlan == null ) {
+            index = getCache().reload(provider, getLoader());
+            vlan = (index == null ? null : index.vlans.get(vlanId));
+        }
+        return Copies.copy(vlan);
+    }
+
+    static private class VlanIndex {
+        public final LinkedHashMap<String,VLAN> vlans = new LinkedHashMap<String, VLAN>();
+    }
+
+    private @Nonnull SCECache<VlanIndex> getCache() {
+        return SCECache.getInstance("vlans", CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR), new TimePeriod<Minute>(30, TimePeriod.MINUTE), new SCECache.Weigher<VlanIndex>() {
+            @Override
+            public long weigh(@Nonnull VlanIndex index) {
+                return index.vlans.size();
             }
+        });
+    }
+
+    private @Nonnull SCECache.Loader<VlanIndex> getLoader() {
+        return new SCECache.Loader<VlanIndex>() {
+            @Override
+            public @Nullable VlanIndex load() throws CloudException, InternalException {
+                return loadVlanIndex();
+            }
+        };
+    }
+
+    private @Nonnull VlanIndex getVlanIndex() throws CloudException, InternalException {
+        VlanIndex index = getCache().get(provider, getLoader());
+
+        return (index == null ? new VlanIndex() : index);
+    }
+
+    private @Nullable VlanIndex loadVlanIndex() throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new SCEConfigException("No context was configured for this request");
         }
-        return null;
+        SCEMethod method = new SCEMethod(provider);
+
+        Document xml = method.getAsXML("offerings/vlan");
+
+        if( xml == null ) {
+            return null;
+        }
+        VlanIndex index = new VlanIndex();
+        NodeList nodes = xml.getElementsByTagName("Vlan");
+
+        for( int i=0; i<nodes.getLength(); i++ ) {
+            Node item = nodes.item(i);
+            VLAN vlan = toVlan(ctx, item);
+
+            if( vlan != null ) {
+                index.vlans.put(vlan.getProviderVlanId(), vlan);
+            }
+        }
+        return index;
     }
 
     @Override
@@ -298,28 +378,13 @@ public class SCEVLAN extends AbstractVLANSupport {
             }
         }
 
-        IpAddressSupport ipSupport = network.getIpAddressSupport();
-
-        if( ipSupport != null ) {
-            for( IPVersion version : ipSupport.listSupportedIPVersions() ) {
-                for( org.dasein.cloud.network.IpAddress addr : ipSupport.listIpPool(version, false) ) {
-                    if( inVlanId.equals(addr.getProviderVlanId()) ) {
-                        resources.add(addr);
-                    }
-                }
+        Relationships relationships = provider.getRelationships();
 
-            }
-        }
+        resources.addAll(relationships.listAddressesInVlan(inVlanId));
         for( RoutingTable table : listRoutingTables(inVlanId) ) {
             resources.add(table);
         }
-        Iterable<VirtualMachine> vms = provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines();
-
-        for( VirtualMachine vm : vms ) {
-            if( inVlanId.equals(vm.getProviderVlanId()) ) {
-                resources.add(vm);
-            }
-        }
+        resources.addAll(relationships.listVirtualMachinesInVlan(inVlanId));
         return resources;
     }
 
@@ -341,58 +406,17 @@ public class SCEVLAN extends AbstractVLANSupport {
 
     @Override
     public @Nonnull Iterable<ResourceStatus> listVlanStatus() throws CloudException, InternalException {
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new SCEConfigException("No context was configured for this request");
-        }
-        SCEMethod method = new SCEMethod(provider);
-
-        Document xml = method.getAsXML("offerings/vlan");
-
-        if( xml == null ) {
-            return Collections.emptyList();
-        }
-        NodeList nodes = xml.getElementsByTagName("Vlan");
         ArrayList<ResourceStatus> list = new ArrayList<ResourceStatus>();
 
-        for( int i=0; i<nodes.getLength(); i++ ) {
-            Node item = nodes.item(i);
-            ResourceStatus vlan = toVlanStatus(item);
-
-            if( vlan != null ) {
-                list.add(vlan);
-            }
+        for( String vlanId : getVlanIndex().vlans.keySet() ) {
+            list.add(new ResourceStatus(vlanId, VLANState.AVAILABLE));
         }
         return list;
     }
 
     @Override
     public @Nonnull Iterable<VLAN> listVlans() throws CloudException, InternalException {
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new SCEConfigException("No context was configured for this request");
-        }
-        SCEMethod method = new SCEMethod(provider);
-
-        Document xml = method.getAsXML("offerings/vlan");
-
-        if( xml == null ) {
-            return Collections.emptyList();
-        }
-        NodeList nodes = xml.getElementsByTagName("Vlan");
-        ArrayList<VLAN> list = new ArrayList<VLAN>();
-
-        for( int i=0; i<nodes.getLength(); i++ ) {
-            Node item = nodes.item(i);
-            VLAN vlan = toVlan(ctx, item);
-
-            if( vlan != null ) {
-                list.add(vlan);
-            }
-        }
-        return list;
+        return Copies.copyAll(getVlanIndex().vlans.values());
     }
 
     @Override
@@ -479,26 +503,4 @@ public class SCEVLAN extends AbstractVLANSupport {
         }
         return vlan;
     }
-
-    private @Nullable ResourceStatus toVlanStatus(@Nullable Node node) throws CloudException, InternalException {
-        if( node == null || !node.hasChildNodes() ) {
-            return null;
-        }
-        NodeList attributes = node.getChildNodes();
-        String vlanId = null;
-
-        for( int i=0; i<attributes.getLength(); i++ ) {
-            Node attr = attributes.item(i);
-            String nodeName = attr.getNodeName();
-
-            if( nodeName.equalsIgnoreCase("ID") && attr.hasChildNodes() ) {
-                vlanId = attr.getFirstChild().getNodeValue().trim();
-                break;
-            }
-        }
-        if( vlanId == null ) {
-            return null;
-        }
-        return new ResourceStatus(vlanId, VLANState.AVAILABLE);
-    }
 }
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.ibm.sce.compute.vm.SCEVirtualMachine;
+import org.junit.Test;
+
+import javax.xml.parsers.DocumentBuilder;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the string pool hands back one shared copy of each value and that pooling shrinks the strings retained
+ * by a large decoded listing.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class StringPoolTest {
+    static private final Logger logger = SCE.getLogger(StringPoolTest.class, "std");
+
+    static private final String REGION    = "41";
+    static private final int    INSTANCES = 50000;
+
+    @Test
+    public void equalValuesShareOneCopy() {
+        StringPool pool = new StringPool(16);
+        String first = new String("us-co-dc1");
+        String second = new String("us-co-dc1");
+
+        assertNotSame(first, second);
+        assertSame(first, pool.canonicalize(first));
+        assertSame(first, pool.canonicalize(second));
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void decodedValuesShareOneCopy() throws Exception {
+        StringPool pool = new StringPool(16);
+        XmlScanner scanner = new XmlScanner("<List><Instance><Location>41</Location></Instance><Instance><Location>41</Location></Instance></List>".getBytes("utf-8"));
+        int[] instances = scanner.findAll("Instance", 0, scanner.length());
+        String a = scanner.childText("Location", instances[0], instances[1]);
+        String b = scanner.childText("Location", instances[2], instances[3]);
+
+        assertNotSame("Each decode should produce its own string", a, b);
+        assertSame(pool.canonicalize(a), pool.canonicalize(b));
+    }
+
+    @Test
+    public void nullIsNotPooled() {
+        StringPool pool = new StringPool(16);
+
+        assertNull(pool.canonicalize(null));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void fullPoolReturnsNewValuesAsIs() {
+        StringPool pool = new StringPool(2);
+        String pooled = pool.canonicalize(new String("a"));
+
+        pool.canonicalize("b");
+
+        String extra = new String("c");
+
+        assertSame(extra, pool.canonicalize(extra));
+        assertEquals(2, pool.size());
+        assertSame(pooled, pool.canonicalize(new String("a")));
+    }
+
+    @Test
+    public void concurrentCallersShareOneCopy() throws Exception {
+        final StringPool pool = new StringPool(16);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Set<String> seen = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<String, Boolean>()));
+        Thread[] threads = new Thread[8];
+
+        for( int i=0; i<threads.length; i++ ) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch( InterruptedException e ) {
+                        return;
+                    }
+                    for( int j=0; j<1000; j++ ) {
+                        seen.add(pool.canonicalize(new String("COPPER.64/4096/60")));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for( Thread t : threads ) {
+            t.join();
+        }
+        assertEquals(1, seen.size());
+    }
+
+    static private byte[] listing(int count) throws Exception {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><DescribeInstancesResponse>");
+        for( int i=0; i<count; i++ ) {
+            xml.append("<Instance>");
+            xml.append("<ID>").append(100000 + i).append("</ID>");
+            xml.append("<Name>server-").append(i).append("</Name>");
+            xml.append("<Location>").append(REGION).append("</Location>");
+            xml.append("<Owner>owner").append(i % 5).append("@example.com</Owner>");
+            xml.append("<ImageID>2012040").append(i % 9).append("</ImageID>");
+            xml.append("<InstanceType>COP").append(i % 3).append(".64/4096/60</InstanceType>");
+            xml.append("<Status>").append(i % 16).append("</Status>");
+            if( i % 3 == 0 ) {
+                xml.append("<Vlan><ID>vlan-").append(i % 4).append("</ID><Name>private</Name></Vlan>");
+            }
+            xml.append("</Instance>");
+        }
+        xml.append("</DescribeInstancesResponse>");
+        return xml.toString().getBytes("utf-8");
+    }
+
+    static private List<VirtualMachine> decode(byte[] body, int poolSize) throws Exception {
+        ProviderContext ctx = new ProviderContext("20130701", REGION);
+        Properties properties = new Properties();
+        SCE provider = new SCE();
+
+        properties.setProperty("stringPoolSize", String.valueOf(poolSize));
+        ctx.setCustomProperties(properties);
+        ctx.setEndpoint("https://www-147.ibm.com/computecloud/enterprise/api/rest/20100331");
+        provider.connect(ctx);
+        try {
+            SCEVirtualMachine support = new SCEVirtualMachine(provider);
+            XmlScanner scanner = new XmlScanner(body);
+            DocumentBuilder parser = XmlScanner.newParser();
+            int[] instances = scanner.findAll("Instance", 0, scanner.length());
+            ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
+
+            for( int i=0; i<instances.length; i+=2 ) {
+                VirtualMachine vm = support.toVirtualMachine(ctx, scanner.toNode(parser, "Instance", instances[i], instances[i+1]));
+
+                if( vm != null ) {
+                    vms.add(vm);
+                }
+            }
+            return vms;
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * Approximates the bytes retained by the strings the virtual machines refer to, counting each distinct string
+     * object once: an object header with its fields plus a character array of two bytes per character.
+     */
+    static private long retainedStringBytes(List<VirtualMachine> vms) throws Exception {
+        Set<String> seen = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        long bytes = 0L;
+
+        for( VirtualMachine vm : vms ) {
+            for( Class<?> c = vm.getClass(); c != null && !c.equals(Object.class); c = c.getSuperclass() ) {
+                for( Field field : c.getDeclaredFields() ) {
+                    if( Modifier.isStatic(field.getModifiers()) ) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+
+                    Object value = field.get(vm);
+                    String[] values = (value instanceof String ? new String[] { (String)value } : (value instanceof String[] ? (String[])value : new String[0]));
+
+                    for( String str : values ) {
+                        if( str != null && seen.add(str) ) {
+                            bytes += 24L + 16L + 2L*str.length();
+                        }
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    @Test
+    public void pooledDecodingRetainsLessThanUnpooled() throws Exception {
+        byte[] body = listing(INSTANCES);
+        List<VirtualMachine> unpooled = decode(body, 0);
+        List<VirtualMachine> pooled = decode(body, 4096);
+
+        assertEquals(INSTANCES, unpooled.size());
+        assertEquals(INSTANCES, pooled.size());
+
+        long unpooledBytes = retainedStringBytes(unpooled);
+        long pooledBytes = retainedStringBytes(pooled);
+
+        logger.info("Strings retained by " + INSTANCES + " decoded instances: " + unpooledBytes + " bytes unpooled, " + pooledBytes + " bytes pooled");
+        // the location, owner, image, and instance type of every instance and the VLAN of a third of them become shared
+        assertTrue("Pooling should cut the retained strings by at least a third (" + pooledBytes + " of " + unpooledBytes + " bytes)", pooledBytes * 3 < unpooledBytes * 2);
+        assertSame(pooled.get(0).getProviderOwnerId(), pooled.get(5).getProviderOwnerId());
+        assertNotSame(unpooled.get(0).getProviderOwnerId(), unpooled.get(5).getProviderOwnerId());
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce.compute.image;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.ImageFilterOptions;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.MachineImageState;
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.ibm.sce.SCE;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the indexed image search against a full scan over a catalog of 50,000 images and compares their speed.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class ImageCatalogSearchTest {
+    static private final Logger logger = SCE.getLogger(ImageCatalogSearchTest.class, "std");
+
+    static private final int IMAGES = 50000;
+    static private final int WORDS  = 2000;
+
+    static private final Platform[]     platforms     = { Platform.RHEL, Platform.SUSE, Platform.WINDOWS, Platform.UBUNTU, Platform.CENT_OS };
+    static private final Architecture[] architectures = { Architecture.I32, Architecture.I64 };
+
+    static private ArrayList<MachineImage> images;
+    static private ImageCatalog.Index      index;
+
+    @BeforeClass
+    static public void buildCatalog() {
+        Random random = new Random(20130701L);
+        String[] words = new String[WORDS];
+
+        for( int i=0; i<WORDS; i++ ) {
+            words[i] = "w" + Integer.toString(i, 36) + (char)('a' + random.nextInt(26));
+        }
+        LinkedHashMap<String,ImageCatalog.Entry> entries = new LinkedHashMap<String, ImageCatalog.Entry>();
+
+        images = new ArrayList<MachineImage>();
+        for( int i=0; i<IMAGES; i++ ) {
+            String id = String.valueOf(20000000 + i);
+            String name = words[random.nextInt(WORDS)] + " " + words[random.nextInt(WORDS)] + " " + i;
+            String description = "Image of " + words[random.nextInt(WORDS)] + " for " + words[random.nextInt(WORDS)];
+            MachineImage img = MachineImage.getMachineImageInstance("owner" + random.nextInt(20), "us-test", id, MachineImageState.ACTIVE, name, description, architectures[random.nextInt(architectures.length)], platforms[random.nextInt(platforms.length)]);
+
+            if( i % 10 == 0 ) {
+                img.setTag("role", "tagonly" + random.nextInt(100));
+            }
+            images.add(img);
+            entries.put(id, new ImageCatalog.Entry(img, false, new byte[0]));
+        }
+        index = new ImageCatalog.Index(entries);
+    }
+
+    static private List<String> scan(ImageFilterOptions options) {
+        ArrayList<String> ids = new ArrayList<String>();
+
+        for( MachineImage img : images ) {
+            if( options.matches(img) ) {
+                ids.add(img.getProviderMachineImageId());
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    static private List<String> search(ImageFilterOptions options) {
+        ArrayList<String> ids = new ArrayList<String>();
+
+        for( MachineImage img : index.find(options, null) ) {
+            ids.add(img.getProviderMachineImageId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void literalNameMatchesFullScan() {
+        ImageFilterOptions options = ImageFilterOptions.getInstance(".*" + images.get(42).getName().split(" ")[0] + ".*");
+        List<String> expected = scan(options);
+
+        assertFalse("Test data should produce matches", expected.isEmpty());
+        assertEquals(expected, search(options));
+    }
+
+    @Test
+    public void literalTagValueMatchesFullScan() {
+        ImageFilterOptions options = ImageFilterOptions.getInstance("tagonly7");
+        List<String> expected = scan(options);
+
+        assertFalse("Images should match on their tag values alone", expected.isEmpty());
+        assertEquals(expected, search(options));
+    }
+
+    @Test
+    public void regexWithTagFilterMatchesFullScan() {
+        ImageFilterOptions options = ImageFilterOptions.getInstance(".*tagonly3.*");
+
+        options.withTags(Collections.singletonMap("role", "tagonly3"));
+        assertEquals(scan(options), search(options));
+    }
+
+    @Test
+    public void nonLiteralRegexMatchesFullScan() {
+        ImageFilterOptions options = ImageFilterOptions.getInstance("^w1[0-9].* 12.*$");
+
+        assertEquals(scan(options), search(options));
+    }
+
+    @Test
+    public void combinedCriteriaMatchFullScan() {
+        ImageFilterOptions all = ImageFilterOptions.getInstance(".*Image of.*").onPlatform(Platform.UBUNTU).withArchitecture(Architecture.I64).withAccountNumber("owner7");
+        ImageFilterOptions any = ImageFilterOptions.getInstance("tagonly1").onPlatform(Platform.SUSE).matchingAny();
+
+        assertEquals(scan(all), search(all));
+        assertEquals(scan(any), search(any));
+    }
+
+    @Test
+    public void indexedSearchBeatsFullScan() {
+        ImageFilterOptions options = ImageFilterOptions.getInstance(".*" + images.get(7).getName().split(" ")[1] + ".*");
+        int rounds = 5;
+
+        // warm up both paths before timing them
+        scan(options);
+        search(options);
+
+        long start = System.nanoTime();
+
+        for( int i=0; i<rounds; i++ ) {
+            scan(options);
+        }
+        long scanTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for( int i=0; i<rounds; i++ ) {
+            search(options);
+        }
+        long searchTime = System.nanoTime() - start;
+
+        logger.info("Regex search over " + IMAGES + " images: full scan " + (scanTime/rounds/1000000L) + "ms, indexed " + (searchTime/rounds/1000000L) + "ms");
+        assertTrue("Indexed search (" + searchTime + "ns) should be faster than a full scan (" + scanTime + "ns)", searchTime < scanTime);
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.ibm.sce.compute.vm;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.ibm.sce.SCE;
+import org.dasein.cloud.ibm.sce.XmlScanner;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.xml.parsers.DocumentBuilder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that lazily decoded instance views match the eager decoder field for field and compares their speed when
+ * only a few fields of a large listing are read.
+ * @author George Reese
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class InstanceViewTest {
+    static private final Logger logger = SCE.getLogger(InstanceViewTest.class, "std");
+
+    static private final String REGION    = "41";
+    static private final int    INSTANCES = 20000;
+
+    static private SCE               provider;
+    static private SCEVirtualMachine support;
+
+    @BeforeClass
+    static public void connect() {
+        ProviderContext ctx = new ProviderContext("20130701", REGION);
+
+        ctx.setEndpoint("https://www-147.ibm.com/computecloud/enterprise/api/rest/20100331");
+        provider = new SCE();
+        provider.connect(ctx);
+        support = new SCEVirtualMachine(provider);
+    }
+
+    @AfterClass
+    static public void close() {
+        provider.close();
+    }
+
+    static private String instance(int i) {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<Instance>");
+        xml.append("<ID>").append(100000 + i).append("</ID>");
+        if( i % 7 != 0 ) {
+            xml.append("<Name>server-").append(i).append("</Name>");
+        }
+        xml.append("<Location>").append(i % 11 == 0 ? "101" : REGION).append("</Location>");
+        xml.append("<Owner>owner").append(i % 5).append("@example.com</Owner>");
+        xml.append("<Hostname>vhost").append(i).append(".example.com</Hostname>");
+        // addresses of each kind interleaved, with repeats, so ordering and de-duplication both matter
+        xml.append("<PrimaryIP><IP>10.0.").append(i % 250).append(".1</IP></PrimaryIP>");
+        xml.append("<IP>170.224.").append(i % 250).append(".7</IP>");
+        xml.append("<SecondaryIP><IP>170.224.").append(i % 250).append(".7</IP></SecondaryIP>");
+        xml.append("<SecondaryIP><IP>10.0.").append(i % 250).append(".1</IP></SecondaryIP>");
+        xml.append("<IP>10.0.").append(i % 250).append(".1</IP>");
+        xml.append("<SecondaryIP><IP>170.225.").append(i % 250).append(".9</IP></SecondaryIP>");
+        xml.append("<ImageID>2012040").append(i % 9).append("</ImageID>");
+        xml.append("<InstanceType>COP").append(i % 3).append(".64/4096/60</InstanceType>");
+        xml.append("<Status>").append(i % 16).append("</Status>");
+        xml.append("<LaunchTime>2013-07-0").append(1 + i % 9).append("T12:34:56.789Z</LaunchTime>");
+        if( i % 3 == 0 ) {
+            xml.append("<Vlan><ID>vlan-").append(i % 4).append("</ID><Name>private</Name></Vlan>");
+        }
+        xml.append("<Software>");
+        xml.append("<Application><Name>Red Hat Enterprise Linux 6</Name><Type>OS</Type></Application>");
+        xml.append("<Application><Name>DB2 Express</Name><Type>Application</Type></Application>");
+        if( i % 2 == 0 ) {
+            xml.append("<Application><Name>SUSE Linux Enterprise Server 11</Name><Type>OS</Type></Application>");
+        }
+        xml.append("</Software>");
+        xml.append("</Instance>");
+        return xml.toString();
+    }
+
+    static private byte[] listing(int count) throws Exception {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><DescribeInstancesResponse>");
+        for( int i=0; i<count; i++ ) {
+            xml.append(instance(i));
+        }
+        xml.append("</DescribeInstancesResponse>");
+        return xml.toString().getBytes("utf-8");
+    }
+
+    static private List<VirtualMachine> decodeEagerly(XmlScanner scanner) throws Exception {
+        ProviderContext ctx = provider.getContext();
+        DocumentBuilder parser = XmlScanner.newParser();
+        int[] instances = scanner.findAll("Instance", 0, scanner.length());
+        ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
+
+        for( int i=0; i<instances.length; i+=2 ) {
+            VirtualMachine vm = support.toVirtualMachine(ctx, scanner.toNode(parser, "Instance", instances[i], instances[i+1]));
+
+            if( vm != null ) {
+                vms.add(vm);
+            }
+        }
+        return vms;
+    }
+
+    static private List<VirtualMachine> decodeLazily(XmlScanner scanner) throws Exception {
+        int[] instances = scanner.findAll("Instance", 0, scanner.length());
+        ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
+
+        for( int i=0; i<instances.length; i+=2 ) {
+            VirtualMachine vm = InstanceView.getInstance(provider, support, scanner, instances[i], instances[i+1], REGION);
+
+            if( vm != null ) {
+                vms.add(vm);
+            }
+        }
+        return vms;
+    }
+
+    static private void assertSameMachine(VirtualMachine expected, VirtualMachine actual) {
+        String id = expected.getProviderVirtualMachineId();
+
+        assertEquals(id, actual.getProviderVirtualMachineId());
+        assertEquals(id, expected.getName(), actual.getName());
+        assertEquals(id, expected.getDescription(), actual.getDescription());
+        assertEquals(id, expected.getProviderRegionId(), actual.getProviderRegionId());
+        assertEquals(id, expected.getProviderDataCenterId(), actual.getProviderDataCenterId());
+        assertEquals(id, expected.getProviderOwnerId(), actual.getProviderOwnerId());
+        assertEquals(id, expected.getPublicDnsAddress(), actual.getPublicDnsAddress());
+        assertArrayEquals(id, expected.getPublicIpAddresses(), actual.getPublicIpAddresses());
+        assertArrayEquals(id, expected.getPrivateIpAddresses(), actual.getPrivateIpAddresses());
+        assertEquals(id, expected.getProviderMachineImageId(), actual.getProviderMachineImageId());
+        assertEquals(id, expected.getProductId(), actual.getProductId());
+        assertEquals(id, expected.getCurrentState(), actual.getCurrentState());
+        assertEquals(id, expected.getProviderVlanId(), actual.getProviderVlanId());
+        assertEquals(id, expected.getPlatform(), actual.getPlatform());
+        assertEquals(id, expected.getCreationTimestamp(), actual.getCreationTimestamp());
+        assertEquals(id, expected.getLastBootTimestamp(), actual.getLastBootTimestamp());
+    }
+
+    @Test
+    public void viewsMatchEagerDecoding() throws Exception {
+        XmlScanner scanner = new XmlScanner(listing(500));
+        List<VirtualMachine> eager = decodeEagerly(scanner);
+        List<VirtualMachine> lazy = decodeLazily(scanner);
+
+        assertEquals(eager.size(), lazy.size());
+        for( int i=0; i<eager.size(); i++ ) {
+            assertSameMachine(eager.get(i), lazy.get(i));
+            assertSameMachine(eager.get(i), ((InstanceView)lazy.get(i)).materialize());
+        }
+    }
+
+    static private VirtualMachine find(List<VirtualMachine> vms, int i) {
+        for( VirtualMachine vm : vms ) {
+            if( vm.getProviderVirtualMachineId().equals(String.valueOf(100000 + i)) ) {
+                return vm;
+            }
+        }
+        throw new AssertionError("No instance " + i);
+    }
+
+    @Test
+    public void platformComesFromLastOperatingSystem() throws Exception {
+        XmlScanner scanner = new XmlScanner(listing(4));
+        List<VirtualMachine> lazy = decodeLazily(scanner);
+
+        // even instances list RHEL and then SUSE, odd instances list only RHEL
+        assertEquals(Platform.guess("SUSE Linux Enterprise Server 11"), find(lazy, 2).getPlatform());
+        assertEquals(Platform.guess("Red Hat Enterprise Linux 6"), find(lazy, 3).getPlatform());
+    }
+
+    @Test
+    public void explicitValuesAreNotOverwritten() throws Exception {
+        XmlScanner scanner = new XmlScanner(listing(3));
+        VirtualMachine vm = find(decodeLazily(scanner), 1);
+
+        vm.setCurrentState(VmState.TERMINATED);
+        vm.setPublicIpAddresses(new String[] { "170.224.1.1" });
+        assertEquals(VmState.TERMINATED, vm.getCurrentState());
+        assertArrayEquals(new String[] { "170.224.1.1" }, vm.getPublicIpAddresses());
+        assertArrayEquals(new String[] { "10.0.1.1", "10.0.1.1" }, vm.getPrivateIpAddresses());
+    }
+
+    @Test
+    public void badLaunchTimeFailsLikeEagerDecoding() throws Exception {
+        String xml = "<List>" + instance(1).replaceAll("<LaunchTime>[^<]*</LaunchTime>", "<LaunchTime>yesterday</LaunchTime>") + "</List>";
+        XmlScanner scanner = new XmlScanner(xml.getBytes("utf-8"));
+
+        try {
+            decodeEagerly(scanner);
+            fail("The eager decoder should reject the launch time");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        try {
+            decodeLazily(scanner);
+            fail("The view should reject the launch time");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void viewsBeatEagerDecodingWhenFewFieldsAreRead() throws Exception {
+        XmlScanner scanner = new XmlScanner(listing(INSTANCES));
+        int rounds = 3;
+
+        // warm up both paths before timing them
+        readStates(decodeEagerly(scanner));
+        readStates(decodeLazily(scanner));
+
+        long start = System.nanoTime();
+
+        for( int i=0; i<rounds; i++ ) {
+            readStates(decodeEagerly(scanner));
+        }
+        long eagerTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for( int i=0; i<rounds; i++ ) {
+            readStates(decodeLazily(scanner));
+        }
+        long lazyTime = System.nanoTime() - start;
+
+        logger.info("Listing " + INSTANCES + " instances and reading their states: eager " + (eagerTime/rounds/1000000L) + "ms, lazy " + (lazyTime/rounds/1000000L) + "ms");
+        assertTrue("Lazy views (" + lazyTime + "ns) should be faster than eager decoding (" + eagerTime + "ns)", lazyTime < eagerTime);
+    }
+
+    static private int readStates(List<VirtualMachine> vms) {
+        int running = 0;
+
+        for( VirtualMachine vm : vms ) {
+            if( VmState.RUNNING.equals(vm.getCurrentState()) && vm.getProviderVirtualMachineId() != null ) {
+                running++;
+            }
+        }
+        return running;
+    }
+}